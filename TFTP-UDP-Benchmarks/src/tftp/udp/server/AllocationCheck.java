@@ -0,0 +1,185 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import tftp.udp.client.TFTPUDPClient;
+
+/**
+ * Regression check that steady-state transfers allocate nothing per block.
+ * Runs reads from disk, reads from the packet cache and writes between the
+ * client and an in-process server, and measures the bytes each thread
+ * allocates. Every measured round transfers a small and a large file, and
+ * the difference between the two is divided by the difference in blocks,
+ * so the fixed cost of each transfer (sockets, the request, the digest)
+ * cancels out and only the cost per block is left. Exits with status 1 if
+ * the client's or a request handler's thread allocates per block.
+ * <p>
+ * Each side sends one datagram per block. Newer JDKs build DatagramSocket on
+ * a channel, and their send allocates an address on every call even when the
+ * socket is connected. That cost is measured on its own first and allowed for,
+ * so only allocations made by the server and client code fail the check.
+ *
+ * @author 184514
+ */
+public final class AllocationCheck {
+
+    //Directory, under the working directory, of the files transferred.
+    private static final String DIR = "tftp-alloc";
+    //File sizes and their blocks, a file of whole blocks ends with an empty one.
+    private static final int SMALL = 64 * 512, LARGE = 2048 * 512;
+    private static final int BLOCK_DIFFERENCE = (LARGE / 512 + 1) - (SMALL / 512 + 1);
+    //Rounds run before measuring, so every path is compiled, and rounds measured.
+    private static final int WARMUP = 40, ROUNDS = 10;
+    //Most bytes per block a checked thread may allocate beyond its one send, leaving room for measurement noise.
+    private static final double LIMIT = 1.0;
+    //Sends made to measure the cost of a send.
+    private static final int SENDS = 20000;
+    //Threads whose allocations are checked, the rest are only reported.
+    private static final String CLIENT = "client", HANDLER = "tftp-handler";
+
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final Thread[] LIVE = new Thread[1024];
+
+    /**
+     * One transfer of the scenario being measured.
+     */
+    private interface Transfer {
+
+        void run(int size, int round) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path dir = Paths.get(DIR);
+        Files.createDirectories(dir);
+        //Files read from disk are each read once, below the packet cache's threshold.
+        for (int size : new int[]{SMALL, LARGE}) {
+            byte[] content = new byte[size];
+            new Random(size).nextBytes(content);
+            for (int i = 0; i < WARMUP + ROUNDS; i++) {
+                Files.write(dir.resolve("disk-" + size + "-" + i + ".bin"), content);
+            }
+            Files.write(dir.resolve("hot-" + size + ".bin"), content);
+            Files.write(dir.resolve("up-" + size + ".bin"), content);
+        }
+        double sendCost = sendCost();
+        System.out.println(String.format(Locale.ROOT, "DatagramSocket.send allocates %.2f bytes per call", sendCost));
+        LoopbackServer server = LoopbackServer.start();
+        TFTPUDPClient client = new TFTPUDPClient(server.getPort());
+        client.connect(new String[]{"connect", "127.0.0.1", Integer.toString(server.getPort())});
+        //Downloads go outside the served tree, so the server does not see them land.
+        Path downloadFile = Files.createTempFile("tftp-alloc", ".bin");
+        String download = downloadFile.toString();
+        double limit = sendCost + LIMIT;
+        boolean passed = true;
+        try {
+            passed &= check("RRQ from disk", limit, (size, round) -> client.grabFile(DIR + "/disk-" + size + "-" + round + ".bin", download));
+            passed &= check("RRQ from cache", limit, (size, round) -> client.grabFile(DIR + "/hot-" + size + ".bin", download));
+            passed &= check("WRQ", limit, (size, round) -> client.sendFileToServer(DIR + "/up-" + size + ".bin", DIR + "/uploaded-" + size + ".bin"));
+        } finally {
+            server.shutdown();
+            Files.deleteIfExists(downloadFile);
+        }
+        System.out.println(passed ? "Allocation check passed" : "Allocation check FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Measures the bytes this JDK allocates for one DatagramSocket send.
+     *
+     * @return bytes allocated per send
+     */
+    private static double sendCost() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        try (DatagramSocket receiver = new DatagramSocket(0, loopback); DatagramSocket sender = new DatagramSocket()) {
+            DatagramPacket packet = new DatagramPacket(new byte[4], 4, loopback, receiver.getLocalPort());
+            long id = Thread.currentThread().getId(), start = 0;
+            for (int i = 0; i < 2 * SENDS; i++) {
+                if (i == SENDS) {
+                    start = THREADS.getThreadAllocatedBytes(id);
+                }
+                sender.send(packet);
+            }
+            return (double) (THREADS.getThreadAllocatedBytes(id) - start) / SENDS;
+        }
+    }
+
+    /**
+     * Warms a scenario up, then measures the bytes allocated per block by each kind of thread.
+     *
+     * @param limit - Most bytes per block the client and handler threads may allocate.
+     * @return true if the checked threads stayed within the limit
+     */
+    private static boolean check(String name, double limit, Transfer transfer) throws Exception {
+        for (int i = 0; i < WARMUP; i++) {
+            transfer.run(SMALL, i);
+            transfer.run(LARGE, i);
+        }
+        Map<String, Long> extra = new LinkedHashMap<>();
+        for (int r = 0; r < ROUNDS; r++) {
+            Map<Long, Long> before = allocated();
+            transfer.run(SMALL, WARMUP + r);
+            Map<Long, Long> small = allocated();
+            transfer.run(LARGE, WARMUP + r);
+            Map<Long, Long> large = allocated();
+            for (Map.Entry<Long, Long> entry : large.entrySet()) {
+                long id = entry.getKey();
+                long smallBytes = delta(small, before, id);
+                long largeBytes = entry.getValue() - small.getOrDefault(id, 0L);
+                extra.merge(kind(id), largeBytes - smallBytes, Long::sum);
+            }
+        }
+        boolean passed = true;
+        StringBuilder report = new StringBuilder(name).append(", bytes per block:");
+        for (Map.Entry<String, Long> entry : extra.entrySet()) {
+            double perBlock = (double) entry.getValue() / ROUNDS / BLOCK_DIFFERENCE;
+            report.append(String.format(Locale.ROOT, " %s %.2f", entry.getKey(), perBlock));
+            if ((entry.getKey().equals(CLIENT) || entry.getKey().equals(HANDLER)) && perBlock > limit) {
+                passed = false;
+            }
+        }
+        System.out.println(report.append(passed ? "" : String.format(Locale.ROOT, "  <- over %.2f", limit)));
+        return passed;
+    }
+
+    private static long delta(Map<Long, Long> after, Map<Long, Long> before, long id) {
+        Long bytes = after.get(id);
+        return bytes == null ? 0 : bytes - before.getOrDefault(id, 0L);
+    }
+
+    /**
+     * Returns the bytes allocated so far by every live thread, by thread id.
+     */
+    private static Map<Long, Long> allocated() {
+        int count = Thread.enumerate(LIVE);
+        Map<Long, Long> bytes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            bytes.put(LIVE[i].getId(), THREADS.getThreadAllocatedBytes(LIVE[i].getId()));
+        }
+        return bytes;
+    }
+
+    /**
+     * Names the kind of a thread, the client for this thread and the thread's name otherwise.
+     */
+    private static String kind(long id) {
+        if (id == Thread.currentThread().getId()) {
+            return CLIENT;
+        }
+        for (Thread thread : LIVE) {
+            if (thread != null && thread.getId() == id) {
+                return thread.getName().startsWith(HANDLER) ? HANDLER : thread.getName();
+            }
+        }
+        return "other";
+    }
+}
@@ -0,0 +1,153 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tftp.udp.client.TFTPUDPClient;
+
+/**
+ * Serving a set of files from a mounted archive, stored or deflated, against
+ * serving the same files extracted into the served tree. Mounting is timed as
+ * indexing the archive's central directory, or scanning the extracted tree as
+ * the server's tree index does at startup. Reads are whole transfers over
+ * loopback, cycling through every file, so the tree's files are served from
+ * the packet cache once they are hot as they would be by a real server.
+ * Every size is 16MB of files in total, so the smaller the files the more of
+ * them there are to index.
+ *
+ * @author 184514
+ */
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+
+    //Directory, under the working directory, of the archive and the extracted tree.
+    private static final String DIR = "tftp-archive";
+    //Total bytes of the files, whatever their size.
+    private static final int TOTAL = 16 << 20;
+
+    @Param({"4096", "65536", "1048576"})
+    public int entrySize;
+
+    //Where the files are served from: a stored or deflated archive, or the tree.
+    @Param({"stored", "deflated", "tree"})
+    public String source;
+
+    private Path archive, tree;
+    private String[] names;
+    private LoopbackServer server;
+    private TFTPUDPClient client;
+    private Path download;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path dir = Paths.get(DIR, source + "-" + entrySize);
+        tree = dir.resolve("tree");
+        Files.createDirectories(tree);
+        archive = dir.resolve("files.zip");
+        names = new String[TOTAL / entrySize];
+        Random random = new Random(entrySize);
+        byte[] content = new byte[entrySize];
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive))) {
+            for (int i = 0; i < names.length; i++) {
+                //Text from a small alphabet, which deflates to about half its size.
+                for (int j = 0; j < content.length; j++) {
+                    content[j] = (byte) ('a' + random.nextInt(16));
+                }
+                //Named as the extracted file, so both are asked for by the same name.
+                names[i] = DIR + "/" + source + "-" + entrySize + "/tree/f" + i + ".bin";
+                if (source.equals("tree")) {
+                    Files.write(Paths.get(names[i]), content);
+                } else {
+                    zip.putNextEntry(entry(names[i], content));
+                    zip.write(content);
+                    zip.closeEntry();
+                }
+            }
+        }
+        download = dir.resolve("download.bin");
+        server = LoopbackServer.start();
+        if (!source.equals("tree")) {
+            server.getContext().mountArchive(archive);
+        }
+        client = new TFTPUDPClient(server.getPort());
+        client.connect(new String[]{"connect", "127.0.0.1", Integer.toString(server.getPort())});
+    }
+
+    private ZipEntry entry(String name, byte[] content) {
+        ZipEntry entry = new ZipEntry(name);
+        if (source.equals("stored")) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        } else {
+            entry.setMethod(ZipEntry.DEFLATED);
+        }
+        return entry;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    /**
+     * Mounts the archive, or scans the extracted tree and waits for the index to be complete.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int mount() throws IOException {
+        if (!source.equals("tree")) {
+            return new ArchiveStore(archive).size();
+        }
+        ServedTreeIndex index = new ServedTreeIndex(tree);
+        index.start();
+        String last = "f" + (names.length - 1) + ".bin";
+        while (index.lookup(last) == null) {
+            Thread.yield();
+        }
+        index.close();
+        return names.length;
+    }
+
+    /**
+     * Reads the next file in turn, checking the whole file arrived.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long rrq() throws IOException, tftp.udp.client.TFTPException {
+        client.grabFile(names[next++ % names.length], download.toString());
+        long length = Files.size(download);
+        if (length != entrySize) {
+            throw new IOException(download + " has " + length + " bytes, expected " + entrySize);
+        }
+        return length;
+    }
+}
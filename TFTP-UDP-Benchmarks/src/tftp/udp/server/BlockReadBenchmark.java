@@ -0,0 +1,125 @@
+package tftp.udp.server;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading a whole file block by block through each block source the server
+ * can serve a file from: a stream, a channel with read-ahead as disk files
+ * are served, a mapped buffer, and the packet cache's pre-encoded slab as hot
+ * files are served. The file is written once per fork and is in the page
+ * cache throughout, so this measures the cost of each path rather than the
+ * disk.
+ *
+ * @author 184514
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Benchmark)
+public class BlockReadBenchmark {
+
+    //Payload bytes per DATA packet.
+    private static final int BLOCK_SIZE = 512;
+
+    @Param({"4096", "65536", "1048576", "16777216"})
+    public int size;
+
+    private Path file;
+    //Same pools the server context gives its read-ahead sources.
+    private final ExecutorService readAheadPool = Executors.newFixedThreadPool(4, r -> {
+        Thread t = new Thread(r, "tftp-read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+    private final BufferPool dataBuffers = new BufferPool(BLOCK_SIZE + 4, 1024);
+    //Holds the file from setup on, as a hot file would be held.
+    private final DataPacketCache packetCache = new DataPacketCache(1, 64L << 20, 256L << 20);
+
+    @Setup
+    public void setUp() throws IOException {
+        file = Files.createTempFile("tftp-block-read", ".bin");
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        Files.write(file, content);
+        if (packetCache.preload(file.toString(), BLOCK_SIZE, Long.MAX_VALUE) < 0) {
+            throw new IOException("File could not be cached: " + file);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        readAheadPool.shutdownNow();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Fills every block of the file in turn, as a transfer does.
+     *
+     * @return the payload bytes read, which must equal the file's size
+     */
+    private long readAll(DataBlockSource source) throws IOException {
+        try {
+            DatagramPacket datagram = new DatagramPacket(new byte[0], 0);
+            long total = 0;
+            short blockNo = 1;
+            int length;
+            do {
+                length = source.fill(blockNo++, datagram);
+                total += length;
+            } while (length == BLOCK_SIZE);
+            return total;
+        } finally {
+            source.close();
+        }
+    }
+
+    @Benchmark
+    public long stream() throws IOException {
+        return readAll(new StreamBlockSource(new BufferedInputStream(new FileInputStream(file.toFile())), BLOCK_SIZE));
+    }
+
+    @Benchmark
+    public long channel() throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        return readAll(new ReadAheadBlockSource(channel, BLOCK_SIZE, readAheadPool, dataBuffers));
+    }
+
+    @Benchmark
+    public long mmap() throws IOException {
+        //The mapping stays valid after the channel is closed.
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readAll(new ByteBufferBlockSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), BLOCK_SIZE));
+        }
+    }
+
+    //Opened through the cache, which checks the file has not changed, as a request for a hot file is.
+    @Benchmark
+    public long cached() throws IOException {
+        return readAll(packetCache.open(file.toString(), BLOCK_SIZE));
+    }
+}
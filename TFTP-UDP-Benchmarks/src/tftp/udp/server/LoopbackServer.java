@@ -0,0 +1,85 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import tftp.udp.server.PacketClasses.RRQPacket;
+
+/**
+ * A server in the benchmark's JVM on a free loopback port, for the
+ * benchmarks and checks which run whole transfers. It serves the working
+ * directory, so the files it reads must be written before it starts.
+ *
+ * @author 184514
+ */
+final class LoopbackServer {
+
+    //Longest wait for the server to answer its first request.
+    private static final long START_MS = 10000;
+
+    private final TFTPUDPServer server;
+    private final int port;
+
+    private LoopbackServer(TFTPUDPServer server, int port) {
+        this.server = server;
+        this.port = port;
+    }
+
+    /**
+     * Starts a server on a free port and waits until it answers. The server
+     * and its handlers run on daemon threads.
+     *
+     * @return the running server
+     * @throws IOException is thrown when the server does not answer in time.
+     */
+    static LoopbackServer start() throws IOException {
+        int port;
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        TFTPUDPServer server = new TFTPUDPServer(port, new Durability(Durability.Mode.NONE, 0));
+        server.setDaemon(true);
+        server.start();
+        //The server warms its cache before binding, so requests for a missing file are sent until one is answered.
+        byte[] request = new RRQPacket("tftp-loopback-missing").getPacketBytes();
+        byte[] reply = new byte[516];
+        try (DatagramSocket probe = new DatagramSocket()) {
+            probe.setSoTimeout(100);
+            long deadline = System.currentTimeMillis() + START_MS;
+            while (System.currentTimeMillis() < deadline) {
+                probe.send(new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), port));
+                try {
+                    probe.receive(new DatagramPacket(reply, reply.length));
+                    return new LoopbackServer(server, port);
+                } catch (SocketTimeoutException notYet) {
+                    //Not listening yet.
+                }
+            }
+        }
+        server.shutdown();
+        throw new IOException("Server did not answer on port " + port);
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    int getPort() {
+        return port;
+    }
+
+    /**
+     * @return the state shared by the server's handlers, for setting it up as a benchmark needs
+     */
+    ServerContext getContext() {
+        return server.getContext();
+    }
+
+    /**
+     * Stops the server.
+     */
+    void shutdown() {
+        server.shutdown();
+    }
+}
@@ -0,0 +1,104 @@
+package tftp.udp.server;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The metrics every request handler updates once per block: counting a DATA
+ * packet sent and recording its round trip, and the histogram recording
+ * underneath. One Metrics is shared by every handler in the server, so each
+ * is measured from one thread and from four at once, where the handlers
+ * contend on the same counters and buckets.
+ *
+ * @author 184514
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final Metrics metrics = new Metrics();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /**
+     * Round trips of each thread, spread from tens of microseconds to tens of
+     * milliseconds so recording lands in many buckets.
+     */
+    @State(Scope.Thread)
+    public static class Rtts {
+
+        private final long[] nanos = new long[1024];
+        private int next;
+
+        public Rtts() {
+            Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = (long) (20000 * Math.pow(1000, random.nextDouble()));
+            }
+        }
+
+        long next() {
+            return nanos[next++ & (nanos.length - 1)];
+        }
+    }
+
+    @Benchmark
+    public void dataSent() {
+        metrics.dataSent(516);
+    }
+
+    @Benchmark
+    public void blockRtt(Rtts rtts) {
+        metrics.blockRtt(rtts.next());
+    }
+
+    @Benchmark
+    public void record(Rtts rtts) {
+        histogram.record(rtts.next() / 1000);
+    }
+
+    //What a handler does per block acknowledged at the first try.
+    @Benchmark
+    public void perBlock(Rtts rtts) {
+        metrics.dataSent(516);
+        metrics.blockRtt(rtts.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void dataSentContended() {
+        metrics.dataSent(516);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void blockRttContended(Rtts rtts) {
+        metrics.blockRtt(rtts.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Rtts rtts) {
+        histogram.record(rtts.next() / 1000);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void perBlockContended(Rtts rtts) {
+        metrics.dataSent(516);
+        metrics.blockRtt(rtts.next());
+    }
+}
@@ -0,0 +1,77 @@
+package tftp.udp.server.PacketClasses;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tftp.udp.server.TFTPException;
+
+/**
+ * Encoding and decoding each packet type through the packet classes, which
+ * build an object and a byte array per packet. The client's copy of the
+ * packet classes is identical.
+ *
+ * @author 184514
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Thread)
+public class PacketClassesBenchmark {
+
+    @Param({"RRQ", "WRQ", "DATA", "ACK", "ERROR", "OACK"})
+    public String type;
+
+    private final byte[] payload = new byte[512];
+    private final Map<String, String> options = new LinkedHashMap<>();
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() {
+        options.put("tsize", "1048576");
+        options.put("sha256", "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        encoded = build().getPacketBytes();
+    }
+
+    /**
+     * Creates a packet of the benchmarked type, with typical contents.
+     */
+    private TFTPPacket build() {
+        switch (type) {
+            case "RRQ":
+                return new RRQPacket("pxelinux.cfg/01-52-54-00-12-34-56");
+            case "WRQ":
+                return new WRQPacket("logs/host-0042.log");
+            case "DATA":
+                return new DataPacket((short) 1234, payload, payload.length);
+            case "ACK":
+                return new AckPacket(1234);
+            case "ERROR":
+                return new ErrorPacket(ErrorPacket.ErrorCodes.FILE_NOT_FOUND, "File not found");
+            default:
+                return new OACKPacket(options);
+        }
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return build().getPacketBytes();
+    }
+
+    @Benchmark
+    public TFTPPacket decode() throws TFTPException {
+        return TFTPPacket.fromByteArray(encoded, encoded.length);
+    }
+}
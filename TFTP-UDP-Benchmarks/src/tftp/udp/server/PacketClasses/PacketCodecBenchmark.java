@@ -0,0 +1,97 @@
+package tftp.udp.server.PacketClasses;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import tftp.udp.shared.PacketCodec;
+
+/**
+ * Encoding and decoding in place with the flyweight codec the transfer
+ * loops use, for the packets it handles. Packets are read from heap and
+ * direct buffers, as the server receives into either.
+ *
+ * @author 184514
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Thread)
+public class PacketCodecBenchmark {
+
+    private final PacketCodec codec = new PacketCodec();
+    private final ByteBuffer out = ByteBuffer.allocate(516);
+    private ByteBuffer rrq, data, ack, error, directData;
+    private short blockNo;
+
+    @Setup
+    public void setUp() {
+        rrq = ByteBuffer.wrap(new RRQPacket("pxelinux.cfg/01-52-54-00-12-34-56").getPacketBytes());
+        data = ByteBuffer.wrap(new DataPacket((short) 1234, new byte[512], 512).getPacketBytes());
+        ack = ByteBuffer.wrap(new AckPacket(1234).getPacketBytes());
+        error = ByteBuffer.wrap(new ErrorPacket(ErrorPacket.ErrorCodes.FILE_NOT_FOUND, "File not found").getPacketBytes());
+        directData = ByteBuffer.allocateDirect(data.capacity());
+        directData.put(data.duplicate()).clear();
+    }
+
+    @Benchmark
+    public int encodeAck() {
+        return PacketCodec.encodeAck(out, 0, blockNo++);
+    }
+
+    @Benchmark
+    public int encodeDataHeader() {
+        return PacketCodec.encodeDataHeader(out, 0, blockNo++);
+    }
+
+    @Benchmark
+    public void decodeRequest(Blackhole bh) {
+        codec.wrap(rrq, 0, rrq.capacity());
+        bh.consume(PacketType.lookup(codec.opcode()));
+        bh.consume(codec.filename());
+        bh.consume(codec.mode());
+    }
+
+    @Benchmark
+    public void decodeData(Blackhole bh) {
+        decodeData(bh, data);
+    }
+
+    @Benchmark
+    public void decodeDataDirect(Blackhole bh) {
+        decodeData(bh, directData);
+    }
+
+    private void decodeData(Blackhole bh, ByteBuffer packet) {
+        codec.wrap(packet, 0, packet.capacity());
+        bh.consume(PacketType.lookup(codec.opcode()));
+        bh.consume(codec.blockNumber());
+        bh.consume(codec.payloadLength());
+    }
+
+    @Benchmark
+    public void decodeAck(Blackhole bh) {
+        codec.wrap(ack, 0, ack.capacity());
+        bh.consume(PacketType.lookup(codec.opcode()));
+        bh.consume(codec.blockNumber());
+    }
+
+    @Benchmark
+    public void decodeError(Blackhole bh) {
+        codec.wrap(error, 0, error.capacity());
+        bh.consume(PacketType.lookup(codec.opcode()));
+        bh.consume(codec.errorCode());
+        bh.consume(codec.errorMessage());
+    }
+}
@@ -0,0 +1,49 @@
+package tftp.udp.server.PacketClasses;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import tftp.udp.server.TFTPException;
+
+/**
+ * Opcode to packet type lookups, cycling through every opcode so the
+ * branch predictor cannot learn a single answer. In the same package as
+ * PacketType for its package-private fromOpcode.
+ *
+ * @author 184514
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Thread)
+public class PacketTypeBenchmark {
+
+    private short opcode;
+
+    /**
+     * Next opcode, 1 to 6 in turn.
+     */
+    private short next() {
+        opcode = (short) (opcode % 6 + 1);
+        return opcode;
+    }
+
+    @Benchmark
+    public PacketType fromOpcode() throws TFTPException {
+        return PacketType.fromOpcode(next());
+    }
+
+    @Benchmark
+    public PacketType lookup() {
+        return PacketType.lookup(next());
+    }
+}
@@ -0,0 +1,94 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tftp.udp.client.TFTPUDPClient;
+
+/**
+ * Whole transfers between the client and a server in the same JVM over
+ * loopback, timing the send and receive loops of both sides together. The
+ * server serves the benchmark's working directory, so the files it reads
+ * are written there before it starts. A file read more than a few times
+ * is served from the packet cache, as it would be by a real server.
+ *
+ * @author 184514
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Benchmark)
+public class TransferBenchmark {
+
+    //Directory, under the working directory, of the files transferred.
+    private static final String DIR = "tftp-bench";
+
+    @Param({"1024", "65536", "1048576"})
+    public int size;
+
+    private LoopbackServer server;
+    private TFTPUDPClient client;
+    private String readName, writeName;
+    private Path download, upload;
+
+    @Setup
+    public void setUp() throws IOException {
+        Files.createDirectories(Paths.get(DIR));
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        readName = DIR + "/read-" + size + ".bin";
+        writeName = DIR + "/write-" + size + ".bin";
+        Files.write(Paths.get(readName), content);
+        download = Paths.get(DIR, "download-" + size + ".bin");
+        upload = Paths.get(DIR, "upload-" + size + ".bin");
+        Files.write(upload, content);
+        server = LoopbackServer.start();
+        client = new TFTPUDPClient(server.getPort());
+        client.connect(new String[]{"connect", "127.0.0.1", Integer.toString(server.getPort())});
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    /**
+     * Checks a transfer moved the whole file, so a failed transfer is not timed as a fast one.
+     */
+    private long checkSize(Path file) throws IOException {
+        long length = Files.size(file);
+        if (length != size) {
+            throw new IOException(file + " has " + length + " bytes, expected " + size);
+        }
+        return length;
+    }
+
+    @Benchmark
+    public long rrq() throws IOException, tftp.udp.client.TFTPException {
+        client.grabFile(readName, download.toString());
+        return checkSize(download);
+    }
+
+    @Benchmark
+    public long wrq() throws IOException, tftp.udp.client.TFTPException {
+        client.sendFileToServer(upload.toString(), writeName);
+        return checkSize(Paths.get(writeName));
+    }
+}
@@ -0,0 +1,119 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import tftp.udp.client.TFTPUDPClient;
+
+/**
+ * Latency of reads served from the packet cache while a large upload runs
+ * alongside them, with the upload written through the page cache and with
+ * its tail written around it with direct I/O. A second client uploads the
+ * same large file over and over for the whole trial, so every timed read
+ * overlaps it. Sampled, so the percentiles show how far the upload's disk
+ * writes reach into the reads served from memory.
+ *
+ * @author 184514
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Dtftp.log.level=WARN")
+@State(Scope.Benchmark)
+public class UploadContentionBenchmark {
+
+    //Directory, under the working directory, of the files transferred.
+    private static final String DIR = "tftp-contention";
+    //Size of the file read from the cache, and of the upload running beside it.
+    private static final int READ_SIZE = 64 * 1024, UPLOAD_SIZE = 32 << 20;
+    //Reads made before measuring, enough for the file to be cached.
+    private static final int CACHE_READS = 5;
+
+    //Upload size after which the rest is written with direct I/O, -1 for never.
+    @Param({"-1", "1048576"})
+    public long directThreshold;
+
+    private LoopbackServer server;
+    private TFTPUDPClient reader;
+    private String readName;
+    private Path download;
+    private Thread uploader;
+    private volatile boolean uploading;
+    private volatile Exception uploadFailure;
+
+    @Setup
+    public void setUp() throws Exception {
+        Path dir = Paths.get(DIR);
+        Files.createDirectories(dir);
+        byte[] content = new byte[READ_SIZE];
+        new Random(READ_SIZE).nextBytes(content);
+        readName = DIR + "/hot.bin";
+        Files.write(Paths.get(readName), content);
+        download = dir.resolve("download.bin");
+        Path upload = dir.resolve("upload.bin");
+        byte[] large = new byte[UPLOAD_SIZE];
+        new Random(UPLOAD_SIZE).nextBytes(large);
+        Files.write(upload, large);
+        server = LoopbackServer.start();
+        server.getContext().setDirectThreshold(directThreshold);
+        reader = connect();
+        for (int i = 0; i < CACHE_READS; i++) {
+            reader.grabFile(readName, download.toString());
+        }
+        TFTPUDPClient writer = connect();
+        uploading = true;
+        uploader = new Thread(() -> {
+            try {
+                while (uploading) {
+                    writer.sendFileToServer(upload.toString(), DIR + "/uploaded.bin");
+                }
+            } catch (Exception ex) {
+                uploadFailure = ex;
+            }
+        }, "upload");
+        uploader.setDaemon(true);
+        uploader.start();
+    }
+
+    private TFTPUDPClient connect() {
+        TFTPUDPClient client = new TFTPUDPClient(server.getPort());
+        client.connect(new String[]{"connect", "127.0.0.1", Integer.toString(server.getPort())});
+        return client;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        uploading = false;
+        uploader.join();
+        server.shutdown();
+        if (uploadFailure != null) {
+            throw uploadFailure;
+        }
+    }
+
+    @Benchmark
+    public long cachedRrq() throws IOException, tftp.udp.client.TFTPException {
+        reader.grabFile(readName, download.toString());
+        long length = Files.size(download);
+        if (length != READ_SIZE) {
+            throw new IOException(download + " has " + length + " bytes, expected " + READ_SIZE);
+        }
+        return length;
+    }
+}
@@ -31,7 +31,7 @@ public class AckPacket extends TFTPPacket {
     public AckPacket(byte[] dataPacket, int len){
         ByteBuffer buffer = ByteBuffer.wrap(dataPacket);
         buffer.position(2);
-        this.blockNo = buffer.getInt();
+        this.blockNo = buffer.getShort();
         this.packetBytes = new byte[len];
         System.arraycopy(dataPacket, 0, packetBytes, 0, len);
     }
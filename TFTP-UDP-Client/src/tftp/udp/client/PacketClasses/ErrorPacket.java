@@ -27,6 +27,8 @@ public class ErrorPacket extends TFTPPacket {
         NO_USER(7, "No such user!");
         private int code;
         private String message;
+        //Error types indexed by code, so decoding an error does not copy values().
+        private static final ErrorCodes[] BY_CODE = values();
 
         ErrorCodes(int value, String message) {
             this.code = value;
@@ -42,6 +44,15 @@ public class ErrorPacket extends TFTPPacket {
             return code;
         }
 
+        /**
+         * Returns the standard message of the error.
+         *
+         * @return value stored in the variable message
+         */
+        public String getMessage() {
+            return message;
+        }
+
         /**
          * Returns the type of error using the error code given.
          *
@@ -50,10 +61,8 @@ public class ErrorPacket extends TFTPPacket {
          */
         public static ErrorCodes fromErrorCode(int code) {
             //If the error code given is between 1 and 7, returns error type.
-            for (ErrorCodes error : values()) {
-                if (error.code == code) {
-                    return error;
-                }
+            if (code >= 0 && code < BY_CODE.length) {
+                return BY_CODE[code];
             }
             //Else returns type undefined.
             return UNDEFINED;
@@ -0,0 +1,77 @@
+package tftp.udp.client.PacketClasses;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @author 184514
+ */
+public class OACKPacket extends TFTPPacket {
+
+    private final Map<String, String> options;
+    private final byte[] bytes;
+
+    /**
+     * Creates an Option Acknowledgement (OACK) Packet from the accepted options.
+     *
+     * @param options - Option names and values accepted by the server.
+     */
+    public OACKPacket(Map<String, String> options) {
+        this.options = Collections.unmodifiableMap(options);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0);
+        out.write(getPacketType().getOpcode());
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            byte[] name = option.getKey().getBytes(StandardCharsets.US_ASCII);
+            byte[] value = option.getValue().getBytes(StandardCharsets.US_ASCII);
+            out.write(name, 0, name.length);
+            out.write(0);
+            out.write(value, 0, value.length);
+            out.write(0);
+        }
+        this.bytes = out.toByteArray();
+    }
+
+    /**
+     * Creates an Option Acknowledgement (OACK) Packet from the raw byte data.
+     *
+     * @param dataInPacket - Data to be stored in the packet.
+     * @param len - Length of the packet.
+     */
+    public OACKPacket(byte[] dataInPacket, int len) {
+        this.options = Collections.unmodifiableMap(readOptions(dataInPacket, 2, len));
+        this.bytes = new byte[len];
+        System.arraycopy(dataInPacket, 0, this.bytes, 0, len);
+    }
+
+    /**
+     * Returns the accepted options.
+     *
+     * @return Map of option names to values
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+
+    /**
+     * Returns the packet data as raw bytes.
+     *
+     * @return byte array of packet data
+     */
+    @Override
+    public byte[] getPacketBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the type of packet. (OACK)
+     *
+     * @return packetType
+     */
+    @Override
+    public final PacketType getPacketType() {
+        return PacketType.OACK;
+    }
+}
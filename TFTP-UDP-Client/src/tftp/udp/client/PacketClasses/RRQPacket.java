@@ -2,6 +2,8 @@ package tftp.udp.client.PacketClasses;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author 184514
@@ -19,14 +21,32 @@ public class RRQPacket extends TFTPPacket {
      * @param filename - Name of the file to be written to.
      */
     public RRQPacket(String filename) {
+        this(filename, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Creates a Read Request (RRQ) Packet asking for options (RFC 2347).
+     *
+     * @param filename - Name of the file to be read.
+     * @param options - Option names and values to be sent after the mode.
+     */
+    public RRQPacket(String filename, Map<String, String> options) {
         this.fname = filename;
         byte[] fnameBytes = getBytes(filename);
         byte[] modBytes = getBytes(mode);
-        this.bytes = new byte[fnameBytes.length + modBytes.length + 2];
+        int len = fnameBytes.length + modBytes.length + 2;
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            len += getBytes(option.getKey()).length + getBytes(option.getValue()).length;
+        }
+        this.bytes = new byte[len];
         ByteBuffer buffer = ByteBuffer.wrap(this.bytes);
         buffer.putShort((short) getPacketType().getOpcode());
         buffer.put(fnameBytes);
         buffer.put(modBytes);
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            buffer.put(getBytes(option.getKey()));
+            buffer.put(getBytes(option.getValue()));
+        }
     }
 
     /**
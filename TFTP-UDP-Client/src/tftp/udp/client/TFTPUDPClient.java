@@ -12,10 +12,21 @@ import java.net.InetAddress;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
 import java.util.Scanner;
 
 import tftp.udp.client.PacketClasses.*;
+import tftp.udp.shared.FlightEvents;
+import tftp.udp.shared.Log;
+import tftp.udp.shared.PacketCodec;
 
 /**
  * @author 184514
@@ -30,6 +41,9 @@ public class TFTPUDPClient extends Thread {
     private final int PCKT_LEN = 516, DATA_LEN = 512, MAX_AMOUNT_TIMEOUTS = 15;
     //Random number again chosen for timeout length
     int TIMEOUT = 7000;
+    //Bytes of file data transferred by the current transfer, and its filename, for flight recorder events.
+    private long bytesDone;
+    private String transferFile;
 
     /**
      * Constructor makes a TFTPUDPClient with the port.
@@ -41,7 +55,9 @@ public class TFTPUDPClient extends Thread {
     }
 
     /**
-     * Grabs the file from server.
+     * Grabs the file from server. It is received into a hidden file beside
+     * the local file, which only replaces it once the whole file has arrived
+     * and matched its digest, and is deleted otherwise.
      *
      * @param serverFile - server file path
      * @param localFile - local file path
@@ -52,18 +68,61 @@ public class TFTPUDPClient extends Thread {
         DatagramSocket sckt = new DatagramSocket();
         //Enables SO_TIMEOUT with the specified timeout, (7000) in milliseconds.
         sckt.setSoTimeout(TIMEOUT);
+        bytesDone = 0;
+        transferFile = serverFile;
+        Object session = FlightEvents.begin(FlightEvents.SESSION);
+        Path target = Paths.get(localFile).toAbsolutePath();
+        Path part = null;
+        boolean moved = false;
         try {
-            FileOutputStream fileOS = new FileOutputStream(localFile);
-            receiveFile(sckt, new RRQPacket(serverFile), serversAddress, serversPort, fileOS);
+            part = createPart(target);
+            boolean received;
+            try (FileOutputStream fileOS = new FileOutputStream(part.toFile())) {
+                //Asks for the file's SHA-256, so it can be verified while it is received.
+                received = receiveFile(sckt, new RRQPacket(serverFile, Collections.singletonMap("sha256", "0")), serversAddress, serversPort, fileOS);
+            }
+            if (received) {
+                try {
+                    Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException ex) {
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                moved = true;
+            }
         //if the file isnt found, thrown the file not found exception, along with creating an error packet.
         } catch (FileNotFoundException ex) {
             ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.FILE_NOT_FOUND, "Can't write to: " + localFile);
             //.send called sending error packet
             sckt.send(toDatagramPacket(errorPacket, serversAddress, serversPort));
+        } finally {
+            //The socket and file are released after every transfer, so repeated transfers do not run out of descriptors.
+            sckt.close();
+            //A transfer which failed, timed out or did not match its digest leaves the local file as it was.
+            if (part != null && !moved) {
+                Files.deleteIfExists(part);
+            }
+            if (session != null) {
+                FlightEvents.commit(session, "read", serverFile, serversAddress + ":" + serversPort, bytesDone);
+            }
         }
 
     }
 
+    /**
+     * Creates the hidden file a download is received into, beside the local file.
+     *
+     * @param target - Local file the download will replace.
+     * @return the new, empty file
+     * @throws FileNotFoundException thrown when the local file's directory cannot be written to
+     */
+    private static Path createPart(Path target) throws FileNotFoundException {
+        try {
+            return Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", ".part");
+        } catch (IOException ex) {
+            throw new FileNotFoundException(target + ": " + ex.getMessage());
+        }
+    }
+
     /**
      * Receives the file from server.
      *
@@ -72,80 +131,103 @@ public class TFTPUDPClient extends Thread {
      * @param serverAdress - Server serverAdress
      * @param port - Destination
      * @param fileos - File output stream used to write to the server
-     * @throws TFTPException thrown when timeout limit reached (7000)
+     * @return true once the final block has been received, false if the server sent an error or stopped answering
+     * @throws TFTPException thrown when timeout limit reached (7000), or the file does not match its digest
      */
-    public void receiveFile(DatagramSocket sckt, TFTPPacket initialPacket, InetAddress serverAdress, int port, FileOutputStream fileOS) throws TFTPException {
-        System.out.println("***Receive file***");
-        System.out.println("Buffer created.");
-        System.out.println("Datagram created.");
+    public boolean receiveFile(DatagramSocket sckt, TFTPPacket initialPacket, InetAddress serverAdress, int port, FileOutputStream fileOS) throws TFTPException {
+        Log.debug("***Receive file*** {}", transferFile);
         boolean isInitial = true;
-        TFTPPacket packetToSend;
         short ackNum = 0, timeouts = 0;
+        //Digest sent by the server in its OACK, checked against the data as it is written.
+        String expectedDigest = null;
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new TFTPException("SHA-256 is not available");
+        }
+        //Byte Array (Buffer) set to size of packet length (516). Buffers and datagrams are created once and reused for every block.
+        byte[] receiveBuffer = new byte[PCKT_LEN];
+        DatagramPacket rcvDatagram = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+        byte[] ackBuffer = new byte[PacketCodec.HEADER_LEN];
+        ByteBuffer receiveView = ByteBuffer.wrap(receiveBuffer), ackView = ByteBuffer.wrap(ackBuffer);
+        PacketCodec codec = new PacketCodec();
+        DatagramPacket ackDatagram = new DatagramPacket(ackBuffer, ackBuffer.length, serverAdress, port);
+        DatagramPacket initialDatagram = toDatagramPacket(initialPacket, serverAdress, port);
         //Always executes this until timeout limit reached.
         while (true) {
-            //Byte Array (Buffer) set to size of packet length (516). Buffer Created.
-            byte[] receiveBuffer = new byte[PCKT_LEN];
-            //Datagram Packet Created.
-            DatagramPacket rcvDatagram = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-            //If the packet is the first (initial)
-            if (isInitial) {
-                System.out.println("First packet!");
-                packetToSend = initialPacket;
-            } else {
-                System.out.println("Not the first packet! ");
-                //If not the first packet, an acknowledgment packet is created to be sent.
-                packetToSend = new AckPacket(ackNum);
-            }
+            //The request is sent first, after that the ACK of the last block received.
+            DatagramPacket datagramToSend = isInitial ? initialDatagram : ackDatagram;
+            PacketCodec.encodeAck(ackView, 0, ackNum);
             //As long as number of timeouts is less than the maximum (15)
             while (timeouts < MAX_AMOUNT_TIMEOUTS) {
                 try {
                     //Datagram sent by the socket and waits for response.
-                    sckt.send(toDatagramPacket(packetToSend, serverAdress, port));
-                    System.out.println("Datagram sent by the socket.");
+                    sckt.send(datagramToSend);
+                    Log.tracePacket("ACK sent to {} block {}, {} bytes", serverAdress, ackNum & 0xffff, datagramToSend.getLength());
+                    if (timeouts > 0 && FlightEvents.isRecording()) {
+                        FlightEvents.emit(FlightEvents.RETRANSMIT, transferFile, ackNum & 0xffff, (int) timeouts, (long) TIMEOUT);
+                    }
+                    Object stall = FlightEvents.begin(FlightEvents.STALL);
                     try {
-                        System.out.println("Waiting to receive response");
+                        rcvDatagram.setLength(receiveBuffer.length);
                         sckt.receive(rcvDatagram);
-                        System.out.println("Socket Received Datagram!");
                     } catch (SocketTimeoutException timeout) {
                         ++timeouts;
+                        if (FlightEvents.isRecording()) {
+                            FlightEvents.emit(FlightEvents.TIMEOUT, transferFile, (ackNum + 1) & 0xffff, (int) timeouts, (long) TIMEOUT);
+                        }
                         /*If timeout occurs, attempt to resend the packet, 
                         while incrementing number of timeouts. */
-                        System.out.println("Timeout occured!, Now resending the packet.");
+                        Log.debug("Timeout occured after block {}!, Now resending the packet.", ackNum & 0xffff);
                         continue;
                     }
-                    System.out.println("No Timeout has occurred.");
-                    if (ackNum == 0) {
-                        //If ackNum is still 0, get the port of datagram.
+                    if (stall != null) {
+                        FlightEvents.commit(stall, transferFile, (ackNum + 1) & 0xffff);
+                    }
+                    if (isInitial) {
+                        //Until the transfer starts, get the port of datagram.
                         port = rcvDatagram.getPort();
-                        System.out.println("Got the port: " + port);
+                        ackDatagram.setPort(port);
+                        Log.debug("Got the port: {}", port);
                     }
-                    //Creates a TFTP Packet named pkt.
-                    TFTPPacket pkt;
-                    pkt = fromDatagramPacket(rcvDatagram);
+                    //The packet is decoded in place where it was received, only OACKs are turned into packet objects.
+                    PacketType type = PacketType.lookup(codec.wrap(receiveView, 0, rcvDatagram.getLength()).opcode());
                     //If the packet is an error packet, prints error message!
-                    if (pkt instanceof ErrorPacket) {
-                        System.out.println(((ErrorPacket) pkt).getErrorMessage());
-                        return;
-                    } else if (pkt instanceof DataPacket) {
+                    if (type == PacketType.ERROR) {
+                        Log.warn("Server sent an error: {}", codec.errorMessage());
+                        return false;
+                    } else if (type == PacketType.OACK && ackNum == 0) {
+                        //The server accepted options, acknowledged as block 0 before the data starts.
+                        OACKPacket oack = (OACKPacket) fromDatagramPacket(rcvDatagram);
+                        expectedDigest = oack.getOptions().get("sha256");
+                        Log.info("Options accepted: {}", oack.getOptions());
+                        isInitial = false;
+                        break;
+                    } else if (type == PacketType.DATA) {
                         //Else if the packet received is a data packet (What we want.)
-                        System.out.println("Data Packet has been received!!");
-                        //Creates a data packet.
-                        DataPacket datapkt = (DataPacket) pkt;
-                        if (datapkt.getBlockNumber() == (ackNum + 1)) {
-                            System.out.println("Writing to the Data Packet.");
-                            fileOS.write(datapkt.getPacketBytes(), DataPacket.DATA_OFFSET, datapkt.getPacketLength());
-                            System.out.println("Acknowledgment number incremented.");
+                        int dataLen = codec.payloadLength();
+                        Log.tracePacket("DATA received from {} block {}, {} bytes", serverAdress, codec.blockNumber() & 0xffff, rcvDatagram.getLength());
+                        //Block numbers wrap after 65535.
+                        if (codec.blockNumber() == (short) (ackNum + 1)) {
+                            Object write = FlightEvents.begin(FlightEvents.DISK_WRITE);
+                            fileOS.write(receiveBuffer, DataPacket.DATA_OFFSET, dataLen);
+                            if (write != null) {
+                                FlightEvents.commit(write, transferFile, (ackNum + 1) & 0xffff, dataLen);
+                            }
+                            digest.update(receiveBuffer, DataPacket.DATA_OFFSET, dataLen);
                             ackNum++;
+                            bytesDone += dataLen;
                             //As first packet has been received, following can no longer be initial packet.
                             isInitial = false;
                             //Checks if the data packet is the final packet (less than 512).
-                            if (datapkt.isFinalPacket()) {
-                                System.out.println("Data Packet is Final packet!");
-                                packetToSend = new AckPacket(ackNum);
-                                System.out.println("Created a New packet to send.");
-                                sckt.send(toDatagramPacket(packetToSend, serverAdress, port));
-                                System.out.println("Send method called! Sending AckPacket.");
-                                return;
+                            if (dataLen < DATA_LEN) {
+                                Log.debug("Data Packet is Final packet!");
+                                PacketCodec.encodeAck(ackView, 0, ackNum);
+                                sckt.send(ackDatagram);
+                                Log.info("Received {}, {} bytes", transferFile, bytesDone);
+                                verifyDigest(expectedDigest, digest.digest());
+                                return true;
                             }
                             break;
                         }
@@ -153,21 +235,42 @@ public class TFTPUDPClient extends Thread {
                 } catch (IOException e) {
                     //If IOException, send error packet.
                     ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.UNDEFINED, "Invalid Packet.");
-                    //Prints the error message, so the error can be known.
-                    System.out.println(errorPacket.getErrorMessage());
+                    //Logs the error message, so the error can be known.
+                    Log.warn("{} {}", errorPacket.getErrorMessage(), e.getMessage());
                 }
             }
             //If the maximum amount of timeouts is reached.
             if (timeouts == MAX_AMOUNT_TIMEOUTS) {
-                //Prints limit reached message.
-                System.out.println("Timeout limit has been reached.");
+                //Logs limit reached message.
+                Log.warn("Timeout limit has been reached.");
                 //Breaks about of while(true) loop.
-                return;
+                return false;
             }
         }
 
     }
 
+    /**
+     * Checks the received data against the digest the server sent.
+     *
+     * @param expected - SHA-256 sent by the server in hex, or null if it sent none.
+     * @param actual - SHA-256 of the data received.
+     * @throws TFTPException thrown when the two do not match
+     */
+    private void verifyDigest(String expected, byte[] actual) throws TFTPException {
+        if (expected == null) {
+            return;
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : actual) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        if (!expected.equalsIgnoreCase(hex.toString())) {
+            throw new TFTPException("Received file does not match its digest: expected " + expected + " got " + hex);
+        }
+        Log.info("Digest verified: {}", hex);
+    }
+
     /**
      * Sends the file to the server.
      *
@@ -181,13 +284,21 @@ public class TFTPUDPClient extends Thread {
         //Creates a socket (sckt) and sets the timeout to 7000ms
         DatagramSocket sckt = new DatagramSocket();
         sckt.setSoTimeout(TIMEOUT);
+        bytesDone = 0;
+        transferFile = serverFile;
+        Object session = FlightEvents.begin(FlightEvents.SESSION);
         try (FileInputStream fis = new FileInputStream(localFile)) {
             //Sends to the server a new Write Request packet.
             sendToServer((short) 0, new WRQPacket(serverFile), fis, sckt, serversAddress, serversPort);
         } catch (FileNotFoundException ex) {
             //Error packet sent if the file cannot be found, along with the error message.
             ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.FILE_NOT_FOUND, "File " + localFile + " cannot be found!");
-            System.out.println(errorPacket.getErrorMessage());
+            Log.warn(errorPacket.getErrorMessage());
+        } finally {
+            sckt.close();
+            if (session != null) {
+                FlightEvents.commit(session, "write", serverFile, serversAddress + ":" + serversPort, bytesDone);
+            }
         }
     }
 
@@ -231,91 +342,103 @@ public class TFTPUDPClient extends Thread {
      * @throws TFTPException is thrown when timeout limit reached (15 timeouts)
      */
     public void sendToServer(short firstPacketBlockNo, TFTPPacket initialPacket, FileInputStream fileis, DatagramSocket sckt, InetAddress address, int port) throws IOException, TFTPException {
-        //Packet to send is created, block number set to the initial packets block number.
-        TFTPPacket pcktToSend;
+        //Buffers and datagrams are created once and reused for every block.
+        byte[] rcvBuffer = new byte[PCKT_LEN];
+        byte[] sendBuffer = new byte[PCKT_LEN];
+        DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        DatagramPacket sendDatagram = new DatagramPacket(sendBuffer, 0, address, port);
+        ByteBuffer rcvView = ByteBuffer.wrap(rcvBuffer), sendView = ByteBuffer.wrap(sendBuffer);
+        PacketCodec codec = new PacketCodec();
         boolean isInitialPckt = true;
         short blockNo = firstPacketBlockNo;
         int previousPcktLen = DATA_LEN;
         int bytesRead;
         //While not timedout.
         while (true) {
-            //Buffers created using constants.
-            byte[] rcvBuffer = new byte[PCKT_LEN];
-            byte[] fileBuffer = new byte[DATA_LEN];
-            FileInputStream fileIS = fileis;
             //If the packet is the first packet. Send this to be the packet to send.
             if (isInitialPckt) {
-                System.out.println("First Packet!");
-                pcktToSend = initialPacket;
+                Log.debug("First Packet!");
+                sendDatagram.setData(initialPacket.getPacketBytes());
                 //If the initial packet is a data packet, sets the previous pckt length to this packets length.
                 if (initialPacket instanceof DataPacket) {
                     previousPcktLen = ((DataPacket) initialPacket).getPacketLength();
                 }
             } else {
-                //Else reads the file buffer and prints the bytes read.
-                System.out.println("Reading the file buffer.");
-                bytesRead = fileIS.read(fileBuffer);
-                System.out.println("Bytes read from the file buffer: " + bytesRead);
-                //If the bytes read returns -1, prints previous pckt lenghth and data length.
+                //Else reads the next block straight into the send buffer, after the DATA header.
+                Object read = FlightEvents.begin(FlightEvents.DISK_READ);
+                bytesRead = fileis.read(sendBuffer, DataPacket.DATA_OFFSET, DATA_LEN);
+                if (read != null) {
+                    FlightEvents.commit(read, transferFile, blockNo & 0xffff, Math.max(0, bytesRead));
+                }
+                //If the bytes read returns -1, the file has ended.
                 if (bytesRead == -1) {
-                    System.out.println("Prevoius Packet Length: " + previousPcktLen);
-                    System.out.println("Data Length: " + DATA_LEN);
                     if (previousPcktLen == DATA_LEN) {
-                        //if they are equal sets bytes read to 0, as none read.
+                        //A file of whole blocks ends with an empty block.
                         bytesRead = 0;
                     } else {
                         //otherwise exits while(true)
                         break;
                     }
                 }
-                //Prints the block number and bytes read, as used to create new data packet to send.
-                System.out.println("Block Number: " + blockNo + " bytes read: " + bytesRead + " Data Packet Created.");
-                pcktToSend = new DataPacket(blockNo, fileBuffer, bytesRead);
-                DataPacket dataPacket = (DataPacket) pcktToSend;
+                PacketCodec.encodeDataHeader(sendView, 0, blockNo);
+                sendDatagram.setData(sendBuffer, 0, bytesRead + DataPacket.DATA_OFFSET);
                 previousPcktLen = bytesRead;
             }
+            sendDatagram.setPort(port);
             //Initialises the amount of current timeouts to be compared with max amount.
             int timeouts = 0;
-            //Creates a new Datagram packet using the receive buffer and its length.
-            DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
-            System.out.println("New datagram packet created");
+            boolean resend = true;
             //While number ofm timeouts is less than 15.
             while (timeouts < MAX_AMOUNT_TIMEOUTS) {
-                //Prints the number of current timeouts and calls the send method.
-                System.out.println("Number of timeouts: " + timeouts);
-                sckt.send(toDatagramPacket(pcktToSend, address, port));
-                System.out.println("Method send called!");
+                if (resend) {
+                    sckt.send(sendDatagram);
+                    Log.tracePacket("Packet sent to {} block {}, {} bytes", address, blockNo & 0xffff, sendDatagram.getLength());
+                    if (timeouts > 0 && FlightEvents.isRecording()) {
+                        FlightEvents.emit(FlightEvents.RETRANSMIT, transferFile, blockNo & 0xffff, timeouts, (long) TIMEOUT);
+                    }
+                }
+                resend = true;
                 //Waits for and receives response.
+                Object stall = FlightEvents.begin(FlightEvents.STALL);
                 try {
-                    System.out.println("Waiting for a response.");
+                    rcvDatagram.setLength(rcvBuffer.length);
                     sckt.receive(rcvDatagram);
-                    System.out.println("Response received!");
                 } catch (SocketTimeoutException timeout) {
                     //If a timeout occurs, increments number of timeouts.
-                    System.out.println("A Timeout has occured! Now resending!");
+                    Log.debug("A Timeout has occured on block {}! Now resending!", blockNo & 0xffff);
                     timeouts++;
+                    if (FlightEvents.isRecording()) {
+                        FlightEvents.emit(FlightEvents.TIMEOUT, transferFile, blockNo & 0xffff, timeouts, (long) TIMEOUT);
+                    }
                     continue;
                 }
-                //If the blockNo is the same as the first packet's block number, print the Port.
+                if (stall != null) {
+                    FlightEvents.commit(stall, transferFile, blockNo & 0xffff);
+                }
+                //If the blockNo is the same as the first packet's block number, take the server's port.
                 if (blockNo == firstPacketBlockNo) {
                     port = rcvDatagram.getPort();
-                    System.out.println("Block Number equal to the first packet's block number!");
-                    System.out.println("The port: " + port);
+                    sendDatagram.setPort(port);
+                    Log.debug("The port: {}", port);
                 }
-                //Creatres new TFTP Packet from the Datagram.
-                TFTPPacket rcvPackt = fromDatagramPacket(rcvDatagram);
-                System.out.println("A TFTPPacket created using the Datagram Packet.");
-                //If of packet type = Error, Creates Error packet & prints the error message.
-                if (rcvPackt instanceof ErrorPacket) {
-                    System.out.println(((ErrorPacket) rcvPackt).getErrorMessage());
+                //The reply is decoded in place where it was received.
+                PacketType type = PacketType.lookup(codec.wrap(rcvView, 0, rcvDatagram.getLength()).opcode());
+                //If of packet type = Error, prints the error message.
+                if (type == PacketType.ERROR) {
+                    Log.warn("Server sent an error: {}", codec.errorMessage());
                     return;
-                //Otherwise, if its of type = ACK, Creates ACK Packet & prints Block number.
-                } else if (rcvPackt instanceof AckPacket) {
-                    System.out.println("Packet is of type: ACK");
-                    AckPacket rcvdAck = (AckPacket) rcvPackt;
-                    System.out.println("Block number is: " + blockNo);
-                    System.out.println("Ack Packet block number is: " + rcvdAck.getBlockNo());
+                //Otherwise, if its of type = ACK, moves on to the next block.
+                } else if (type == PacketType.ACK) {
+                    Log.tracePacket("ACK received from {} block {}, {} bytes", address, codec.blockNumber() & 0xffff, rcvDatagram.getLength());
+                    if (codec.blockNumber() != blockNo) {
+                        //A late duplicate ACK of an earlier block, wait for this one's ACK without sending it again.
+                        resend = false;
+                        continue;
+                    }
                     //No more packets can now be the intial packet.
+                    if (!isInitialPckt) {
+                        bytesDone += previousPcktLen;
+                    }
                     isInitialPckt = false;
                     blockNo++;
                     break;
@@ -323,7 +446,7 @@ public class TFTPUDPClient extends Thread {
             }
             //If the number of timeouts has hit the max.
             if (timeouts == MAX_AMOUNT_TIMEOUTS) {
-                System.out.println("Timeout limit (15) has been reached!");
+                Log.warn("Timeout limit (15) has been reached!");
                 return;
             }
 
@@ -372,7 +495,8 @@ public class TFTPUDPClient extends Thread {
         System.out.println("Enter 'help' for a list of the available commands!");
         //Until quit command is called.
         while (true) {
-            //used as a splitter for readability.
+            //Messages from the last command are written before the prompt, which is used as a splitter for readability.
+            Log.flush();
             System.out.println(">>");
             String line = scanner.nextLine();
             String[] args = line.split(" ");
@@ -0,0 +1,255 @@
+package tftp.udp.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import tftp.udp.shared.Log;
+
+/**
+ * Per-file request counts and bytes served, flushed to a small binary log so
+ * they survive restarts. At startup the log is used to warm the most
+ * requested files before the server starts listening.
+ *
+ * @author 184514
+ */
+public class AccessLog {
+
+    //Log format version, most files tracked, and how often the log is flushed.
+    private static final int VERSION = 1, MAX_FILES = 100000;
+    private static final long FLUSH_SECONDS = 60, HOUR_MS = 60 * 60 * 1000;
+
+    private final Path logFile, tmpFile;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final Set<String> warmed = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AtomicLong firstHourRequests = new AtomicLong(), firstHourHits = new AtomicLong();
+    private final long startedAt = System.currentTimeMillis();
+    private volatile long warmMillis = -1;
+
+    /**
+     * Requests and bytes served for a single file.
+     */
+    static class Stats {
+
+        final AtomicLong requests = new AtomicLong(), bytes = new AtomicLong();
+    }
+
+    /**
+     * Creates an access log and loads any counts left by a previous run.
+     *
+     * @param logFile - File the counts are kept in.
+     */
+    public AccessLog(Path logFile) {
+        this.logFile = logFile;
+        this.tmpFile = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+        load();
+    }
+
+    /**
+     * Returns the files the log is kept in, the one it is written to before being renamed included.
+     *
+     * @return the log's files
+     */
+    public List<Path> getFiles() {
+        return Arrays.asList(logFile, tmpFile);
+    }
+
+    /**
+     * Starts flushing the log in the background and on shutdown, and reports the first hour's hit rate.
+     */
+    public void start() {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tftp-access-log");
+            t.setDaemon(true);
+            return t;
+        });
+        flusher.scheduleWithFixedDelay(this::flush, FLUSH_SECONDS, FLUSH_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flush, "tftp-access-log-flush"));
+        flusher.schedule(() -> Log.info("First hour: {} requests, warm hit rate {}", firstHourRequests.get(),
+                String.format("%.1f%%", getFirstHourHitRate() * 100)), HOUR_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a request for a file which was found.
+     *
+     * @param filename - Requested filename.
+     */
+    public void recordRequest(String filename) {
+        Stats s = stats.get(filename);
+        if (s == null && stats.size() < MAX_FILES) {
+            s = stats.computeIfAbsent(filename, k -> new Stats());
+        }
+        if (s != null) {
+            s.requests.incrementAndGet();
+        }
+        if (System.currentTimeMillis() - startedAt < HOUR_MS) {
+            firstHourRequests.incrementAndGet();
+            if (warmed.contains(filename)) {
+                firstHourHits.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Records the bytes sent by a finished transfer.
+     *
+     * @param filename - Requested filename.
+     * @param bytes - Number of bytes sent.
+     */
+    public void recordBytes(String filename, long bytes) {
+        Stats s = stats.get(filename);
+        if (s != null) {
+            s.bytes.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Warms the most requested files, in order, until the budget is used.
+     * Files which fit are encoded into the packet cache, larger ones are
+     * mapped and loaded into the page cache.
+     *
+     * @param packetCache - Cache the hottest files are loaded into.
+     * @param blockSize - Block size to encode the files with.
+     * @param topN - Most files to warm.
+     * @param budgetBytes - Most bytes to read while warming.
+     */
+    public void warm(DataPacketCache packetCache, int blockSize, int topN, long budgetBytes) {
+        long start = System.nanoTime(), used = 0;
+        List<Map.Entry<String, Stats>> ranked = new ArrayList<>(stats.entrySet());
+        ranked.sort((a, b) -> Long.compare(b.getValue().requests.get(), a.getValue().requests.get()));
+        for (Map.Entry<String, Stats> e : ranked.subList(0, Math.min(topN, ranked.size()))) {
+            String filename = e.getKey();
+            long size;
+            try {
+                size = packetCache.preload(filename, blockSize, budgetBytes - used);
+                if (size < 0) {
+                    size = mapAndLoad(Paths.get(filename), budgetBytes - used);
+                }
+            } catch (InvalidPathException ex) {
+                continue;
+            }
+            if (size >= 0) {
+                used += size;
+                warmed.add(filename);
+            }
+        }
+        warmMillis = (System.nanoTime() - start) / 1000000;
+        Log.info("Warmed {} files, {} bytes in {}ms", warmed.size(), used, warmMillis);
+    }
+
+    /**
+     * Maps a file and loads it into the page cache, if it fits the budget.
+     *
+     * @return Size of the file, or -1 if it was not loaded.
+     */
+    private long mapAndLoad(Path file, long budget) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > budget || size > Integer.MAX_VALUE) {
+                return -1;
+            }
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, size).load();
+            return size;
+        } catch (IOException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns how long the last warm-up took.
+     *
+     * @return time to warm in milliseconds, or -1 if no warm-up has run
+     */
+    public long getWarmMillis() {
+        return warmMillis;
+    }
+
+    /**
+     * Returns the share of requests in the first hour which were for warmed files.
+     *
+     * @return hit rate between 0 and 1
+     */
+    public double getFirstHourHitRate() {
+        long requests = firstHourRequests.get();
+        return requests == 0 ? 0 : (double) firstHourHits.get() / requests;
+    }
+
+    /**
+     * Writes the counts to the log, replacing it in a single rename.
+     */
+    public void flush() {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Stats> e : stats.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().requests.get());
+                out.writeLong(e.getValue().bytes.get());
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Access log not flushed", ex);
+            return;
+        }
+        try {
+            Files.move(tmpFile, logFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            try {
+                Files.move(tmpFile, logFile, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex2) {
+                Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Access log not flushed", ex2);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Access log not flushed", ex);
+        }
+    }
+
+    /**
+     * Reads the counts left by a previous run, if there are any.
+     */
+    private void load() {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            while (stats.size() < MAX_FILES) {
+                String filename;
+                try {
+                    filename = in.readUTF();
+                } catch (EOFException end) {
+                    return;
+                }
+                Stats s = new Stats();
+                s.requests.set(in.readLong());
+                s.bytes.set(in.readLong());
+                stats.put(filename, s);
+            }
+        } catch (NoSuchFileException ex) {
+            //First run, nothing to load.
+        } catch (IOException ex) {
+            Logger.getLogger(AccessLog.class.getName()).log(Level.WARNING, "Access log could not be read", ex);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package tftp.udp.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Command loop on the server's standard input for looking at transfers in
+ * progress. "top" lists the live sessions and refreshes once a second until
+ * a line is entered, and "cancel" stops a session. The console only reads
+ * session snapshots, so using it never slows a transfer down. It is only
+ * started with -console, as a background job reading the terminal is
+ * stopped by the shell (SIGTTIN) and takes the server with it.
+ *
+ * @author 184514
+ */
+public class AdminConsole extends Thread {
+
+    //Time between refreshes of top, and between checks for a line ending it.
+    private final long REFRESH_MS = 1000, POLL_MS = 50;
+    private final SessionRegistry sessions;
+    private final BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+    //Bytes done by each session at the last refresh, and when it was, for the current rates.
+    private Map<Long, Long> lastBytes = new HashMap<>();
+    private long lastRefresh;
+
+    /**
+     * @param sessions - Sessions in progress.
+     */
+    public AdminConsole(SessionRegistry sessions) {
+        super("tftp-admin");
+        this.sessions = sessions;
+        setDaemon(true);
+    }
+
+    /**
+     * Reads commands until standard input ends.
+     */
+    @Override
+    public void run() {
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                String[] args = line.trim().split("\\s+");
+                switch (args[0]) {
+                    case "":
+                        break;
+                    //Lists the sessions once.
+                    case "sessions":
+                        print(args.length > 1 ? args[1] : "age", false);
+                        break;
+                    //Lists the sessions every second until a line is entered.
+                    case "top":
+                        top(args.length > 1 ? args[1] : "rate");
+                        break;
+                    case "cancel":
+                        if (args.length < 2) {
+                            System.out.println("cancel [session id]");
+                            break;
+                        }
+                        try {
+                            long id = Long.parseLong(args[1]);
+                            System.out.println(sessions.cancel(id) ? "Session " + id + " cancelled" : "No session " + id);
+                        } catch (NumberFormatException nfe) {
+                            System.out.println("Invalid session id: " + args[1]);
+                        }
+                        break;
+                    case "help":
+                        System.out.println("\n*************************************\n*********** Admin Commands **********\n*************************************");
+                        System.out.println("top [sort] - live sessions, refreshed every second until Enter");
+                        System.out.println("sessions [sort] - live sessions once");
+                        System.out.println("  sort by: rate, rtt, retx, age, done, id");
+                        System.out.println("cancel [id] - stop a session and release its file");
+                        System.out.println("*************************************");
+                        break;
+                    default:
+                        System.out.println("Unrecognised command! Enter 'help' for list of commands!");
+                        break;
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(AdminConsole.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Refreshes the session list every second until a line is entered.
+     */
+    private void top(String sort) throws IOException {
+        while (true) {
+            //Clears the terminal and moves to its top left corner.
+            System.out.print("\033[H\033[2J");
+            print(sort, true);
+            System.out.println("Press Enter to stop");
+            long until = System.currentTimeMillis() + REFRESH_MS;
+            while (System.currentTimeMillis() < until) {
+                if (input.ready()) {
+                    input.readLine();
+                    return;
+                }
+                try {
+                    Thread.sleep(POLL_MS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Prints a table of the sessions in progress.
+     *
+     * @param sort - Column to sort by, largest first except for id.
+     * @param current - Whether rates are since the last refresh, rather than since each session started.
+     */
+    private void print(String sort, boolean current) {
+        List<Session.Snapshot> snapshots = sessions.snapshot();
+        long now = System.nanoTime();
+        double elapsed = (now - lastRefresh) / 1e9;
+        Map<Long, Double> rates = new HashMap<>();
+        Map<Long, Long> bytes = new HashMap<>();
+        for (Session.Snapshot s : snapshots) {
+            Long before = current ? lastBytes.get(s.id) : null;
+            //A session new since the last refresh is shown at its average rate.
+            rates.put(s.id, before != null ? (s.bytesDone - before) / elapsed : s.bytesDone / Math.max(s.ageNanos / 1e9, 1e-3));
+            bytes.put(s.id, s.bytesDone);
+        }
+        lastBytes = bytes;
+        lastRefresh = now;
+        Comparator<Session.Snapshot> order;
+        switch (sort.toLowerCase(Locale.ROOT)) {
+            case "rtt":
+                order = Comparator.comparingLong(s -> -s.rttNanos);
+                break;
+            case "retx":
+                order = Comparator.comparingInt(s -> -s.retransmits);
+                break;
+            case "age":
+                order = Comparator.comparingLong(s -> -s.ageNanos);
+                break;
+            case "done":
+                order = Comparator.comparingLong(s -> -s.blocksDone);
+                break;
+            case "id":
+                order = Comparator.comparingLong(s -> s.id);
+                break;
+            default:
+                order = Comparator.comparingDouble(s -> -rates.get(s.id));
+                break;
+        }
+        snapshots.sort(order);
+        System.out.println(snapshots.size() + " sessions, sorted by " + sort);
+        System.out.println(String.format("%6s %-5s %-21s %-24s %15s %10s %8s %5s %7s",
+                "ID", "DIR", "CLIENT", "FILE", "BLOCKS", "KB/S", "RTT MS", "RETX", "AGE S"));
+        for (Session.Snapshot s : snapshots) {
+            String blocks = s.blocksDone + "/" + (s.totalBlocks < 0 ? "?" : Long.toString(s.totalBlocks));
+            String file = s.filename.length() > 24 ? "..." + s.filename.substring(s.filename.length() - 21) : s.filename;
+            System.out.println(String.format(Locale.ROOT, "%6d %-5s %-21s %-24s %15s %10.1f %8.2f %5d %7.1f",
+                    s.id, s.direction, s.client, file, blocks, rates.get(s.id) / 1024, s.rttNanos / 1e6, s.retransmits, s.ageNanos / 1e9));
+        }
+    }
+}
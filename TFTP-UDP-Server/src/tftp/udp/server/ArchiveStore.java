@@ -0,0 +1,291 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Read-only namespace served straight out of a zip or jar archive. The
+ * central directory is indexed once when the archive is mounted and the
+ * archive is mapped into memory. Stored entries are served from slices of the
+ * mapping, deflated entries are inflated as they are sent, and small deflated
+ * entries are kept inflated in a bounded cache.
+ *
+ * @author 184514
+ */
+public class ArchiveStore implements FileProvider {
+
+    //Zip record signatures and compression methods.
+    private static final int EOCD_SIG = 0x06054b50, CEN_SIG = 0x02014b50, LOC_SIG = 0x04034b50, ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int STORED = 0, DEFLATED = 8;
+    //Largest entry kept inflated, and the total kept inflated.
+    private static final long CACHE_ENTRY_MAX = 1L << 20, CACHE_BUDGET = 32L << 20;
+
+    private final Path path;
+    private final MappedByteBuffer mapping;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final LinkedHashMap<String, byte[]> inflated = new LinkedHashMap<>(16, 0.75f, true);
+    private long inflatedBytes = 0;
+
+    /**
+     * A file within the archive.
+     */
+    public class Entry {
+
+        final String name;
+        final int method;
+        final long compressedSize, size, localHeaderOffset;
+
+        Entry(String name, int method, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /**
+         * Returns the uncompressed size of the entry.
+         *
+         * @return size in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Opens the entry for sending.
+         *
+         * @param blockSize - Number of payload bytes per DATA packet.
+         * @return Block source over the entry's content.
+         * @throws IOException is thrown when the entry is corrupt or uses an unsupported method.
+         */
+        public DataBlockSource open(int blockSize) throws IOException {
+            ByteBuffer raw = rawData(this);
+            if (method == STORED) {
+                return new ByteBufferBlockSource(raw, blockSize);
+            }
+            byte[] cached = cachedInflate(this, raw);
+            if (cached != null) {
+                return new ByteBufferBlockSource(ByteBuffer.wrap(cached), blockSize);
+            }
+            //An inflater given to the stream is not ended by it, so closing the stream ends it here.
+            final Inflater inflater = new Inflater(true);
+            InputStream in = new InflaterInputStream(new ByteBufferInputStream(raw), inflater, blockSize) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+            return new StreamBlockSource(in, blockSize);
+        }
+    }
+
+    /**
+     * Mounts an archive, mapping it and indexing its central directory.
+     *
+     * @param path - Path of the zip or jar file.
+     * @throws IOException is thrown when the archive cannot be read or is not a valid zip.
+     */
+    public ArchiveStore(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Archives over 2GB are not supported: " + path);
+            }
+            this.mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapping.order(ByteOrder.LITTLE_ENDIAN);
+        readCentralDirectory();
+    }
+
+    /**
+     * Looks up an entry by the filename requested by a client.
+     *
+     * @param filename - Requested filename, a leading slash is ignored.
+     * @return Entry, or null if the archive does not contain it.
+     */
+    public Entry find(String filename) {
+        String name = filename.replace('\\', '/');
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        return entries.get(name);
+    }
+
+    /**
+     * Opens an entry of the archive, if it has one of that name.
+     */
+    @Override
+    public ServedFile openRead(String filename, int blockSize) throws IOException {
+        Entry entry = find(filename);
+        return entry != null ? new ServedFile(entry.open(blockSize), entry.size) : null;
+    }
+
+    /**
+     * Archives are read only, uploads fall through to the next provider.
+     */
+    @Override
+    public UploadSink openWrite(String filename) {
+        return null;
+    }
+
+    /**
+     * Returns the number of files in the archive.
+     *
+     * @return number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the path of the mounted archive.
+     *
+     * @return archive path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Finds the end of central directory record and indexes every file entry.
+     */
+    private void readCentralDirectory() throws IOException {
+        int eocd = -1;
+        if (mapping.limit() < 22) {
+            throw new IOException("Not a zip archive: " + path);
+        }
+        //The end record is at least 22 bytes and may be followed by a comment of up to 65535 bytes.
+        for (int i = mapping.limit() - 22; i >= Math.max(0, mapping.limit() - 22 - 65535); i--) {
+            if (mapping.getInt(i) == EOCD_SIG) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd == -1) {
+            throw new IOException("Not a zip archive: " + path);
+        }
+        int count = mapping.getShort(eocd + 10) & 0xffff;
+        long offset = mapping.getInt(eocd + 16) & 0xffffffffL;
+        //Zip64 archives mark the end record's fields as all ones and keep the real values elsewhere.
+        if (count == 0xffff || offset == 0xffffffffL || (eocd >= 20 && mapping.getInt(eocd - 20) == ZIP64_LOCATOR_SIG)) {
+            throw new IOException("Zip64 archives are not supported: " + path);
+        }
+        if (offset > eocd) {
+            throw new IOException("Corrupt central directory in " + path);
+        }
+        int pos = (int) offset;
+        for (int i = 0; i < count; i++) {
+            if (pos + 46 > eocd || mapping.getInt(pos) != CEN_SIG) {
+                throw new IOException("Corrupt central directory in " + path);
+            }
+            int method = mapping.getShort(pos + 10) & 0xffff;
+            long compressedSize = mapping.getInt(pos + 20) & 0xffffffffL;
+            long size = mapping.getInt(pos + 24) & 0xffffffffL;
+            int nameLen = mapping.getShort(pos + 28) & 0xffff;
+            int extraLen = mapping.getShort(pos + 30) & 0xffff;
+            int commentLen = mapping.getShort(pos + 32) & 0xffff;
+            long localHeaderOffset = mapping.getInt(pos + 42) & 0xffffffffL;
+            if (compressedSize == 0xffffffffL || size == 0xffffffffL || localHeaderOffset == 0xffffffffL) {
+                throw new IOException("Zip64 archives are not supported: " + path);
+            }
+            if (pos + 46 + nameLen > eocd || localHeaderOffset + 30 + compressedSize > eocd) {
+                throw new IOException("Corrupt central directory in " + path);
+            }
+            byte[] nameBytes = new byte[nameLen];
+            ByteBuffer nameBuf = mapping.duplicate();
+            nameBuf.position(pos + 46);
+            nameBuf.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            //Directories have no content to serve.
+            if (!name.endsWith("/")) {
+                entries.put(name, new Entry(name, method, compressedSize, size, localHeaderOffset));
+            }
+            pos += 46 + nameLen + extraLen + commentLen;
+        }
+    }
+
+    /**
+     * Returns a slice of the mapping holding the entry's raw, possibly compressed, data.
+     */
+    private ByteBuffer rawData(Entry entry) throws IOException {
+        if (entry.method != STORED && entry.method != DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+        }
+        int loc = (int) entry.localHeaderOffset;
+        if (mapping.getInt(loc) != LOC_SIG) {
+            throw new IOException("Corrupt local header for " + entry.name);
+        }
+        //The local header has its own name and extra field lengths, which may differ from the central directory.
+        int start = loc + 30 + (mapping.getShort(loc + 26) & 0xffff) + (mapping.getShort(loc + 28) & 0xffff);
+        if (start + entry.compressedSize > mapping.limit()) {
+            throw new IOException("Corrupt local header for " + entry.name);
+        }
+        ByteBuffer slice = mapping.duplicate();
+        slice.position(start);
+        slice.limit(start + (int) entry.compressedSize);
+        return slice.slice();
+    }
+
+    /**
+     * Returns the inflated content of a small deflated entry, from the cache
+     * if possible, or null if the entry is too large to be cached.
+     */
+    private byte[] cachedInflate(Entry entry, ByteBuffer raw) throws IOException {
+        if (entry.size > CACHE_ENTRY_MAX) {
+            return null;
+        }
+        synchronized (inflated) {
+            byte[] content = inflated.get(entry.name);
+            if (content != null) {
+                return content;
+            }
+        }
+        byte[] content = new byte[(int) entry.size];
+        Inflater inflater = new Inflater(true);
+        try (InputStream in = new InflaterInputStream(new ByteBufferInputStream(raw), inflater)) {
+            int read = 0;
+            while (read < content.length) {
+                int n = in.read(content, read, content.length - read);
+                if (n == -1) {
+                    throw new IOException("Entry shorter than its recorded size: " + entry.name);
+                }
+                read += n;
+            }
+        } finally {
+            //The stream does not end an inflater it was given, which would hold native memory until finalization.
+            inflater.end();
+        }
+        synchronized (inflated) {
+            if (inflated.put(entry.name, content) == null) {
+                inflatedBytes += content.length;
+            }
+            Iterator<byte[]> it = inflated.values().iterator();
+            while (inflatedBytes > CACHE_BUDGET && it.hasNext()) {
+                byte[] old = it.next();
+                if (old != content) {
+                    inflatedBytes -= old.length;
+                    it.remove();
+                }
+            }
+        }
+        return content;
+    }
+}
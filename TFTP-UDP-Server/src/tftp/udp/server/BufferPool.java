@@ -0,0 +1,63 @@
+package tftp.udp.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of equally sized byte arrays shared between transfers.
+ *
+ * @author 184514
+ */
+public class BufferPool {
+
+    private final int bufferSize, maxPooled;
+    private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Creates a new buffer pool.
+     *
+     * @param bufferSize - Size of every buffer in the pool.
+     * @param maxPooled - Most buffers kept while idle, any extra are left to the GC.
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if the pool is empty.
+     *
+     * @return buffer of the pool's size
+     */
+    public byte[] acquire() {
+        byte[] buffer = free.poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     *
+     * @param buffer - Buffer previously taken from this pool.
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+            free.offer(buffer);
+        } else if (buffer.length == bufferSize) {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the size of the buffers in the pool.
+     *
+     * @return buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+}
@@ -0,0 +1,49 @@
+package tftp.udp.server;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * @author 184514
+ */
+public class ByteBufferBlockSource implements DataBlockSource {
+
+    private final ByteBuffer content;
+    private final int blockSize;
+    private final byte[] packetBuffer;
+    private final ByteBuffer header;
+
+    /**
+     * Creates a block source over content which is already in memory, or mapped.
+     *
+     * @param content - Content to be sent, from its position to its limit. Only this source may use it.
+     * @param blockSize - Number of payload bytes per DATA packet.
+     */
+    public ByteBufferBlockSource(ByteBuffer content, int blockSize) {
+        this.content = content;
+        this.blockSize = blockSize;
+        this.packetBuffer = new byte[blockSize + 4];
+        this.header = ByteBuffer.wrap(packetBuffer);
+    }
+
+    /**
+     * Copies the next block from the buffer into the reusable packet buffer.
+     */
+    @Override
+    public int fill(short blockNo, DatagramPacket datagram) {
+        int length = Math.min(blockSize, content.remaining());
+        content.get(packetBuffer, 4, length);
+        header.putShort(0, PacketType.DATA.getOpcode());
+        header.putShort(2, blockNo);
+        datagram.setData(packetBuffer, 0, length + 4);
+        return length;
+    }
+
+    /**
+     * Nothing to release, the buffer belongs to whoever created it.
+     */
+    @Override
+    public void close() {
+    }
+}
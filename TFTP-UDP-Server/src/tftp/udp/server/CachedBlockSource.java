@@ -0,0 +1,54 @@
+package tftp.udp.server;
+
+import java.net.DatagramPacket;
+
+/**
+ * @author 184514
+ */
+public class CachedBlockSource implements DataBlockSource {
+
+    private final DataPacketCache.Entry entry;
+    private int nextBlock = 0;
+
+    /**
+     * Creates a block source which hands out slices of a pre-encoded slab.
+     *
+     * @param entry - Cache entry holding the encoded DATA packets of the file.
+     */
+    public CachedBlockSource(DataPacketCache.Entry entry) {
+        this.entry = entry;
+    }
+
+    /**
+     * @return Length of the file the slab was encoded from.
+     */
+    public long getFileLength() {
+        return entry.fileLength;
+    }
+
+    /**
+     * @return Modified time of the file the slab was encoded from.
+     */
+    public long getLastModified() {
+        return entry.lastModified;
+    }
+
+    /**
+     * Points the datagram at the next slice of the slab. The header in the slab
+     * already holds the right block number, so nothing is copied or patched.
+     */
+    @Override
+    public int fill(short blockNo, DatagramPacket datagram) {
+        int payload = entry.payloadLength(nextBlock);
+        datagram.setData(entry.slab, entry.offset(nextBlock), payload + 4);
+        nextBlock++;
+        return payload;
+    }
+
+    /**
+     * Nothing to release, the slab belongs to the cache.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,496 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import tftp.udp.server.PacketClasses.ErrorPacket.ErrorCodes;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * Plays a capture made with the server's -capture option against a server,
+ * so the same boot storm can be offered to a build before and after a
+ * change. Each request in the capture starts a simulated client at the
+ * request's original time, divided by the speed factor. A reading client
+ * acknowledges each block no sooner than the original client did, and a
+ * writing client sends each block no sooner than the original did, so slow
+ * clients stay slow. Lost packets are sent again after a timeout, as a
+ * client would. At speed 0 every transfer starts at once and nothing is
+ * held back.
+ * <p>
+ * All clients run on one thread with non-blocking channels. At the end the
+ * tool reports throughput, the server's response times and the transfers
+ * which failed, and how late the replay itself ran.
+ * <p>
+ * Usage: CaptureReplay capture-file [-host name] [-port n] [-speed x] [-timeout ms] [-retries n]
+ *
+ * @author 184514
+ */
+public class CaptureReplay {
+
+    private static final int PCKT_LEN = 516, DATA_LEN = 512, HEADER_LEN = 4;
+
+    /**
+     * A transfer found in the capture.
+     */
+    static class Transfer {
+
+        final long startMicros;
+        final boolean isRead;
+        final byte[] request;
+        //Reads: the block the first recorded ACK was for, 0 if the server sent an OACK, and when each ACK came after the request.
+        long firstAck = -1;
+        long[] ackMicros = new long[16];
+        //Writes: the payload of each block the client sent, and when it came after the request.
+        final List<byte[]> blocks = new ArrayList<>();
+        long[] blockMicros = new long[16];
+        int acks;
+
+        Transfer(long startMicros, byte[] request) {
+            this.startMicros = startMicros;
+            this.request = request;
+            this.isRead = request[1] == PacketType.READ.getOpcode();
+        }
+
+        /**
+         * Records the first ACK of the next block a reading client acknowledged.
+         */
+        void ack(int block, long micros) {
+            if (firstAck < 0) {
+                firstAck = block;
+            }
+            if (block != ((firstAck + acks) & 0xffff)) {
+                return;
+            }
+            if (acks == ackMicros.length) {
+                ackMicros = Arrays.copyOf(ackMicros, acks * 2);
+            }
+            ackMicros[acks++] = micros - startMicros;
+        }
+
+        /**
+         * Records the first copy of the next block a writing client sent.
+         */
+        void data(int block, byte[] payload, long micros) {
+            int count = blocks.size();
+            if (block != ((count + 1) & 0xffff)) {
+                return;
+            }
+            if (count == blockMicros.length) {
+                blockMicros = Arrays.copyOf(blockMicros, count * 2);
+            }
+            blockMicros[count] = micros - startMicros;
+            blocks.add(payload);
+        }
+    }
+
+    /**
+     * A simulated client replaying one transfer.
+     */
+    class Client {
+
+        final Transfer transfer;
+        final long dueNanos;
+        DatagramChannel channel;
+        //The listening port until the server answers, then the transfer's port.
+        SocketAddress server;
+        long startNanos, sentNanos;
+        //Blocks received by a reader, or acknowledged for a writer.
+        long blocks;
+        int retries;
+        boolean retransmitted, finalAck, done;
+        final ByteBuffer last = ByteBuffer.allocate(PCKT_LEN);
+        //Packet waiting until the original client would have sent it, or null.
+        ByteBuffer held;
+        Timer timer;
+
+        Client(Transfer transfer) {
+            this.transfer = transfer;
+            this.dueNanos = startedNanos + scale(transfer.startMicros);
+        }
+    }
+
+    /**
+     * Wakes a client to send a held packet or to retransmit. A client's
+     * timer is replaced rather than removed, so older ones are skipped.
+     */
+    static class Timer implements Comparable<Timer> {
+
+        final long at;
+        final Client client;
+
+        Timer(long at, Client client) {
+            this.at = at;
+            this.client = client;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(at, other.at);
+        }
+    }
+
+    private final InetSocketAddress target;
+    private final double speed;
+    private final long timeoutNanos;
+    private final int maxRetries;
+    private final Selector selector;
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final ByteBuffer received = ByteBuffer.allocate(PCKT_LEN + 1);
+    private long startedNanos;
+    private int running;
+    //Results.
+    private final LatencyHistogram firstReply = new LatencyHistogram(), blockRtt = new LatencyHistogram(),
+            duration = new LatencyHistogram(), startLag = new LatencyHistogram();
+    private final Map<String, Integer> failures = new TreeMap<>();
+    private long completed, bytes, retransmits;
+
+    /**
+     * @param target - Server to replay against.
+     * @param speed - Factor the capture's timing is sped up by, 0 to send everything as fast as possible.
+     * @param timeoutMillis - Time without an answer before a packet is sent again.
+     * @param maxRetries - Times a packet is sent again before the transfer is given up.
+     * @throws IOException is thrown when the selector cannot be opened.
+     */
+    public CaptureReplay(InetSocketAddress target, double speed, long timeoutMillis, int maxRetries) throws IOException {
+        this.target = target;
+        this.speed = speed;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxRetries = maxRetries;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Reads the transfers out of a capture.
+     *
+     * @param capture - Contents of the capture file.
+     * @return the transfers in the order they were requested
+     * @throws IOException is thrown when the file is not a capture.
+     */
+    static List<Transfer> parse(ByteBuffer capture) throws IOException {
+        byte[] magic = new byte[TrafficCapture.MAGIC.length];
+        if (capture.remaining() < magic.length + 10) {
+            throw new IOException("Not a capture file");
+        }
+        capture.get(magic);
+        if (!Arrays.equals(magic, TrafficCapture.MAGIC)) {
+            throw new IOException("Not a capture file, or a different version");
+        }
+        capture.getLong();
+        int listenPort = capture.getShort() & 0xffff;
+        List<Transfer> transfers = new ArrayList<>();
+        //The transfer each client address and port is running.
+        Map<SocketAddress, Transfer> current = new HashMap<>();
+        while (capture.remaining() >= 15) {
+            long micros = capture.getLong();
+            byte[] address = new byte[capture.get()];
+            capture.get(address);
+            int port = capture.getShort() & 0xffff, localPort = capture.getShort() & 0xffff, length = capture.getShort() & 0xffff;
+            if (capture.remaining() < length) {
+                break;
+            }
+            byte[] packet = new byte[length];
+            capture.get(packet);
+            if (length < HEADER_LEN) {
+                continue;
+            }
+            SocketAddress client = new InetSocketAddress(InetAddress.getByAddress(address), port);
+            Transfer transfer = current.get(client);
+            int opcode = packet[1], block = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+            if (localPort == listenPort && (opcode == PacketType.READ.getOpcode() || opcode == PacketType.WRITE.getOpcode())) {
+                //Every request is replayed, retransmitted ones included, as the server starts a transfer for each.
+                transfer = new Transfer(micros, packet);
+                current.put(client, transfer);
+                transfers.add(transfer);
+            } else if (transfer != null && opcode == PacketType.ACK.getOpcode() && transfer.isRead) {
+                transfer.ack(block, micros);
+            } else if (transfer != null && opcode == PacketType.DATA.getOpcode() && !transfer.isRead) {
+                transfer.data(block, Arrays.copyOfRange(packet, HEADER_LEN, length), micros);
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Plays the transfers and waits until every one has finished or failed.
+     *
+     * @param transfers - Transfers from the capture, in the order they were requested.
+     * @return seconds the replay took
+     * @throws IOException is thrown when the selector fails.
+     */
+    public double replay(List<Transfer> transfers) throws IOException {
+        startedNanos = System.nanoTime();
+        List<Client> clients = new ArrayList<>(transfers.size());
+        for (Transfer transfer : transfers) {
+            clients.add(new Client(transfer));
+        }
+        int next = 0;
+        while (next < clients.size() || running > 0) {
+            long now = System.nanoTime();
+            while (next < clients.size() && clients.get(next).dueNanos <= now) {
+                start(clients.get(next++), now);
+            }
+            long wake = next < clients.size() ? clients.get(next).dueNanos : Long.MAX_VALUE;
+            Timer timer;
+            while ((timer = timers.peek()) != null && timer.at <= now) {
+                timers.poll();
+                if (timer.client.timer == timer && !timer.client.done) {
+                    fire(timer.client, now);
+                }
+            }
+            if (timer != null) {
+                wake = Math.min(wake, timer.at);
+            }
+            long waitMillis = wake == Long.MAX_VALUE ? 1000 : TimeUnit.NANOSECONDS.toMillis(wake - System.nanoTime());
+            if (waitMillis > 0) {
+                selector.select(waitMillis);
+            } else {
+                selector.selectNow();
+            }
+            for (SelectionKey key : selector.selectedKeys()) {
+                Client client = (Client) key.attachment();
+                received.clear();
+                SocketAddress from = client.channel.receive(received);
+                if (from != null && !client.done) {
+                    received.flip();
+                    answer(client, from, System.nanoTime());
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        return (System.nanoTime() - startedNanos) / 1e9;
+    }
+
+    /**
+     * Converts a time in the capture to a time in the replay.
+     */
+    private long scale(long micros) {
+        return speed <= 0 ? 0 : (long) (TimeUnit.MICROSECONDS.toNanos(micros) / speed);
+    }
+
+    private void start(Client client, long now) throws IOException {
+        client.startNanos = now;
+        startLag.record(TimeUnit.NANOSECONDS.toMicros(now - client.dueNanos));
+        client.channel = DatagramChannel.open();
+        client.channel.configureBlocking(false);
+        client.channel.bind(null);
+        client.channel.register(selector, SelectionKey.OP_READ, client);
+        client.server = target;
+        running++;
+        client.last.clear();
+        client.last.put(client.transfer.request).flip();
+        send(client, now);
+    }
+
+    /**
+     * Sends the client's last packet and sets the timer to send it again.
+     */
+    private void send(Client client, long now) throws IOException {
+        client.last.rewind();
+        client.channel.send(client.last, client.server);
+        client.sentNanos = now;
+        if (client.finalAck) {
+            //Nothing answers the final ACK of a read.
+            finish(client, null, now);
+            return;
+        }
+        setTimer(client, now + timeoutNanos);
+    }
+
+    private void setTimer(Client client, long at) {
+        client.timer = new Timer(at, client);
+        timers.add(client.timer);
+    }
+
+    /**
+     * Sends a held packet whose time has come, or sends the last packet again.
+     */
+    private void fire(Client client, long now) throws IOException {
+        if (client.held != null) {
+            client.last.clear();
+            client.last.put(client.held).flip();
+            client.held = null;
+            client.retries = 0;
+            client.retransmitted = false;
+            send(client, now);
+        } else if (client.retries++ < maxRetries) {
+            retransmits++;
+            client.retransmitted = true;
+            send(client, now);
+        } else {
+            finish(client, "timeout", now);
+        }
+    }
+
+    /**
+     * Queues the client's next packet, to be sent when the original client sent it.
+     *
+     * @param offsetMicros - When the original client sent it after its request, or -1 if it never did.
+     */
+    private void sendAt(Client client, ByteBuffer packet, long offsetMicros, long now) throws IOException {
+        long at = offsetMicros < 0 ? now : client.startNanos + scale(offsetMicros);
+        if (at <= now) {
+            client.last.clear();
+            client.last.put(packet).flip();
+            client.retries = 0;
+            client.retransmitted = false;
+            send(client, now);
+        } else {
+            client.held = packet;
+            setTimer(client, at);
+        }
+    }
+
+    /**
+     * Handles a packet from the server.
+     */
+    private void answer(Client client, SocketAddress from, long now) throws IOException {
+        if (received.remaining() < HEADER_LEN || client.held != null) {
+            return;
+        }
+        int opcode = received.getShort(0), block = received.getShort(2) & 0xffff;
+        if (client.blocks == 0 && client.sentNanos == client.startNanos && !client.retransmitted) {
+            firstReply.record(TimeUnit.NANOSECONDS.toMicros(now - client.startNanos));
+        }
+        client.server = from;
+        if (opcode == PacketType.ERROR.getOpcode()) {
+            ErrorCodes code = ErrorCodes.fromErrorCode((short) block);
+            finish(client, "error " + (code != null ? code : block), now);
+            return;
+        }
+        Transfer transfer = client.transfer;
+        boolean isOack = opcode == PacketType.OACK.getOpcode();
+        long expected = client.blocks + 1;
+        if (transfer.isRead && (opcode == PacketType.DATA.getOpcode() && block == (expected & 0xffff) || isOack && client.blocks == 0)) {
+            if (!client.retransmitted && client.sentNanos != client.startNanos) {
+                blockRtt.record(TimeUnit.NANOSECONDS.toMicros(now - client.sentNanos));
+            }
+            long acked = isOack ? 0 : expected;
+            int payload = isOack ? 0 : received.remaining() - HEADER_LEN;
+            if (!isOack) {
+                client.blocks = expected;
+                bytes += payload;
+                client.finalAck = payload < DATA_LEN;
+            }
+            ByteBuffer ack = ByteBuffer.allocate(HEADER_LEN);
+            ack.putShort(PacketType.ACK.getOpcode()).putShort((short) acked).flip();
+            long index = acked - Math.max(transfer.firstAck, 0);
+            sendAt(client, ack, transfer.firstAck >= 0 && index >= 0 && index < transfer.acks ? transfer.ackMicros[(int) index] : -1, now);
+        } else if (!transfer.isRead && (opcode == PacketType.ACK.getOpcode() && block == (client.blocks & 0xffff) || isOack && client.blocks == 0)) {
+            if (!client.retransmitted && client.sentNanos != client.startNanos) {
+                blockRtt.record(TimeUnit.NANOSECONDS.toMicros(now - client.sentNanos));
+            }
+            int sent = (int) client.blocks;
+            //The block just acknowledged was short, the upload is complete.
+            if (sent > 0 && (sent > transfer.blocks.size() || transfer.blocks.get(sent - 1).length < DATA_LEN)) {
+                finish(client, null, now);
+                return;
+            }
+            //A capture cut short ends the upload with an empty block.
+            byte[] payload = sent < transfer.blocks.size() ? transfer.blocks.get(sent) : new byte[0];
+            client.blocks = sent + 1;
+            bytes += payload.length;
+            ByteBuffer data = ByteBuffer.allocate(HEADER_LEN + payload.length);
+            data.putShort(PacketType.DATA.getOpcode()).putShort((short) client.blocks).put(payload).flip();
+            sendAt(client, data, sent < transfer.blocks.size() ? transfer.blockMicros[sent] : -1, now);
+        }
+    }
+
+    /**
+     * Ends a client's transfer.
+     *
+     * @param failure - Why it failed, or null if it completed.
+     */
+    private void finish(Client client, String failure, long now) throws IOException {
+        client.done = true;
+        client.timer = null;
+        running--;
+        client.channel.close();
+        if (failure == null) {
+            completed++;
+            duration.record(TimeUnit.NANOSECONDS.toMicros(now - client.startNanos));
+        } else {
+            failures.merge(failure, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Prints what the replay measured.
+     *
+     * @param transfers - Number of transfers replayed.
+     * @param seconds - Time the replay took.
+     */
+    public void report(int transfers, double seconds) {
+        System.out.println(String.format(Locale.ROOT, "Replayed %d transfers in %.2fs against %s, speed %s",
+                transfers, seconds, target, speed <= 0 ? "flat out" : speed + "x"));
+        System.out.println(String.format(Locale.ROOT, "Completed %d, failed %d, retransmits %d",
+                completed, transfers - completed, retransmits));
+        for (Map.Entry<String, Integer> failure : failures.entrySet()) {
+            System.out.println("  " + failure.getKey() + ": " + failure.getValue());
+        }
+        System.out.println(String.format(Locale.ROOT, "Throughput %.2f MB/s of data, %.1f transfers/s",
+                bytes / seconds / 1e6, completed / seconds));
+        System.out.println(String.format("%-18s %10s %10s %10s %10s %10s", "ms", "p50", "p90", "p99", "p99.9", "count"));
+        printPercentiles("first reply", firstReply);
+        printPercentiles("block rtt", blockRtt);
+        printPercentiles("transfer", duration);
+        //How far behind the capture's timing the replay started transfers, large values mean the numbers above are not comparable.
+        printPercentiles("start lag", startLag);
+    }
+
+    private void printPercentiles(String name, LatencyHistogram histogram) {
+        System.out.println(String.format(Locale.ROOT, "%-18s %10.2f %10.2f %10.2f %10.2f %10d", name,
+                histogram.percentile(50) / 1e3, histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3,
+                histogram.percentile(99.9) / 1e3, histogram.count()));
+    }
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: CaptureReplay capture-file [-host name] [-port n] [-speed x] [-timeout ms] [-retries n]");
+            return;
+        }
+        String host = "127.0.0.1";
+        int port = 69, retries = 5;
+        double speed = 1;
+        long timeout = 1000;
+        for (int i = 1; i < args.length - 1; i++) {
+            if (args[i].equals("-host")) {
+                host = args[i + 1];
+            }
+            if (args[i].equals("-port")) {
+                port = Integer.parseInt(args[i + 1]);
+            }
+            if (args[i].equals("-speed")) {
+                speed = Double.parseDouble(args[i + 1]);
+            }
+            if (args[i].equals("-timeout")) {
+                timeout = Long.parseLong(args[i + 1]);
+            }
+            if (args[i].equals("-retries")) {
+                retries = Integer.parseInt(args[i + 1]);
+            }
+        }
+        List<Transfer> transfers = parse(ByteBuffer.wrap(Files.readAllBytes(Paths.get(args[0]))));
+        CaptureReplay replay = new CaptureReplay(new InetSocketAddress(host, port), speed, timeout, retries);
+        double seconds = replay.replay(transfers);
+        replay.report(transfers.size(), seconds);
+    }
+}
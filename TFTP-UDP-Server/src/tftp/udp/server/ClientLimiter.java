@@ -0,0 +1,131 @@
+package tftp.udp.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per source address limits on the request rate and on bandwidth, so one
+ * device in a reboot loop or a scanner cannot crowd out everyone else. Each
+ * address has a request bucket, checked by the listener before any handler
+ * exists, and a byte bucket which paces its transfers. Addresses idle for
+ * longer than the expiry are swept out. Once the map is full, addresses not
+ * already in it share a single overflow entry, so a flood of distinct
+ * sources costs a bounded amount of memory and still gets limited.
+ *
+ * @author 184514
+ */
+public class ClientLimiter {
+
+    private final double requestsPerSecond, bytesPerSecond;
+    private final int maxClients;
+    private final long idleNanos;
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private final Client overflow;
+    private final AtomicLong droppedRequests = new AtomicLong();
+
+    /**
+     * Limits of one source address.
+     */
+    private class Client {
+
+        final TokenBucket requests, bytes;
+        volatile long lastSeen = System.nanoTime();
+
+        Client() {
+            //Bursts of up to one second's worth are allowed.
+            this.requests = requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond, Math.max(1, requestsPerSecond)) : null;
+            this.bytes = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond, Math.max(516, bytesPerSecond)) : null;
+        }
+    }
+
+    /**
+     * Creates the limiter and starts sweeping out idle addresses.
+     *
+     * @param requestsPerSecond - Requests allowed per second per address, 0 for no limit.
+     * @param bytesPerSecond - Bytes sent and received per second per address, 0 for no limit.
+     * @param maxClients - Most addresses tracked on their own.
+     * @param idleMillis - Time after which an idle address is forgotten.
+     */
+    public ClientLimiter(double requestsPerSecond, double bytesPerSecond, int maxClients, long idleMillis) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxClients = maxClients;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.overflow = new Client();
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tftp-limiter-sweep");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleMillis / 4);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks a request against its address's request rate.
+     *
+     * @param address - Source address of the request.
+     * @return true if the request may be handled, false if it should be dropped
+     */
+    public boolean allowRequest(InetAddress address) {
+        Client client = clientFor(address);
+        if (client.requests == null || client.requests.tryAcquire(1)) {
+            return true;
+        }
+        droppedRequests.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the bucket pacing an address's transfers.
+     *
+     * @param address - Address of the client.
+     * @return byte bucket, or null if bandwidth is not limited
+     */
+    public TokenBucket bandwidthFor(InetAddress address) {
+        return clientFor(address).bytes;
+    }
+
+    /**
+     * Returns the number of requests dropped for going over the rate.
+     *
+     * @return dropped request count
+     */
+    public long getDroppedRequests() {
+        return droppedRequests.get();
+    }
+
+    /**
+     * Returns the number of addresses tracked on their own.
+     *
+     * @return tracked address count
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    private Client clientFor(InetAddress address) {
+        Client client = clients.get(address);
+        if (client == null) {
+            if (clients.size() >= maxClients) {
+                client = overflow;
+            } else {
+                client = clients.computeIfAbsent(address, a -> new Client());
+            }
+        }
+        client.lastSeen = System.nanoTime();
+        return client;
+    }
+
+    /**
+     * Forgets addresses idle for longer than the expiry.
+     */
+    private void sweep() {
+        long cutoff = System.nanoTime() - idleNanos;
+        clients.values().removeIf(client -> client.lastSeen - cutoff < 0);
+    }
+}
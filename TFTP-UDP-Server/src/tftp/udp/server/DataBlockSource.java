@@ -0,0 +1,23 @@
+package tftp.udp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * @author 184514
+ */
+public interface DataBlockSource extends Closeable {
+
+    /**
+     * Points the datagram at the fully encoded DATA packet of the next block.
+     * Blocks are handed out in order, one per call, so a retransmission simply
+     * sends the same datagram again.
+     *
+     * @param blockNo - Block number to be placed in the DATA header.
+     * @param datagram - Datagram whose data, offset and length will be set.
+     * @return Number of payload bytes in the block. Less than the block size marks the final block.
+     * @throws IOException is thrown when the underlying file cannot be read.
+     */
+    int fill(short blockNo, DatagramPacket datagram) throws IOException;
+}
@@ -0,0 +1,236 @@
+package tftp.udp.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * Cache of fully encoded DATA packets for the most requested files. Each file
+ * is kept as one slab per block size, laid out block after block with the
+ * header already written, so a sender only has to hand out slices of it.
+ * A slab is encoded by one request at a time, others for the same file are
+ * served from disk meanwhile rather than each reading the file again.
+ *
+ * @author 184514
+ */
+public class DataPacketCache {
+
+    //Requests needed before a file is cached, largest file cached and total budget in bytes.
+    private final int hotThreshold;
+    private final long maxFileBytes, budgetBytes;
+    private long usedBytes = 0;
+    private final Map<String, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    //Keys whose slab is being encoded.
+    private final Set<String> encoding = ConcurrentHashMap.newKeySet();
+    //Access ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Encoded DATA packets of a single file at a single block size.
+     */
+    public static class Entry {
+
+        final byte[] slab;
+        final int blockSize, blockCount;
+        final long fileLength, lastModified;
+
+        Entry(byte[] slab, int blockSize, long fileLength, long lastModified) {
+            this.slab = slab;
+            this.blockSize = blockSize;
+            this.fileLength = fileLength;
+            this.lastModified = lastModified;
+            this.blockCount = (int) (fileLength / blockSize) + 1;
+        }
+
+        /**
+         * Returns the offset of the header of the given block within the slab.
+         *
+         * @param index - Index of the block, starting at 0 for block number 1.
+         * @return Offset of the block in the slab.
+         */
+        int offset(int index) {
+            return index * (blockSize + 4);
+        }
+
+        /**
+         * Returns the number of payload bytes in the given block.
+         *
+         * @param index - Index of the block, starting at 0 for block number 1.
+         * @return Payload length, less than the block size for the final block.
+         */
+        int payloadLength(int index) {
+            if (index < blockCount - 1) {
+                return blockSize;
+            }
+            return (int) (fileLength - (long) index * blockSize);
+        }
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param hotThreshold - Number of requests for a file before it is cached.
+     * @param maxFileBytes - Largest file which will be cached.
+     * @param budgetBytes - Total number of slab bytes kept in memory.
+     */
+    public DataPacketCache(int hotThreshold, long maxFileBytes, long budgetBytes) {
+        this.hotThreshold = hotThreshold;
+        this.maxFileBytes = maxFileBytes;
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Records a request for the file and returns a block source for it if the
+     * file is hot. Entries are checked against the size and modified time of
+     * the file, and rebuilt when it has changed.
+     *
+     * @param filename - Name of the requested file.
+     * @param blockSize - Block size of the transfer.
+     * @return Block source over the cached slab, or null if the file is not cached.
+     */
+    public CachedBlockSource open(String filename, int blockSize) {
+        File file = new File(filename);
+        long length = file.length(), lastModified = file.lastModified();
+        //Missing files and files over the limit are never cached.
+        if (lastModified == 0 || length > maxFileBytes) {
+            return null;
+        }
+        String key = blockSize + ":" + file.getAbsolutePath();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.fileLength == length && entry.lastModified == lastModified) {
+            return new CachedBlockSource(entry);
+        }
+        int count = requestCounts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        if (count < hotThreshold) {
+            return null;
+        }
+        entry = load(key, file, blockSize, length, lastModified);
+        return entry != null ? new CachedBlockSource(entry) : null;
+    }
+
+    /**
+     * Loads a file into the cache whether or not it is hot yet, used to warm
+     * the cache at startup.
+     *
+     * @param filename - Name of the file.
+     * @param blockSize - Block size to encode it with.
+     * @param budget - Most slab bytes the caller will allow.
+     * @return Number of slab bytes used, or -1 if the file was not cached.
+     */
+    public long preload(String filename, int blockSize, long budget) {
+        File file = new File(filename);
+        long length = file.length(), lastModified = file.lastModified();
+        long slabBytes = length + 4L * (length / blockSize + 1), free;
+        synchronized (entries) {
+            free = budgetBytes - usedBytes;
+        }
+        if (lastModified == 0 || length > maxFileBytes || slabBytes > budget || slabBytes > free) {
+            return -1;
+        }
+        return load(blockSize + ":" + file.getAbsolutePath(), file, blockSize, length, lastModified) != null ? slabBytes : -1;
+    }
+
+    /**
+     * Encodes a file and adds it to the cache, unless another request is already encoding it.
+     *
+     * @return the new entry, or null if the file is being encoded elsewhere or cannot be read
+     */
+    private Entry load(String key, File file, int blockSize, long length, long lastModified) {
+        if (!encoding.add(key)) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            Entry entry = encode(in, blockSize, length, lastModified);
+            put(key, entry);
+            return entry;
+        } catch (IOException ex) {
+            return null;
+        } finally {
+            encoding.remove(key);
+        }
+    }
+
+    /**
+     * Removes every cached slab of the file.
+     *
+     * @param filename - Name of the file which has changed.
+     */
+    public void invalidate(String filename) {
+        String path = ":" + new File(filename).getAbsolutePath();
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().endsWith(path)) {
+                    usedBytes -= e.getValue().slab.length;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a whole file into a slab of encoded DATA packets.
+     *
+     * @param in - Stream to read the file from.
+     * @param blockSize - Number of payload bytes per block.
+     * @param length - Length of the file.
+     * @param lastModified - Modified time of the file.
+     * @return Entry holding the encoded file.
+     * @throws IOException is thrown when the file is shorter than expected or cannot be read.
+     */
+    static Entry encode(InputStream in, int blockSize, long length, long lastModified) throws IOException {
+        int blockCount = (int) (length / blockSize) + 1;
+        byte[] slab = new byte[(int) (length + 4L * blockCount)];
+        Entry entry = new Entry(slab, blockSize, length, lastModified);
+        ByteBuffer buffer = ByteBuffer.wrap(slab);
+        for (int i = 0; i < blockCount; i++) {
+            int off = entry.offset(i), payload = entry.payloadLength(i);
+            //Block numbers wrap around the same way the sender's short counter does.
+            buffer.putShort(off, PacketType.DATA.getOpcode());
+            buffer.putShort(off + 2, (short) (i + 1));
+            int read = 0;
+            while (read < payload) {
+                int n = in.read(slab, off + 4 + read, payload - read);
+                if (n == -1) {
+                    throw new IOException("File changed while being cached");
+                }
+                read += n;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Adds an entry, evicting the least recently used slabs to stay in budget.
+     */
+    private void put(String key, Entry entry) {
+        synchronized (entries) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                usedBytes -= old.slab.length;
+            }
+            usedBytes += entry.slab.length;
+            Iterator<Entry> it = entries.values().iterator();
+            while (usedBytes > budgetBytes && it.hasNext()) {
+                Entry e = it.next();
+                if (e != entry) {
+                    usedBytes -= e.slab.length;
+                    it.remove();
+                }
+            }
+        }
+    }
+}
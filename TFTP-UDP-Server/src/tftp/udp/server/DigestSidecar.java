@@ -0,0 +1,107 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import tftp.udp.shared.Log;
+
+/**
+ * SHA-256 digests of uploaded files, kept in a hidden sidecar file beside
+ * each one as "digest size lastModified". The digest is computed while the
+ * upload is received, so it never costs a second read of the file. A sidecar
+ * whose size or modification time do not match the file being served,
+ * because it was replaced by something other than an upload or by an upload
+ * whose sidecar is not written yet, is ignored.
+ *
+ * @author 184514
+ */
+public final class DigestSidecar {
+
+    private DigestSidecar() {
+    }
+
+    /**
+     * Creates a SHA-256 digest to be updated as blocks arrive.
+     *
+     * @return a new message digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            //Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Writes the digest of a file into its sidecar, forced to disk as the
+     * durability policy asks, the same as the file itself.
+     *
+     * @param file - File the digest belongs to.
+     * @param digest - SHA-256 of the file's content, in hex.
+     * @param durability - Policy forcing the sidecar to disk.
+     * @throws IOException is thrown when the sidecar cannot be written.
+     */
+    public static void write(Path file, String digest, Durability durability) throws IOException {
+        String line = digest + " " + Files.size(file) + " " + Files.getLastModifiedTime(file).toMillis();
+        ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+        try (FileChannel channel = FileChannel.open(sidecarOf(file), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            durability.syncFile(channel);
+        }
+    }
+
+    /**
+     * Reads the digest of a file from its sidecar. The size and modified time
+     * are those of the file actually opened, not of whatever the name points
+     * at now, so a digest written for a version uploaded since is never
+     * offered for the one being read.
+     *
+     * @param file - File whose digest is wanted.
+     * @param size - Size of the opened file.
+     * @param lastModified - Modified time of the opened file, in milliseconds.
+     * @return SHA-256 of the file in hex, or null if there is no sidecar or it is out of date
+     */
+    public static String read(Path file, long size, long lastModified) {
+        try {
+            String[] fields = new String(Files.readAllBytes(sidecarOf(file)), StandardCharsets.US_ASCII).trim().split(" ");
+            if (fields.length == 3 && Long.parseLong(fields[1]) == size && Long.parseLong(fields[2]) == lastModified) {
+                return fields[0];
+            }
+        } catch (NoSuchFileException ex) {
+            //No upload has recorded a digest for this file.
+        } catch (IOException | NumberFormatException ex) {
+            Log.warn("Ignoring unreadable digest of {}: {}", file, ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Formats a digest as lower case hex.
+     *
+     * @param digest - Raw digest bytes.
+     * @return hex string
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static Path sidecarOf(Path file) {
+        return file.resolveSibling("." + file.getFileName() + ".sha256");
+    }
+}
@@ -0,0 +1,103 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Access to O_DIRECT file I/O, which bypasses the OS page cache. The option
+ * and the aligned buffers it needs only exist from Java 10, so they are
+ * looked up at runtime and direct I/O is simply unavailable on older JVMs.
+ *
+ * @author 184514
+ */
+public final class DirectIO {
+
+    //Alignment assumed when the filesystem cannot report its block size.
+    private static final int DEFAULT_ALIGNMENT = 4096;
+    private static final OpenOption DIRECT;
+    private static final Method ALIGNED_SLICE, BLOCK_SIZE;
+
+    static {
+        OpenOption direct = null;
+        Method alignedSlice = null, blockSize = null;
+        try {
+            Class<?> extended = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            for (Object option : extended.getEnumConstants()) {
+                if ("DIRECT".equals(((Enum<?>) option).name())) {
+                    direct = (OpenOption) option;
+                }
+            }
+            alignedSlice = ByteBuffer.class.getMethod("alignedSlice", int.class);
+            blockSize = FileStore.class.getMethod("getBlockSize");
+        } catch (ReflectiveOperationException ex) {
+            direct = null;
+        }
+        DIRECT = direct;
+        ALIGNED_SLICE = alignedSlice;
+        BLOCK_SIZE = blockSize;
+    }
+
+    private DirectIO() {
+    }
+
+    /**
+     * Returns whether this JVM supports direct I/O.
+     *
+     * @return true if direct channels can be opened
+     */
+    public static boolean isAvailable() {
+        return DIRECT != null;
+    }
+
+    /**
+     * Returns the alignment direct I/O needs on the filesystem holding a file.
+     *
+     * @param file - File which will be written.
+     * @return alignment in bytes
+     */
+    public static int alignment(Path file) {
+        try {
+            long size = (Long) BLOCK_SIZE.invoke(Files.getFileStore(file));
+            return size > 0 && size <= (1 << 20) ? (int) size : DEFAULT_ALIGNMENT;
+        } catch (ReflectiveOperationException | IOException | RuntimeException ex) {
+            return DEFAULT_ALIGNMENT;
+        }
+    }
+
+    /**
+     * Opens an existing file for direct writing.
+     *
+     * @param file - File to be written.
+     * @return channel writing around the page cache
+     * @throws IOException is thrown when direct I/O is unavailable or the filesystem refuses it.
+     */
+    public static FileChannel openForWrite(Path file) throws IOException {
+        if (DIRECT == null) {
+            throw new IOException("Direct I/O needs Java 10 or later");
+        }
+        return FileChannel.open(file, StandardOpenOption.WRITE, DIRECT);
+    }
+
+    /**
+     * Allocates a direct buffer whose address and capacity are multiples of the alignment.
+     *
+     * @param capacity - Capacity needed, a multiple of the alignment.
+     * @param alignment - Alignment in bytes.
+     * @return aligned direct buffer
+     * @throws IOException is thrown when direct I/O is unavailable.
+     */
+    public static ByteBuffer allocateAligned(int capacity, int alignment) throws IOException {
+        try {
+            return (ByteBuffer) ALIGNED_SLICE.invoke(ByteBuffer.allocateDirect(capacity + alignment), alignment);
+        } catch (ReflectiveOperationException | NullPointerException ex) {
+            throw new IOException("Direct I/O needs Java 10 or later", ex);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import tftp.udp.shared.Log;
+
+/**
+ * Decides how, and whether, finished uploads are forced to disk before their
+ * final ACK. In group commit mode a committer thread takes every upload
+ * queued while the previous batch was being forced, forces the batch's files
+ * in parallel and each of its directories once, and then releases them
+ * together. An upload arriving at an idle committer is forced straight away,
+ * and parallel forces let the filesystem fold them into one journal commit,
+ * so hundreds of concurrent uploads do not queue on the disk one fsync at a
+ * time.
+ *
+ * @author 184514
+ */
+public class Durability {
+
+    /**
+     * Durability modes.
+     */
+    public enum Mode {
+        //Nothing is forced, data reaches disk when the OS writes it back.
+        NONE,
+        //Each upload forces its own file and directory.
+        FSYNC,
+        //Uploads are forced in batches by the committer.
+        GROUP
+    }
+
+    //Largest batch, threads forcing a batch, samples kept for percentiles, and how often stats are printed.
+    private static final int MAX_BATCH = 256, FORCE_THREADS = 16, SAMPLES = 1024;
+    private static final long REPORT_MS = 60000;
+
+    private final Mode mode;
+    private final long windowNanos;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    //Threads forcing the files and directories of a batch at the same time, in group commit mode only.
+    private ExecutorService forcers;
+    //Whether the platform was found unable to open directories for forcing.
+    private volatile boolean directoriesUnsupported = false;
+    //Batch size counts, and a ring of the latest commit latencies in microseconds.
+    private final long[] batchSizes = new long[MAX_BATCH + 1];
+    private final long[] latencies = new long[SAMPLES];
+    private long commits = 0, lastReport = System.currentTimeMillis();
+
+    /**
+     * A file or directory waiting to be forced.
+     */
+    private static class Request {
+
+        final FileChannel file;
+        final Path directory;
+        final long queuedAt = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(FileChannel file, Path directory) {
+            this.file = file;
+            this.directory = directory;
+        }
+    }
+
+    /**
+     * Creates the durability policy, starting the committer in group commit mode.
+     *
+     * @param mode - Durability mode.
+     * @param windowMicros - Extra time the committer waits for more uploads before forcing a batch, 0 for none.
+     */
+    public Durability(Mode mode, long windowMicros) {
+        this.mode = mode;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        if (mode == Mode.GROUP) {
+            forcers = Executors.newFixedThreadPool(FORCE_THREADS, r -> {
+                Thread t = new Thread(r, "tftp-group-force");
+                t.setDaemon(true);
+                return t;
+            });
+            Thread committer = new Thread(this::commitLoop, "tftp-group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+        if (mode != Mode.NONE) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                Log.info(getReport());
+                Log.flush();
+            }, "tftp-durability-report"));
+        }
+    }
+
+    /**
+     * Returns the durability mode.
+     *
+     * @return the mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Forces an upload's data to disk, according to the mode.
+     *
+     * @param file - Channel of the uploaded file.
+     * @throws IOException is thrown when the data could not be forced.
+     */
+    public void syncFile(FileChannel file) throws IOException {
+        sync(file, null);
+    }
+
+    /**
+     * Forces a directory entry to disk after an upload has been renamed into it.
+     *
+     * @param directory - Directory holding the upload.
+     * @throws IOException is thrown when the directory could not be forced.
+     */
+    public void syncDirectory(Path directory) throws IOException {
+        sync(null, directory);
+    }
+
+    private void sync(FileChannel file, Path directory) throws IOException {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        Request request = new Request(file, directory);
+        if (mode == Mode.FSYNC) {
+            if (file != null) {
+                file.force(true);
+            } else {
+                forceDirectory(directory.toAbsolutePath());
+            }
+            record(request);
+            return;
+        }
+        queue.add(request);
+        try {
+            request.done.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for commit", ex);
+        } catch (ExecutionException ex) {
+            throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Forces a directory entry to disk. A directory which cannot be opened,
+     * as on platforms without directory sync, is logged once and skipped,
+     * while a failed force fails the upload.
+     */
+    private void forceDirectory(Path dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir, StandardOpenOption.READ);
+        } catch (IOException ex) {
+            if (!directoriesUnsupported) {
+                directoriesUnsupported = true;
+                Log.warn("Directories cannot be forced on this platform, renames are not made durable: {}", ex.toString());
+            }
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Committer loop, takes every request queued so far as a batch and forces it.
+     */
+    private void commitLoop() {
+        List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < MAX_BATCH && windowNanos > 0) {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            }
+            commit(batch);
+            synchronized (this) {
+                batchSizes[batch.size()]++;
+            }
+            for (Request request : batch) {
+                record(request);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forces a batch, every file and each distinct directory on its own
+     * thread, and completes each request once its file or directory is forced.
+     */
+    private void commit(List<Request> batch) {
+        //A lone request is forced on the committer itself, without a hand-off.
+        if (batch.size() == 1) {
+            Request request = batch.get(0);
+            complete(batch, () -> {
+                if (request.file != null) {
+                    request.file.force(true);
+                } else {
+                    forceDirectory(request.directory.toAbsolutePath());
+                }
+            });
+            return;
+        }
+        Map<Path, List<Request>> directories = new HashMap<>();
+        List<CompletableFuture<Void>> forces = new ArrayList<>();
+        for (Request request : batch) {
+            if (request.file != null) {
+                forces.add(CompletableFuture.runAsync(() -> complete(Collections.singletonList(request), () -> request.file.force(true)), forcers));
+            } else {
+                directories.computeIfAbsent(request.directory.toAbsolutePath(), d -> new ArrayList<>()).add(request);
+            }
+        }
+        for (Map.Entry<Path, List<Request>> entry : directories.entrySet()) {
+            forces.add(CompletableFuture.runAsync(() -> complete(entry.getValue(), () -> forceDirectory(entry.getKey())), forcers));
+        }
+        //The next batch gathers while this one is forced.
+        CompletableFuture.allOf(forces.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * A force of a file or directory.
+     */
+    private interface Force {
+
+        void run() throws IOException;
+    }
+
+    /**
+     * Runs a force and completes the requests waiting on it, exceptionally if it failed.
+     */
+    private void complete(List<Request> requests, Force force) {
+        try {
+            force.run();
+            for (Request request : requests) {
+                request.done.complete(null);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (Request request : requests) {
+                request.done.completeExceptionally(ex);
+            }
+        }
+    }
+
+    /**
+     * Records the latency of a finished commit and prints the stats every minute.
+     */
+    private synchronized void record(Request request) {
+        latencies[(int) (commits++ % SAMPLES)] = (System.nanoTime() - request.queuedAt) / 1000;
+        if (System.currentTimeMillis() - lastReport >= REPORT_MS) {
+            lastReport = System.currentTimeMillis();
+            Log.info(getReport());
+        }
+    }
+
+    /**
+     * Returns the commit batch sizes and latency percentiles seen so far.
+     *
+     * @return report of the commit stats
+     */
+    public synchronized String getReport() {
+        int n = (int) Math.min(commits, SAMPLES);
+        if (n == 0) {
+            return "Durability " + mode + ": no commits";
+        }
+        long[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        long batches = 0, batched = 0;
+        int largest = 0;
+        for (int i = 1; i < batchSizes.length; i++) {
+            batches += batchSizes[i];
+            batched += batchSizes[i] * i;
+            if (batchSizes[i] > 0) {
+                largest = i;
+            }
+        }
+        String batchStats = batches == 0 ? "" : String.format(", batches %d, mean size %.1f, largest %d", batches, (double) batched / batches, largest);
+        return String.format("Durability %s: %d commits%s, latency p50 %dus p99 %dus max %dus", mode, commits, batchStats,
+                sorted[n / 2], sorted[Math.min(n - 1, n * 99 / 100)], sorted[n - 1]);
+    }
+}
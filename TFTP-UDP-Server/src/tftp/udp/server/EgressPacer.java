@@ -0,0 +1,280 @@
+package tftp.udp.server;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import tftp.udp.shared.Log;
+
+/**
+ * Server-wide egress budget and the scheduler sharing it between transfers.
+ * A pacer thread releases send credits every interval at the cap's rate,
+ * and sessions take credits before each DATA packet. Unused credit does not
+ * pile up beyond one packet, so the aggregate rate stays smooth rather than
+ * bursting after a quiet spell.
+ * <p>
+ * Once sessions queue for credit, retransmissions and the first blocks of
+ * new sessions go first, so a saturated server still answers boot-critical
+ * small fetches and recovers lost packets quickly. The rest is shared between
+ * transfer classes in proportion to their weights by start-time fair
+ * queueing, and within a class sessions are served in the order they asked.
+ *
+ * @author 184514
+ */
+public class EgressPacer implements EgressPacerMBean {
+
+    //Unused credit carried into the next release, a full packet, so a session busy waiting for its ACK at a release does not lose its share.
+    private static final long PACKET = 516;
+
+    private volatile long capBytesPerSecond;
+    private volatile long intervalNanos;
+    private long credits = 0;
+    private long bytesReleased = 0;
+    //Retransmissions and first blocks, served before any class.
+    private final ArrayDeque<Waiter> urgent = new ArrayDeque<>();
+    //Classes with sessions waiting, and the virtual time of the last class served.
+    private final List<TransferClass> active = new ArrayList<>();
+    private long systemVirtualTime = 0;
+    //Classes in the order they are matched, the default class takes everything else.
+    private final List<TransferClass> classes = new CopyOnWriteArrayList<>();
+    private final TransferClass defaultClass = new TransferClass("default", 1, null, -1, -1, null);
+    //One waiter per thread, reused for every packet it sends.
+    private final ThreadLocal<Waiter> threadWaiter = ThreadLocal.withInitial(Waiter::new);
+
+    /**
+     * Session waiting for credit.
+     */
+    static class Waiter {
+        final Thread thread = Thread.currentThread();
+        int bytes;
+        TransferClass transferClass;
+        boolean isUrgent;
+        volatile boolean granted;
+    }
+
+    /**
+     * Creates the pacer and starts its thread.
+     *
+     * @param capBytesPerSecond - Cap on the bytes sent per second by all sessions together, 0 for no cap.
+     * @param intervalMicros - Time between credit releases in microseconds.
+     */
+    public EgressPacer(long capBytesPerSecond, long intervalMicros) {
+        this.capBytesPerSecond = capBytesPerSecond;
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(1, intervalMicros));
+        Thread pacer = new Thread(this::releaseCredits, "tftp-egress-pacer");
+        pacer.setDaemon(true);
+        pacer.start();
+    }
+
+    /**
+     * Adds a transfer class, matched after the classes already added.
+     *
+     * @param transferClass - Class to add.
+     */
+    public void addClass(TransferClass transferClass) {
+        classes.add(transferClass);
+    }
+
+    /**
+     * Finds the class of a transfer.
+     *
+     * @param filename - Name of the file requested.
+     * @param size - Size of the file, or -1 if unknown.
+     * @param client - Client's address.
+     * @return the first class whose rules match, or the default class
+     */
+    public TransferClass classify(String filename, long size, InetAddress client) {
+        for (TransferClass transferClass : classes) {
+            if (transferClass.matches(filename, size, client)) {
+                return transferClass;
+            }
+        }
+        return defaultClass;
+    }
+
+    /**
+     * Returns the class of transfers no other class matches.
+     *
+     * @return the default class
+     */
+    public TransferClass getDefaultClass() {
+        return defaultClass;
+    }
+
+    /**
+     * Waits for credit to send a packet.
+     *
+     * @param bytes - Size of the packet.
+     * @param transferClass - Class of the session sending it.
+     * @param isUrgent - Whether the packet is a retransmission or one of the session's first blocks.
+     * @throws InterruptedException is thrown when the thread is interrupted while waiting.
+     */
+    public void acquire(int bytes, TransferClass transferClass, boolean isUrgent) throws InterruptedException {
+        transferClass.recordSent(bytes);
+        if (capBytesPerSecond <= 0) {
+            return;
+        }
+        Waiter waiter;
+        synchronized (this) {
+            //Credit goes straight to a sender only if nobody is queued ahead of it.
+            if (urgent.isEmpty() && active.isEmpty() && credits >= bytes) {
+                credits -= bytes;
+                bytesReleased += bytes;
+                return;
+            }
+            waiter = threadWaiter.get();
+            waiter.bytes = bytes;
+            waiter.transferClass = transferClass;
+            waiter.isUrgent = isUrgent;
+            waiter.granted = false;
+            if (isUrgent) {
+                urgent.add(waiter);
+            } else {
+                if (transferClass.waiting.isEmpty()) {
+                    //A class which was idle starts level with the others, it gets no credit for the time it was idle.
+                    transferClass.virtualTime = Math.max(transferClass.virtualTime, systemVirtualTime);
+                    active.add(transferClass);
+                }
+                transferClass.waiting.add(waiter);
+            }
+        }
+        //Only the pacer wakes a waiter, once its credit is granted.
+        while (!waiter.granted) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                synchronized (this) {
+                    if (!waiter.granted) {
+                        dequeue(waiter);
+                        throw new InterruptedException();
+                    }
+                }
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Removes a waiter which gave up.
+     */
+    private void dequeue(Waiter waiter) {
+        if (waiter.isUrgent) {
+            urgent.remove(waiter);
+        } else {
+            waiter.transferClass.waiting.remove(waiter);
+            if (waiter.transferClass.waiting.isEmpty()) {
+                active.remove(waiter.transferClass);
+            }
+        }
+    }
+
+    /**
+     * Picks the next waiter: urgent ones first, then the head of the class
+     * with the lowest virtual time.
+     */
+    private Waiter next() {
+        Waiter next = urgent.peek();
+        if (next != null) {
+            return next;
+        }
+        TransferClass lowest = null;
+        for (TransferClass transferClass : active) {
+            if (lowest == null || transferClass.virtualTime < lowest.virtualTime) {
+                lowest = transferClass;
+            }
+        }
+        return lowest == null ? null : lowest.waiting.peek();
+    }
+
+    /**
+     * Pacer thread: every interval adds the credit earned since the last
+     * release and hands it to waiting sessions in turn.
+     */
+    private void releaseCredits() {
+        long last = System.nanoTime();
+        while (true) {
+            long cap = capBytesPerSecond;
+            long interval = intervalNanos;
+            LockSupport.parkNanos(cap > 0 ? interval : TimeUnit.MILLISECONDS.toNanos(100));
+            long now = System.nanoTime();
+            long earned = cap * (now - last) / 1000000000L;
+            //Only whole bytes are released, the rest of the time carries over.
+            last = cap > 0 ? last + earned * 1000000000L / cap : now;
+            synchronized (this) {
+                //Credit earned is always released in full, even after a late wakeup, only unused credit is cut back.
+                credits = Math.min(PACKET, credits) + earned;
+                Waiter next;
+                //Once the cap is lifted everyone still waiting is let through.
+                while ((next = next()) != null && (next.bytes <= credits || cap <= 0)) {
+                    if (next.isUrgent) {
+                        urgent.poll();
+                    } else {
+                        TransferClass transferClass = next.transferClass;
+                        transferClass.waiting.poll();
+                        //Each class's virtual time advances by its packets' sizes over its weight.
+                        systemVirtualTime = transferClass.virtualTime;
+                        transferClass.virtualTime += next.bytes * 1024L / transferClass.getWeight();
+                        if (transferClass.waiting.isEmpty()) {
+                            active.remove(transferClass);
+                        }
+                    }
+                    credits -= next.bytes;
+                    bytesReleased += next.bytes;
+                    next.granted = true;
+                    LockSupport.unpark(next.thread);
+                }
+                if (cap <= 0) {
+                    credits = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getCapBytesPerSecond() {
+        return capBytesPerSecond;
+    }
+
+    @Override
+    public void setCapBytesPerSecond(long capBytesPerSecond) {
+        this.capBytesPerSecond = Math.max(0, capBytesPerSecond);
+        Log.info("Egress cap set to {} bytes per second (0 is no cap)", this.capBytesPerSecond);
+    }
+
+    @Override
+    public long getIntervalMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(intervalNanos);
+    }
+
+    @Override
+    public void setIntervalMicros(long intervalMicros) {
+        this.intervalNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(1, intervalMicros));
+        Log.info("Egress pacing interval set to {} microseconds", intervalMicros);
+    }
+
+    @Override
+    public synchronized int getWaitingSessions() {
+        int waiting = urgent.size();
+        for (TransferClass transferClass : active) {
+            waiting += transferClass.waiting.size();
+        }
+        return waiting;
+    }
+
+    @Override
+    public synchronized long getBytesReleased() {
+        return bytesReleased;
+    }
+
+    @Override
+    public String[] getClassReport() {
+        String[] report = new String[classes.size() + 1];
+        for (int i = 0; i < classes.size(); i++) {
+            report[i] = classes.get(i).getReport();
+        }
+        report[classes.size()] = defaultClass.getReport();
+        return report;
+    }
+}
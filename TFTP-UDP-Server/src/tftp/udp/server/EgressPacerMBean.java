@@ -0,0 +1,45 @@
+package tftp.udp.server;
+
+/**
+ * Management interface of the egress pacer, so the cap and pacing interval
+ * can be changed at runtime from any JMX console.
+ *
+ * @author 184514
+ */
+public interface EgressPacerMBean {
+
+    /**
+     * @return the server-wide cap in bytes per second, 0 for no cap
+     */
+    long getCapBytesPerSecond();
+
+    /**
+     * @param capBytesPerSecond - New cap in bytes per second, 0 for no cap.
+     */
+    void setCapBytesPerSecond(long capBytesPerSecond);
+
+    /**
+     * @return the time between credit releases in microseconds
+     */
+    long getIntervalMicros();
+
+    /**
+     * @param intervalMicros - New time between credit releases in microseconds.
+     */
+    void setIntervalMicros(long intervalMicros);
+
+    /**
+     * @return the number of sessions waiting for credit
+     */
+    int getWaitingSessions();
+
+    /**
+     * @return the total bytes released to sessions
+     */
+    long getBytesReleased();
+
+    /**
+     * @return a line per transfer class with its throughput and completion time percentiles
+     */
+    String[] getClassReport();
+}
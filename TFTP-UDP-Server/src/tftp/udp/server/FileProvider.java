@@ -0,0 +1,33 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+
+/**
+ * Source of the files served to, and written by, clients. The server asks
+ * each provider in turn, and the first one which claims a filename handles it.
+ *
+ * @author 184514
+ */
+public interface FileProvider {
+
+    /**
+     * Opens a file for reading.
+     *
+     * @param filename - Filename as sent by the client.
+     * @param blockSize - Number of payload bytes per DATA packet.
+     * @return The opened file, or null if this provider does not serve the name.
+     * @throws java.io.FileNotFoundException is thrown when the name is this provider's but does not exist.
+     * @throws IOException is thrown when the file cannot be read.
+     */
+    ServedFile openRead(String filename, int blockSize) throws IOException;
+
+    /**
+     * Opens a file for writing.
+     *
+     * @param filename - Filename as sent by the client.
+     * @return Sink the upload is written to, or null if this provider does not accept the name.
+     * @throws java.io.FileNotFoundException is thrown when the file cannot be created.
+     * @throws IOException is thrown when the file cannot be written.
+     */
+    UploadSink openWrite(String filename) throws IOException;
+}
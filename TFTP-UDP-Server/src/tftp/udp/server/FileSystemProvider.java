@@ -0,0 +1,199 @@
+package tftp.udp.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves files from the server's working directory. Lookups go through the
+ * tree index first, hot files come from the packet cache, and anything else
+ * is read ahead from disk.
+ *
+ * @author 184514
+ */
+public class FileSystemProvider implements FileProvider {
+
+    private final ServedTreeIndex index;
+    private final DataPacketCache packetCache;
+    private final ExecutorService readAheadPool;
+    private final BufferPool dataBuffers;
+    private final ExecutorService writerPool;
+    private final Durability durability;
+    //Blocks queued ahead of the disk per upload, and the largest merged write.
+    private static final int RING_BLOCKS = 128, MERGED_WRITE = 64 * 1024;
+    //Upload size after which the rest of an upload bypasses the page cache, -1 for never.
+    private volatile long directThreshold = 64L * 1024 * 1024;
+    //Files and directories of the server's own lying in the served tree, as absolute paths.
+    private final Set<Path> hidden = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates the filesystem provider.
+     *
+     * @param index - Index of the served tree, or null to always ask the filesystem.
+     * @param packetCache - Cache of pre-encoded DATA packets.
+     * @param readAheadPool - Pool running read-ahead disk reads.
+     * @param dataBuffers - Pool of DATA packet buffers.
+     * @param writerPool - Pool running write-behind upload writers.
+     * @param durability - Policy forcing uploads to disk before their final ACK.
+     */
+    public FileSystemProvider(ServedTreeIndex index, DataPacketCache packetCache, ExecutorService readAheadPool, BufferPool dataBuffers, ExecutorService writerPool, Durability durability) {
+        this.index = index;
+        this.packetCache = packetCache;
+        this.readAheadPool = readAheadPool;
+        this.dataBuffers = dataBuffers;
+        this.writerPool = writerPool;
+        this.durability = durability;
+    }
+
+    /**
+     * Sets the upload size after which uploads are written with direct I/O.
+     *
+     * @param directThreshold - Size in bytes, or -1 to never bypass the page cache.
+     */
+    public void setDirectThreshold(long directThreshold) {
+        this.directThreshold = directThreshold;
+    }
+
+    /**
+     * Keeps a file of the server's own, which lies in the served tree, from
+     * being read or written by clients. Hiding a directory hides everything
+     * below it.
+     *
+     * @param file - File or directory to hide.
+     */
+    public void hide(Path file) {
+        hidden.add(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * Returns whether a requested name refers to a hidden file, one below a
+     * hidden directory, or an upload still being written, which only becomes
+     * a file when published.
+     *
+     * @param filename - Filename as sent by the client.
+     * @return true if clients may neither read nor write the name
+     */
+    public boolean isHidden(String filename) {
+        try {
+            Path path = Paths.get(filename);
+            Path name = path.getFileName();
+            if (name != null && VersionedFileSink.isVersion(name.toString())) {
+                return true;
+            }
+            Path absolute = path.toAbsolutePath().normalize();
+            for (Path file : hidden) {
+                if (absolute.startsWith(file)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InvalidPathException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Opens a file on disk. Missing files are passed on to any provider after
+     * this one, such as the upstream relay.
+     */
+    @Override
+    public ServedFile openRead(String filename, int blockSize) throws IOException {
+        if (isHidden(filename)) {
+            return null;
+        }
+        //Files the index knows are missing are refused without touching the disk.
+        ServedTreeIndex.FileInfo info = index != null ? index.lookup(filename) : null;
+        if (info == ServedTreeIndex.MISSING) {
+            return null;
+        }
+        long size = info != null ? info.size : new File(filename).length();
+        CachedBlockSource cached = packetCache.open(filename, blockSize);
+        if (cached != null) {
+            //The slab records the size and time of the version it was encoded from.
+            return new DiskFile(cached, size, filename, cached.getFileLength(), cached.getLastModified());
+        }
+        try {
+            Path path = Paths.get(filename);
+            BasicFileAttributes before = attributesOf(path);
+            FileChannel channel = new FileInputStream(filename).getChannel();
+            BasicFileAttributes after = attributesOf(path);
+            //Only if the name pointed at the same file either side of opening it is the time known to be the opened file's.
+            long lastModified = before != null && after != null && Objects.equals(before.fileKey(), after.fileKey())
+                    && before.lastModifiedTime().equals(after.lastModifiedTime()) ? after.lastModifiedTime().toMillis() : -1;
+            return new DiskFile(new ReadAheadBlockSource(channel, blockSize, readAheadPool, dataBuffers), size, filename,
+                    channel.size(), lastModified);
+        } catch (FileNotFoundException ex) {
+            if (index != null && info == null) {
+                index.recordMiss(filename);
+            }
+            return null;
+        }
+    }
+
+    private static BasicFileAttributes attributesOf(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a new version of a file on disk, which replaces the live one in
+     * a single rename when committed. Blocks are written behind the network
+     * thread. Cached packets of the old version are dropped and the index is
+     * refreshed once it is published.
+     */
+    @Override
+    public UploadSink openWrite(final String filename) throws IOException {
+        if (isHidden(filename)) {
+            throw new FileNotFoundException(filename);
+        }
+        try {
+            UploadSink file = new VersionedFileSink(Paths.get(filename), () -> {
+                packetCache.invalidate(filename);
+                if (index != null) {
+                    index.refresh(filename);
+                }
+            }, durability, directThreshold);
+            return new WriteBehindSink(file, writerPool, dataBuffers, RING_BLOCKS, MERGED_WRITE);
+        } catch (InvalidPathException ex) {
+            throw new FileNotFoundException(filename);
+        }
+    }
+
+    /**
+     * File on disk, whose digest sidecar is only read if a client asks for it.
+     * The sidecar is checked against the size and modified time of the file
+     * that was opened, since the name may have been replaced since.
+     */
+    private static class DiskFile extends ServedFile {
+
+        private final String filename;
+        private final long openedSize, openedModified;
+
+        DiskFile(DataBlockSource source, long size, String filename, long openedSize, long openedModified) {
+            super(source, size);
+            this.filename = filename;
+            this.openedSize = openedSize;
+            this.openedModified = openedModified;
+        }
+
+        @Override
+        public String getDigest() {
+            //The opened file's time is unknown if the name was replaced while it was opened.
+            return openedModified < 0 ? null : DigestSidecar.read(Paths.get(filename), openedSize, openedModified);
+        }
+    }
+}
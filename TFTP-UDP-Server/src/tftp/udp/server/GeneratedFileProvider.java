@@ -0,0 +1,148 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves files generated in memory from the requested filename, such as
+ * per-device configs named after a MAC or IP address. Generated content is
+ * memoised in a bounded cache with a time to live and served from
+ * ByteBuffers, so nothing is ever written to disk. Writes are not accepted.
+ *
+ * @author 184514
+ */
+public class GeneratedFileProvider implements FileProvider {
+
+    private final List<Rule> rules = new CopyOnWriteArrayList<>();
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Generated> cache;
+
+    /**
+     * Produces the content of a generated file.
+     */
+    public interface ContentGenerator {
+
+        /**
+         * Generates the content of a file.
+         *
+         * @param filename - Requested filename.
+         * @param match - Match of the rule's pattern against the whole filename.
+         * @return Content of the file.
+         * @throws IOException is thrown when the content cannot be generated.
+         */
+        byte[] generate(String filename, Matcher match) throws IOException;
+    }
+
+    private static class Rule {
+
+        final Pattern pattern;
+        final ContentGenerator generator;
+
+        Rule(Pattern pattern, ContentGenerator generator) {
+            this.pattern = pattern;
+            this.generator = generator;
+        }
+    }
+
+    private static class Generated {
+
+        final ByteBuffer content;
+        final long createdAt;
+
+        Generated(ByteBuffer content, long createdAt) {
+            this.content = content;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * Creates a provider with no rules.
+     *
+     * @param maxEntries - Most generated files kept in memory.
+     * @param ttlMillis - How long a generated file is served before it is generated again.
+     */
+    public GeneratedFileProvider(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.cache = new LinkedHashMap<String, Generated>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Generated> eldest) {
+                return size() > GeneratedFileProvider.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Adds a rule. Rules are tried in the order they were added.
+     *
+     * @param pattern - Pattern which must match the whole requested filename.
+     * @param generator - Generator for filenames matching the pattern.
+     */
+    public void addRule(Pattern pattern, ContentGenerator generator) {
+        rules.add(new Rule(pattern, generator));
+    }
+
+    /**
+     * Returns a generator which fills a text template with the groups matched
+     * from the filename, written as $1, $2 and so on.
+     *
+     * @param template - Template text.
+     * @return template generator
+     */
+    public static ContentGenerator template(final String template) {
+        return (filename, match) -> {
+            StringBuffer out = new StringBuffer();
+            Matcher m = Pattern.compile("\\$(\\d)").matcher(template);
+            while (m.find()) {
+                int group = Integer.parseInt(m.group(1));
+                String value = group <= match.groupCount() && match.group(group) != null ? match.group(group) : "";
+                m.appendReplacement(out, Matcher.quoteReplacement(value));
+            }
+            m.appendTail(out);
+            return out.toString().getBytes(StandardCharsets.US_ASCII);
+        };
+    }
+
+    /**
+     * Serves a generated file, from the cache if it has not expired.
+     */
+    @Override
+    public ServedFile openRead(String filename, int blockSize) throws IOException {
+        for (Rule rule : rules) {
+            Matcher match = rule.pattern.matcher(filename);
+            if (!match.matches()) {
+                continue;
+            }
+            long now = System.currentTimeMillis();
+            Generated generated;
+            synchronized (cache) {
+                generated = cache.get(filename);
+            }
+            if (generated == null || now - generated.createdAt > ttlMillis) {
+                generated = new Generated(ByteBuffer.wrap(rule.generator.generate(filename, match)), now);
+                synchronized (cache) {
+                    cache.put(filename, generated);
+                }
+            }
+            ByteBuffer content = generated.content.duplicate();
+            return new ServedFile(new ByteBufferBlockSource(content, blockSize), content.remaining());
+        }
+        return null;
+    }
+
+    /**
+     * Generated files are read only.
+     */
+    @Override
+    public UploadSink openWrite(String filename) {
+        return null;
+    }
+}
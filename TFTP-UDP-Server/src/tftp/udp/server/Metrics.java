@@ -0,0 +1,211 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import tftp.udp.server.PacketClasses.ErrorPacket.ErrorCodes;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * Counters and histograms of the server's traffic, kept for the Prometheus
+ * endpoint. Counters are striped adders and histograms are lock-free, so
+ * recording from every transfer thread costs a few uncontended increments
+ * per packet. Direction labels are taken from the request type: read
+ * transfers send DATA, write transfers receive it.
+ *
+ * @author 184514
+ */
+public class Metrics {
+
+    //Upper bounds of the exported histogram buckets, in microseconds.
+    private static final long[] BUCKETS = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000,
+        250000, 500000, 1000000, 2500000, 5000000, 10000000, 30000000, 60000000};
+
+    private final LongAdder readRequests = new LongAdder(), writeRequests = new LongAdder(),
+            otherRequests = new LongAdder(), droppedRequests = new LongAdder();
+    private final LongAdder activeReads = new LongAdder(), activeWrites = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder(), blocksSent = new LongAdder(),
+            bytesReceived = new LongAdder(), blocksReceived = new LongAdder();
+    private final LongAdder retransmits = new LongAdder(), timeouts = new LongAdder();
+    private final LongAdder[] errorsSent = new LongAdder[ErrorCodes.values().length];
+    private final LatencyHistogram firstData = new LatencyHistogram(), blockRtt = new LatencyHistogram(),
+            readDuration = new LatencyHistogram(), writeDuration = new LatencyHistogram();
+
+    public Metrics() {
+        for (int i = 0; i < errorsSent.length; i++) {
+            errorsSent[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Counts a request arriving at the listener.
+     *
+     * @param type - Type of the packet, READ, WRITE or anything else.
+     */
+    public void requestReceived(PacketType type) {
+        (type == PacketType.READ ? readRequests : type == PacketType.WRITE ? writeRequests : otherRequests).increment();
+    }
+
+    /**
+     * Counts a datagram at the listener which is not a TFTP packet, with the other requests.
+     */
+    public void requestMalformed() {
+        otherRequests.increment();
+    }
+
+    /**
+     * Counts a request dropped by the per-client limits.
+     */
+    public void requestDropped() {
+        droppedRequests.increment();
+    }
+
+    /**
+     * @param type - READ or WRITE.
+     */
+    public void sessionStarted(PacketType type) {
+        (type == PacketType.READ ? activeReads : activeWrites).increment();
+    }
+
+    /**
+     * @param type - READ or WRITE.
+     */
+    public void sessionEnded(PacketType type) {
+        (type == PacketType.READ ? activeReads : activeWrites).decrement();
+    }
+
+    /**
+     * Counts a DATA packet sent, retransmissions included.
+     *
+     * @param bytes - Length of the packet.
+     */
+    public void dataSent(int bytes) {
+        bytesSent.add(bytes);
+        blocksSent.increment();
+    }
+
+    /**
+     * Counts a new DATA packet received.
+     *
+     * @param bytes - Length of the packet.
+     */
+    public void dataReceived(int bytes) {
+        bytesReceived.add(bytes);
+        blocksReceived.increment();
+    }
+
+    public void retransmit() {
+        retransmits.increment();
+    }
+
+    public void timeout() {
+        timeouts.increment();
+    }
+
+    /**
+     * Counts an ERROR packet sent to a client.
+     *
+     * @param code - Error code sent.
+     */
+    public void errorSent(ErrorCodes code) {
+        errorsSent[code.ordinal()].increment();
+    }
+
+    /**
+     * @param nanos - Time from a read request to its first DATA packet.
+     */
+    public void firstData(long nanos) {
+        firstData.record(nanos / 1000);
+    }
+
+    /**
+     * Records the round trip of a block which was sent once, a packet and
+     * its reply. Retransmitted blocks are left out as their reply could
+     * belong to either copy.
+     *
+     * @param nanos - Time from sending the packet to its reply.
+     */
+    public void blockRtt(long nanos) {
+        blockRtt.record(nanos / 1000);
+    }
+
+    /**
+     * @param type - READ or WRITE.
+     * @param nanos - Time from the request to the final ACK.
+     */
+    public void transferDone(PacketType type, long nanos) {
+        (type == PacketType.READ ? readDuration : writeDuration).record(nanos / 1000);
+    }
+
+    /**
+     * Writes every metric in the Prometheus text exposition format.
+     *
+     * @param out - Destination of the text.
+     * @throws IOException is thrown when the text cannot be written.
+     */
+    public void writePrometheus(Appendable out) throws IOException {
+        header(out, "tftp_requests_total", "counter", "Requests received by the listener.");
+        sample(out, "tftp_requests_total{type=\"rrq\"}", readRequests.sum());
+        sample(out, "tftp_requests_total{type=\"wrq\"}", writeRequests.sum());
+        sample(out, "tftp_requests_total{type=\"other\"}", otherRequests.sum());
+        sample(out, "tftp_requests_total{type=\"dropped\"}", droppedRequests.sum());
+        header(out, "tftp_active_sessions", "gauge", "Transfers in progress.");
+        sample(out, "tftp_active_sessions{direction=\"read\"}", activeReads.sum());
+        sample(out, "tftp_active_sessions{direction=\"write\"}", activeWrites.sum());
+        header(out, "tftp_data_bytes_total", "counter", "DATA packet bytes, headers included.");
+        sample(out, "tftp_data_bytes_total{direction=\"sent\"}", bytesSent.sum());
+        sample(out, "tftp_data_bytes_total{direction=\"received\"}", bytesReceived.sum());
+        header(out, "tftp_data_blocks_total", "counter", "DATA packets.");
+        sample(out, "tftp_data_blocks_total{direction=\"sent\"}", blocksSent.sum());
+        sample(out, "tftp_data_blocks_total{direction=\"received\"}", blocksReceived.sum());
+        header(out, "tftp_retransmits_total", "counter", "Packets sent again after a timeout.");
+        sample(out, "tftp_retransmits_total", retransmits.sum());
+        header(out, "tftp_timeouts_total", "counter", "Receive timeouts in transfers.");
+        sample(out, "tftp_timeouts_total", timeouts.sum());
+        header(out, "tftp_errors_total", "counter", "ERROR packets sent to clients.");
+        for (ErrorCodes code : ErrorCodes.values()) {
+            sample(out, "tftp_errors_total{code=\"" + code.name().toLowerCase(Locale.ROOT) + "\"}", errorsSent[code.ordinal()].sum());
+        }
+        histogram(out, "tftp_first_data_seconds", "Time from a read request to its first DATA packet.", "", firstData);
+        histogram(out, "tftp_block_rtt_seconds", "Round trip of blocks sent once.", "", blockRtt);
+        header(out, "tftp_transfer_duration_seconds", "histogram", "Time from a request to its final ACK.");
+        histogramSamples(out, "tftp_transfer_duration_seconds", "direction=\"read\",", readDuration);
+        histogramSamples(out, "tftp_transfer_duration_seconds", "direction=\"write\",", writeDuration);
+    }
+
+    private static void header(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, long value) throws IOException {
+        out.append(name).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static void histogram(Appendable out, String name, String help, String labels, LatencyHistogram histogram) throws IOException {
+        header(out, name, "histogram", help);
+        histogramSamples(out, name, labels, histogram);
+    }
+
+    /**
+     * Writes a histogram's cumulative buckets, sum and count, in seconds.
+     *
+     * @param labels - Labels every sample carries, each followed by a comma.
+     */
+    private static void histogramSamples(Appendable out, String name, String labels, LatencyHistogram histogram) throws IOException {
+        for (long bound : BUCKETS) {
+            out.append(name).append("_bucket{").append(labels).append("le=\"").append(seconds(bound)).append("\"} ")
+                    .append(Long.toString(histogram.countAtMost(bound))).append('\n');
+        }
+        long count = histogram.count();
+        out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(Long.toString(count)).append('\n');
+        String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        out.append(name).append("_sum").append(plain).append(' ').append(seconds(histogram.sum())).append('\n');
+        out.append(name).append("_count").append(plain).append(' ').append(Long.toString(count)).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,61 @@
+package tftp.udp.server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the metrics at /metrics in the Prometheus text format, from a
+ * small HTTP listener bound to the loopback address only. Scrapes are
+ * answered on one daemon thread, away from every transfer.
+ *
+ * @author 184514
+ */
+public class MetricsServer {
+
+    private final HttpServer server;
+
+    /**
+     * Starts listening.
+     *
+     * @param metrics - Metrics to publish.
+     * @param port - Local port to listen on.
+     * @throws IOException is thrown when the port cannot be bound.
+     */
+    public MetricsServer(Metrics metrics, int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                StringBuilder text = new StringBuilder(4096);
+                metrics.writePrometheus(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "tftp-metrics");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+    }
+
+    /**
+     * Returns the port the listener is bound to.
+     *
+     * @return local port
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+}
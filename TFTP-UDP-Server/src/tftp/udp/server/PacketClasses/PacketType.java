@@ -13,7 +13,8 @@ public enum PacketType {
     WRITE("WRQ", 2),
     DATA("DATA", 3),
     ACK("ACK", 4),
-    ERROR("ERROR", 5);
+    ERROR("ERROR", 5),
+    OACK("OACK", 6);
 
     /**
      * Returns the type of packet from the given Opcode.
@@ -23,12 +24,31 @@ public enum PacketType {
      * @throws TFTPException thrown when no packet type has the given opcode
      */
     static PacketType fromOpcode(short opcode) throws TFTPException {
+        PacketType type = lookup(opcode);
+        if (type == null) {
+            throw new TFTPException("Opcode not found: " + opcode + " Should be between (1 & 6)");
+        }
+        return type;
+    }
+
+    /**
+     * Returns the type of packet from the given Opcode, through a table
+     * indexed by opcode rather than a scan of values(), which copies the array.
+     *
+     * @param opcode opcode of packet type to be returned
+     * @return packet type with the given opcode, or null if there is none
+     */
+    public static PacketType lookup(short opcode) {
+        return opcode >= 0 && opcode < BY_OPCODE.length ? BY_OPCODE[opcode] : null;
+    }
+
+    //Packet types indexed by opcode, built once.
+    private static final PacketType[] BY_OPCODE = new PacketType[7];
+
+    static {
         for (PacketType type : values()) {
-            if (type.opcode == opcode) {
-                return type;
-            }
+            BY_OPCODE[type.opcode] = type;
         }
-        throw new TFTPException("Opcode not found: " + opcode + " Should be between (1 & 5)");
     }
     private String packetType;
     private short opcode;
@@ -2,6 +2,8 @@ package tftp.udp.server.PacketClasses;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author 184514
@@ -12,6 +14,7 @@ public class RRQPacket extends TFTPPacket {
     private final String fname;
     private final String mode = "octet";
     private final byte[] bytes;
+    private final Map<String, String> options;
 
     /**
      * Creates a Read Request (RRQ) Packet using the filename.
@@ -20,6 +23,7 @@ public class RRQPacket extends TFTPPacket {
      */
     public RRQPacket(String filename) {
         this.fname = filename;
+        this.options = Collections.emptyMap();
         byte[] fnameBytes = getBytes(filename);
         byte[] modBytes = getBytes(mode);
         this.bytes = new byte[fnameBytes.length + modBytes.length + 2];
@@ -42,6 +46,11 @@ public class RRQPacket extends TFTPPacket {
             offset++;
         }
         offset++;
+        //Skips over the mode, anything after it is options.
+        while (offset < len && dataInPacket[offset] != 0) {
+            offset++;
+        }
+        this.options = readOptions(dataInPacket, offset + 1, len);
         this.bytes = new byte[len];
         System.arraycopy(dataInPacket, 0, this.bytes, 0, len);
 
@@ -119,4 +128,12 @@ public class RRQPacket extends TFTPPacket {
         return fname;
     }
 
+    /**
+     * Returns the options sent with the request.
+     *
+     * @return Map of option names (lower case) to values, empty if none were sent.
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
 }
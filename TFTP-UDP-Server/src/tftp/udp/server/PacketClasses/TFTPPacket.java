@@ -1,6 +1,10 @@
 package tftp.udp.server.PacketClasses;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 import tftp.udp.server.TFTPException;
 
 /**
@@ -37,12 +41,42 @@ public abstract class TFTPPacket {
                 return new AckPacket(buffer, len);
             case ERROR:
                 return new ErrorPacket(buffer, len);
+            case OACK:
+                return new OACKPacket(buffer, len);
             //Invalid packetTypes lead to an exception thrown. Also thrown in packetType enum.
             default:
                 throw new TFTPException("Unknown packet type: " + packetType);
         }
     }
 
+    /**
+     * Reads the null terminated option name and value pairs (RFC 2347) which
+     * follow the mode of a request, or make up an OACK packet.
+     *
+     * @param dataInPacket - Raw packet data.
+     * @param offset - Position of the first option name.
+     * @param len - Length of the packet, nothing past it is read.
+     * @return Options in the order they were sent, names in lower case.
+     */
+    protected static Map<String, String> readOptions(byte[] dataInPacket, int offset, int len) {
+        Map<String, String> options = new LinkedHashMap<>();
+        String name = null;
+        int start = offset;
+        for (int i = offset; i < len; i++) {
+            if (dataInPacket[i] == 0) {
+                String value = new String(dataInPacket, start, i - start, StandardCharsets.US_ASCII);
+                if (name == null) {
+                    name = value.toLowerCase(Locale.ROOT);
+                } else {
+                    options.put(name, value);
+                    name = null;
+                }
+                start = i + 1;
+            }
+        }
+        return options;
+    }
+
     /**
      * An abstract method which will be implemented by all the child classes 
      */
@@ -2,6 +2,8 @@ package tftp.udp.server.PacketClasses;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * @author 184514
@@ -12,6 +14,7 @@ public class WRQPacket extends TFTPPacket {
     private final String fname; //filename
     private final String mode = "octet";
     private final byte[] bytes;
+    private final Map<String, String> options;
 
     /**
      * Constructor creates a Write Request (WRQ) Packet using the filename.
@@ -20,6 +23,7 @@ public class WRQPacket extends TFTPPacket {
      */
     public WRQPacket(String fname) {
         this.fname = fname;
+        this.options = Collections.emptyMap();
         byte[] fnBytes = getBytes(fname);
         byte[] modeBytes = getBytes(mode);
         //Size of bytes array needs to be larger than (fnamelen + len of mode)
@@ -48,6 +52,11 @@ public class WRQPacket extends TFTPPacket {
             modeOffset++;
         }
         modeOffset++;
+        //Skips over the mode, anything after it is options.
+        while (modeOffset < len && dataInPacket[modeOffset] != 0) {
+            modeOffset++;
+        }
+        this.options = readOptions(dataInPacket, modeOffset + 1, len);
         //Bytes stores the len of packet.
         this.bytes = new byte[len];
         /*Copies dataInPacket array from start pos 0 to bytes array start pos 0. 
@@ -129,4 +138,13 @@ public class WRQPacket extends TFTPPacket {
         int len = nullPos - offset;
         return new String(dataInPacket, offset, len, StandardCharsets.US_ASCII);
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns the options sent with the request.
+     *
+     * @return Map of option names (lower case) to values, empty if none were sent.
+     */
+    public Map<String, String> getOptions() {
+        return options;
+    }
+}
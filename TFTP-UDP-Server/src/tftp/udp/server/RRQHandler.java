@@ -1,6 +1,5 @@
 package tftp.udp.server;
 
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.DatagramPacket;
@@ -8,9 +7,15 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import tftp.udp.server.PacketClasses.*;
+import tftp.udp.shared.FlightEvents;
+import tftp.udp.shared.Log;
+import tftp.udp.shared.PacketCodec;
 
 /**
  * @author 184514
@@ -21,8 +26,27 @@ public class RRQHandler implements Runnable {
     private final int portOfClient;
     private final InetAddress addressOfClient;
     RRQPacket rrqPKT;
+    private final ServerContext context;
+    //Paces this client's transfers, null if bandwidth is not limited.
+    private final TokenBucket bandwidth;
+    //Paces all transfers together, and the class this transfer is scheduled in once its file is open.
+    private final EgressPacer egress;
+    private TransferClass transferClass;
+    //When the request was taken up, for the class's completion times and the metrics.
+    private long started;
+    private final Metrics metrics;
+    //Records the datagrams received, null unless the server is capturing.
+    private final TrafficCapture capture;
+    //State shown by the admin console, registered when the transfer starts.
+    private Session live;
+    //Bytes of file data the client has acknowledged.
+    private long bytesDone;
+    //The most common error, encoded once with its standard message.
+    private static final byte[] FILE_NOT_FOUND = new ErrorPacket(ErrorPacket.ErrorCodes.FILE_NOT_FOUND, ErrorPacket.ErrorCodes.FILE_NOT_FOUND.getMessage()).getPacketBytes();
     //Constants, Timeout value random number in ms.
     private final int PCKT_LEN = 516, DATA_LEN = 512, MAX_AMOUNT_TIMEOUTS = 15, TIMEOUT = 7000;
+    //Blocks at the start of each transfer which are scheduled ahead of the rest, 4KB.
+    private final int FIRST_BLOCKS = 8;
 
     /**
      * Constructor creates a new Read Request (RRQ) Handler.
@@ -30,11 +54,18 @@ public class RRQHandler implements Runnable {
      * @param portClient - Port to be used to connect to the client.
      * @param addressClient - Client's address.
      * @param rrqpckt - Packet to be sent from the client
+     * @param context - Shared server state.
      */
-    public RRQHandler(int portClient, InetAddress addressClient, RRQPacket rrqpckt) {
+    public RRQHandler(int portClient, InetAddress addressClient, RRQPacket rrqpckt, ServerContext context) {
         this.portOfClient = portClient;
         this.addressOfClient = addressClient;
         this.rrqPKT = rrqpckt;
+        this.context = context;
+        this.bandwidth = context.getLimiter() != null ? context.getLimiter().bandwidthFor(addressClient) : null;
+        this.egress = context.getEgressPacer();
+        this.transferClass = egress.getDefaultClass();
+        this.metrics = context.getMetrics();
+        this.capture = context.getCapture();
     }
 
     /**
@@ -42,59 +73,186 @@ public class RRQHandler implements Runnable {
      */
     @Override
     public void run() {
-        System.out.println("A Read Request (RRQ) has been received: " + rrqPKT + " from " + addressOfClient + " : " + portOfClient);
+        started = System.nanoTime();
+        metrics.sessionStarted(PacketType.READ);
+        live = context.getSessions().register(PacketType.READ, addressOfClient, portOfClient, rrqPKT.getFilename());
+        Object session = FlightEvents.begin(FlightEvents.SESSION);
+        try {
+            serve();
+        } finally {
+            context.getSessions().remove(live);
+            metrics.sessionEnded(PacketType.READ);
+            if (session != null) {
+                FlightEvents.commit(session, "read", rrqPKT.getFilename(), addressOfClient + ":" + portOfClient, bytesDone);
+            }
+        }
+    }
+
+    /**
+     * Answers the request, from checking its mode to the final ACK.
+     */
+    private void serve() {
+        Log.info("A Read Request (RRQ) has been received for {} from {} : {}", rrqPKT.getFilename(), addressOfClient, portOfClient);
         try {
             //Creates a new Datagram socket and sets the Timeout to 7000ms
             DatagramSocket sckt = new DatagramSocket();
             sckt.setSoTimeout(TIMEOUT);
-            System.out.println("Socket has been created and timeout set!");
+            live.attach(sckt);
+            Log.debug("Socket has been created and timeout set!");
             //If the mode isnt octet, which is the only mode supported, stated in assignment breif.
             if (!"octet".equals(rrqPKT.getMode())) {
                 //Creates error packet as the mode is not supported.
                 ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.UNDEFINED, "Incorrect mode: " + rrqPKT.getMode());
                 sckt.send(toDatagramPacket(errorPacket, addressOfClient, portOfClient));
-                System.out.println("Only mode supported is octet! Incorrect mode found: " + rrqPKT.getMode());
+                metrics.errorSent(ErrorPacket.ErrorCodes.UNDEFINED);
+                Log.warn("Only mode supported is octet! Incorrect mode found: {}", rrqPKT.getMode());
                 return;
             }
-            //Creates the File Input Stream along with Buffer. Input stream reads the bytes.
-            try (FileInputStream fileIS = new FileInputStream(rrqPKT.getFilename())) {
-                System.out.println("File input stream & First buffer created!");
-                byte[] firstBuffer = new byte[DATA_LEN];
-                int bytesRead = fileIS.read(firstBuffer);
-                System.out.println("No. of Bytes read: " + bytesRead);
-                //Sets bytes read = -1, to 0, as no bytes read.
-                if (bytesRead == -1) {
-                    bytesRead = 0;
+            //The file is opened through the first provider which serves its name.
+            try (ServedFile file = context.openRead(rrqPKT.getFilename(), DATA_LEN)) {
+                Log.debug("File opened, size: {}", file.getSize());
+                live.setTotalBytes(file.getSize());
+                context.getAccessLog().recordRequest(rrqPKT.getFilename());
+                transferClass = egress.classify(rrqPKT.getFilename(), file.getSize(), addressOfClient);
+                int port = portOfClient;
+                //The transfer size and digest options are answered with an OACK, which the client acknowledges as block 0.
+                Map<String, String> accepted = new LinkedHashMap<>();
+                if (rrqPKT.getOptions().containsKey("tsize") && file.getSize() >= 0) {
+                    accepted.put("tsize", Long.toString(file.getSize()));
+                }
+                //The digest recorded when the file was uploaded lets the client verify it as it streams.
+                String digest = rrqPKT.getOptions().containsKey("sha256") ? file.getDigest() : null;
+                if (digest != null) {
+                    accepted.put("sha256", digest);
+                }
+                if (!accepted.isEmpty()) {
+                    port = sendOptionAck(new OACKPacket(accepted), sckt, addressOfClient, port);
+                    if (port == -1) {
+                        return;
+                    }
                 }
-                //Creates Data packet & Sends the packet to the client.
-                DataPacket datagrampckt = new DataPacket((short) 1, firstBuffer, bytesRead);
-                System.out.println("Data packet created & sent to the client!");
-                clientSender((short) 1, datagrampckt, fileIS, sckt, addressOfClient, portOfClient);
-                //If file not found, sends error packet!
-            } catch (FileNotFoundException e) {
-                System.out.println("Error Packet");
-                //Error packet created and sent to the client.
-                ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.FILE_NOT_FOUND, "file not found: " + rrqPKT.getFilename());
-                DatagramPacket packetToSend = toDatagramPacket(errorPacket, addressOfClient, portOfClient);
-                //Send method called.
                 try {
-                    sckt.send(packetToSend);
-                } catch (IOException ex) {
-                    //If input error occurs.
-                    System.out.println("Input Error: " + e.getMessage());
+                    clientSender((short) 1, file.getSource(), sckt, addressOfClient, port);
+                } finally {
+                    //Only the bytes the client acknowledged were served, however the transfer ended.
+                    context.getAccessLog().recordBytes(rrqPKT.getFilename(), bytesDone);
                 }
+            } catch (FileNotFoundException e) {
+                //If file not found, sends error packet!
+                sendFileNotFound(sckt);
+            } catch (RelayProvider.UpstreamException e) {
+                //Errors from the upstream of a relayed file are passed on with their code and message.
+                sendError(sckt, e.getCode(), e.getMessage());
             } catch (IOException | TFTPException ex) {
-                Logger.getLogger(RRQHandler.class.getName()).log(Level.SEVERE, null, ex);
+                //Cancelling a session closes its socket, which is not an error.
+                if (live.isCancelled()) {
+                    Log.info("Read of {} by {} cancelled", rrqPKT.getFilename(), addressOfClient);
+                } else {
+                    Logger.getLogger(RRQHandler.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
         //Catches IO and Socket Errors on intial try statement.
         } catch (SocketException ex) {
-            System.out.println("Socket error has occured.\n");
+            Log.error("Socket error has occured: {}", ex.getMessage());
         } catch (IOException ex) {
             Logger.getLogger(RRQHandler.class.getName()).log(Level.SEVERE, null, ex);
         }
 
     }
 
+    /**
+     * Waits until the client's bandwidth and the server's egress cap allow
+     * another packet to be sent.
+     *
+     * @param bytes - Size of the packet.
+     * @param isUrgent - Whether the packet is scheduled ahead of other transfers.
+     * @throws TFTPException is thrown when the handler is interrupted while waiting.
+     */
+    private void pace(int bytes, boolean isUrgent) throws TFTPException {
+        try {
+            if (bandwidth != null) {
+                bandwidth.acquire(bytes);
+            }
+            egress.acquire(bytes, transferClass, isUrgent);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TFTPException("Interrupted while pacing the transfer");
+        }
+    }
+
+    /**
+     * Sends a FILE_NOT_FOUND error to the client. Misses are the most common
+     * error, so the precomputed packet with the standard message is sent.
+     *
+     * @param sckt - Connection socket.
+     */
+    private void sendFileNotFound(DatagramSocket sckt) {
+        Log.info("File not found: {}", rrqPKT.getFilename());
+        try {
+            sckt.send(new DatagramPacket(FILE_NOT_FOUND, FILE_NOT_FOUND.length, addressOfClient, portOfClient));
+            metrics.errorSent(ErrorPacket.ErrorCodes.FILE_NOT_FOUND);
+        } catch (IOException ex) {
+            //If input error occurs.
+            Log.error("Input Error: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Sends an error to the client.
+     *
+     * @param sckt - Connection socket.
+     * @param code - Error code.
+     * @param message - Error message.
+     */
+    private void sendError(DatagramSocket sckt, ErrorPacket.ErrorCodes code, String message) {
+        Log.info("Error {} for {}: {}", code, rrqPKT.getFilename(), message);
+        byte[] errorPacket = new ErrorPacket(code, message).getPacketBytes();
+        try {
+            sckt.send(new DatagramPacket(errorPacket, errorPacket.length, addressOfClient, portOfClient));
+            metrics.errorSent(code);
+        } catch (IOException ex) {
+            Log.error("Input Error: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Sends an OACK and waits for the client to acknowledge it as block 0.
+     *
+     * @param oack - Option acknowledgement to send.
+     * @param sckt - Connection socket.
+     * @param address - Client's Address.
+     * @param port - Client's port.
+     * @return Port the client acknowledged from, or -1 if the client refused the options.
+     * @throws IOException is thrown when the socket fails.
+     * @throws TFTPException is thrown when the timeout limit is reached.
+     */
+    public int sendOptionAck(OACKPacket oack, DatagramSocket sckt, InetAddress address, int port) throws IOException, TFTPException {
+        byte[] rcvBuffer = new byte[PCKT_LEN];
+        DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        DatagramPacket oackDatagram = toDatagramPacket(oack, address, port);
+        for (int timeouts = 0; timeouts < MAX_AMOUNT_TIMEOUTS;) {
+            sckt.send(oackDatagram);
+            try {
+                rcvDatagram.setLength(rcvBuffer.length);
+                sckt.receive(rcvDatagram);
+                if (capture != null) {
+                    capture.record(sckt.getLocalPort(), rcvDatagram);
+                }
+            } catch (SocketTimeoutException timeout) {
+                timeouts++;
+                continue;
+            }
+            TFTPPacket receivedPckt = fromDatagramPacket(rcvDatagram);
+            if (receivedPckt instanceof ErrorPacket) {
+                Log.warn("Client refused the options: {}", ((ErrorPacket) receivedPckt).getErrorMessage());
+                return -1;
+            } else if (receivedPckt instanceof AckPacket && ((AckPacket) receivedPckt).getBlockNo() == 0) {
+                return rcvDatagram.getPort();
+            }
+        }
+        throw new TFTPException("Timeout limit  of 15 has been reached!\n");
+    }
+
     /**
      * Converts a Datagram Packet to TFTPPacket.
      *
@@ -126,103 +284,124 @@ public class RRQHandler implements Runnable {
      * Sends the Packet to the Client.
      *
      * @param initialBlockNo - 1st Block number of initial packet.
-     * @param initialPacket - Initial packet to send to server.
-     * @param fileIS - File input stream.
+     * @param source - Source of the encoded DATA packets.
      * @param sckt - Connection socket.
      * @param address - Server's Address
      * @param port - Port of the destination.
-     * @throws IOException is thrown when error occurs with fileIS.
+     * @throws IOException is thrown when error occurs reading the file.
      * @throws TFTPException is thrown when the timeout limit is reached.
      */
-    public void clientSender(short initialBlockNo, TFTPPacket initialPacket, FileInputStream fileIS, DatagramSocket sckt, InetAddress address, int port) throws IOException, TFTPException {
-        System.out.println("Send to Client Method Invoked!");
-        //All variables to be used initialised.
-        TFTPPacket sendingPacket;
-        boolean firstPacketCheck = true;
+    public void clientSender(short initialBlockNo, DataBlockSource source, DatagramSocket sckt, InetAddress address, int port) throws IOException, TFTPException {
+        Log.debug("Send to Client Method Invoked!");
+        //Packets and receive buffer are created once and reused for every block.
+        byte[] rcvBuffer = new byte[PCKT_LEN];
+        DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        DatagramPacket sendDatagram = new DatagramPacket(rcvBuffer, 0, address, port);
+        ByteBuffer rcvView = ByteBuffer.wrap(rcvBuffer);
+        PacketCodec codec = new PacketCodec();
         short blockNo = initialBlockNo;
-        int previousPCKTLen = DATA_LEN;
-        int bytesRead;
+        int blocksSent = 0;
+        //When the current block was sent, for its round trip.
+        long sentAt = 0;
         //While max number of timeouts (15) is not reached.
         while (true) {
-            //Creates Buffers.
-            byte[] rcvBuffer = new byte[PCKT_LEN];
-            System.out.println("Created Received Packet & File buffers ");
-            byte[] fileBuffer = new byte[DATA_LEN];
-            //Checks if the packet is the intial/first packet.
-            if (firstPacketCheck) {
-                //If it is first packet.
-                sendingPacket = initialPacket;
-                System.out.println("First Packet: True!");
-                //If the first packet is of type DATA Packet.
-                if (initialPacket instanceof DataPacket) {
-                    System.out.println("First Packet is of type DATA, Packet Length Stored.");
-                    //Stores the packet length.
-                    previousPCKTLen = ((DataPacket) initialPacket).getPacketLength();
-                }
-            } else {
-                //If the packet is not the first packet.
-                System.out.println("First Packet: False!");
-                bytesRead = fileIS.read(fileBuffer);
-                System.out.println("File Input Stream Read. Bytes Read: " + bytesRead + "\n");
-                if (bytesRead == -1) {
-                    if (previousPCKTLen == DATA_LEN) {
-                        //If the packet length is equal to the data length. I.e 512 Final PCKT.
-                        bytesRead = 0;
-                    } else {
-                        break;
-                    }
-                }
-                //Packet to be sent created as a Data Packet.
-                sendingPacket = new DataPacket(blockNo, fileBuffer, bytesRead);
-                System.out.println("Created packet to be send!");
-                //Previous Packet length will be equal to the bytes Read. As final packet.
-                previousPCKTLen = bytesRead;
-
+            //Points the send datagram at the next block.
+            Object read = FlightEvents.begin(FlightEvents.DISK_READ);
+            int bytesRead = source.fill(blockNo, sendDatagram);
+            if (read != null) {
+                FlightEvents.commit(read, rrqPKT.getFilename(), blockNo & 0xffff, bytesRead);
             }
+            sendDatagram.setPort(port);
             //Initialises the amount of current timeouts.
             int timeouts = 0;
-            //Creates Datagram Packet using received packet buffer & its length.
-            DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+            boolean acked = false, resend = true;
             //As long as procedure has not timed out more than 14 times. (I.E Equal/> 15).
             while (timeouts < MAX_AMOUNT_TIMEOUTS) {
-                System.out.println("Datagram packet created and being sent to client with Address: " + address + "and Port: " + port);
-                sckt.send(toDatagramPacket(sendingPacket, address, port));
-                //Socket sent.
-                System.out.println("Send method called for Socket.");
+                if (resend) {
+                    //Retransmissions and the first blocks go ahead of other transfers.
+                    pace(sendDatagram.getLength(), timeouts > 0 || blocksSent < FIRST_BLOCKS);
+                    sckt.send(sendDatagram);
+                    sentAt = System.nanoTime();
+                    Log.tracePacket("DATA sent to {} block {}, {} bytes", addressOfClient, blockNo & 0xffff, sendDatagram.getLength());
+                    metrics.dataSent(sendDatagram.getLength());
+                    if (timeouts > 0) {
+                        metrics.retransmit();
+                        live.retransmit();
+                        if (FlightEvents.isRecording()) {
+                            FlightEvents.emit(FlightEvents.RETRANSMIT, rrqPKT.getFilename(), blockNo & 0xffff, timeouts, (long) TIMEOUT);
+                        }
+                    } else if (blocksSent == 0) {
+                        metrics.firstData(sentAt - started);
+                    }
+                }
+                resend = true;
+                Object stall = FlightEvents.begin(FlightEvents.STALL);
                 try {
                     //Waiting and Recieved Response.
+                    rcvDatagram.setLength(rcvBuffer.length);
                     sckt.receive(rcvDatagram);
+                    if (capture != null) {
+                        capture.record(sckt.getLocalPort(), rcvDatagram);
+                    }
                 } catch (SocketTimeoutException timeout) {
                     //If timeout occurs let user know & increment number of timeouts.
                     timeouts++;
-                    System.out.println("Uh No! A timeout has occured!, Resending now!\n");
+                    metrics.timeout();
+                    if (FlightEvents.isRecording()) {
+                        FlightEvents.emit(FlightEvents.TIMEOUT, rrqPKT.getFilename(), blockNo & 0xffff, timeouts, (long) TIMEOUT);
+                    }
+                    Log.debug("Uh No! A timeout has occured on block {} of {}, Resending now!", blockNo & 0xffff, rrqPKT.getFilename());
                     continue;
                 }
+                if (stall != null) {
+                    FlightEvents.commit(stall, rrqPKT.getFilename(), blockNo & 0xffff);
+                }
                 //If the block number is equal to inital block number.
                 if (blockNo == initialBlockNo) {
                     //Set port to be port of the received Datagram Packet.
                     port = rcvDatagram.getPort();
+                    sendDatagram.setPort(port);
                 }
-                //Creates a TFTP Packet from the Received datagram Packet.
-                TFTPPacket receivedPckt = fromDatagramPacket(rcvDatagram);
+                //The reply is decoded in place where it was received.
+                PacketType type = PacketType.lookup(codec.wrap(rcvView, 0, rcvDatagram.getLength()).opcode());
                 //If packet is of type error packet!
-                if (receivedPckt instanceof ErrorPacket) {
-                    //Print out error message.
-                    System.out.println(((ErrorPacket) receivedPckt).getErrorMessage());
+                if (type == PacketType.ERROR) {
+                    //Log the error message.
+                    Log.warn("Client sent an error: {}", codec.errorMessage());
                     return;
-                } else if (receivedPckt instanceof AckPacket) {
-                    //Otherwise is of type Acknowledgement Packet.
-                    AckPacket rcvdAck = (AckPacket) receivedPckt;
-                    //Increment Block Number. Set firstpacket check to false as no longer first packet.
+                } else if (type == PacketType.ACK) {
+                    Log.tracePacket("ACK received from {} block {}, {} bytes", addressOfClient, codec.blockNumber() & 0xffff, rcvDatagram.getLength());
+                    if (codec.blockNumber() != blockNo) {
+                        //A late duplicate ACK of an earlier block, wait for this one's ACK without sending it again.
+                        resend = false;
+                        continue;
+                    }
+                    //Only blocks sent once have a round trip, a retransmitted block's ACK could answer either copy.
+                    if (timeouts == 0) {
+                        long rtt = System.nanoTime() - sentAt;
+                        metrics.blockRtt(rtt);
+                        live.rtt(rtt);
+                    }
+                    //Otherwise is of type Acknowledgement Packet. Increment Block Number.
                     blockNo++;
-                    firstPacketCheck = false;
+                    blocksSent++;
+                    bytesDone += bytesRead;
+                    live.blockDone(bytesRead);
+                    acked = true;
                     break;
                 }
             }
             //If 15 timeouts occur, (MAX is 15), throw exception.
-            if (timeouts == MAX_AMOUNT_TIMEOUTS) {
+            if (!acked) {
                 throw new TFTPException("Timeout limit  of 15 has been reached!\n");
             }
+            //A block shorter than the block size is the final block.
+            if (bytesRead < DATA_LEN) {
+                long duration = System.nanoTime() - started;
+                transferClass.recordCompletion(duration);
+                metrics.transferDone(PacketType.READ, duration);
+                return;
+            }
         }
     }
 
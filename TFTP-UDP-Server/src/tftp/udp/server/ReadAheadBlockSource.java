@@ -0,0 +1,232 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * Block source which reads upcoming blocks on an I/O pool while the current
+ * block is waiting for its ACK. The number of blocks read ahead follows the
+ * ratio of the measured disk read time to the measured ACK time, so fast
+ * disks keep a single block ready and slow disks keep a whole window ready.
+ * Reads go through a fixed ring of slots, each keeping its own packet buffer
+ * and read task for the whole transfer, so nothing is allocated per block.
+ *
+ * @author 184514
+ */
+public class ReadAheadBlockSource implements DataBlockSource {
+
+    //Most blocks read ahead of the sender, and the weight given to new samples.
+    private static final int MAX_DEPTH = 16;
+    private static final double SMOOTHING = 0.125;
+
+    private final FileChannel channel;
+    private final int blockSize;
+    private final Executor ioPool;
+    private final BufferPool buffers;
+    //Blocks read ahead plus the one waiting for its ACK.
+    private final Slot[] slots = new Slot[MAX_DEPTH + 1];
+    //Slot handed out next, and the number of reads queued from it on.
+    private int head = 0, queued = 0;
+    private Slot current;
+    private long nextPosition = 0;
+    private boolean endQueued = false;
+    //Smoothed disk read time and time between blocks, in nanoseconds.
+    private volatile double diskNanos = 0;
+    private double ackNanos = 0;
+    private long lastFill = 0;
+
+    /**
+     * A block read from the file into a pooled packet buffer, behind the
+     * header. Run on the I/O pool once per block it is used for.
+     */
+    private class Slot implements Runnable {
+
+        private final byte[] buffer = buffers.acquire();
+        private final ByteBuffer payload = ByteBuffer.wrap(buffer, 4, blockSize);
+        private long position;
+        private int length;
+        private boolean done = true;
+        private IOException failure;
+
+        /**
+         * Queues a read of the block at the given position.
+         */
+        void start(long position) {
+            this.position = position;
+            synchronized (this) {
+                done = false;
+                failure = null;
+            }
+            try {
+                ioPool.execute(this);
+            } catch (RejectedExecutionException ex) {
+                //Pool full or shut down, the sender reads the block itself.
+                run();
+            }
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            payload.limit(4 + blockSize);
+            payload.position(4);
+            IOException error = null;
+            try {
+                while (payload.hasRemaining()) {
+                    if (channel.read(payload, position + payload.position() - 4) == -1) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                error = ex;
+            } finally {
+                diskNanos += SMOOTHING * ((System.nanoTime() - start) - diskNanos);
+                synchronized (this) {
+                    length = payload.position() - 4;
+                    failure = error;
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the queued read to finish.
+         *
+         * @return number of payload bytes read
+         */
+        synchronized int await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for disk read", ex);
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Disk read failed", failure);
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Creates a read-ahead block source and starts reading the first block.
+     *
+     * @param channel - Channel of the file to be sent.
+     * @param blockSize - Number of payload bytes per DATA packet.
+     * @param ioPool - Pool running the disk reads.
+     * @param buffers - Pool of packet buffers, blockSize + 4 bytes each.
+     */
+    public ReadAheadBlockSource(FileChannel channel, int blockSize, Executor ioPool, BufferPool buffers) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.ioPool = ioPool;
+        this.buffers = buffers;
+        topUp(1);
+    }
+
+    /**
+     * Hands out the next block, which is normally already in memory, and
+     * queues more reads to keep the read-ahead depth.
+     */
+    @Override
+    public int fill(short blockNo, DatagramPacket datagram) throws IOException {
+        long now = System.nanoTime();
+        if (lastFill != 0) {
+            ackNanos += SMOOTHING * ((now - lastFill) - ackNanos);
+        }
+        lastFill = now;
+        //The previous block has been acknowledged, so its slot can be reused.
+        current = null;
+        topUp(getDepth());
+        if (queued == 0) {
+            throw new IOException("Read past the end of the file");
+        }
+        current = slots[head];
+        head = (head + 1) % slots.length;
+        queued--;
+        int length = current.await();
+        byte[] buffer = current.buffer;
+        buffer[0] = 0;
+        buffer[1] = (byte) PacketType.DATA.getOpcode();
+        buffer[2] = (byte) (blockNo >> 8);
+        buffer[3] = (byte) blockNo;
+        datagram.setData(buffer, 0, length + 4);
+        topUp(getDepth());
+        return length;
+    }
+
+    /**
+     * Returns how many blocks should be read ahead of the sender.
+     *
+     * @return read-ahead depth between 1 and MAX_DEPTH
+     */
+    public int getDepth() {
+        if (ackNanos <= 0) {
+            return 2;
+        }
+        int depth = (int) Math.ceil(diskNanos / ackNanos) + 1;
+        return Math.max(1, Math.min(MAX_DEPTH, depth));
+    }
+
+    /**
+     * Queues reads until the given number of blocks are pending or the end of
+     * the file has been queued. Slots are only created when first needed, so
+     * small files and fast disks take few buffers from the pool.
+     */
+    private void topUp(int depth) {
+        while (!endQueued && queued < depth) {
+            int index = (head + queued) % slots.length;
+            if (slots[index] == null) {
+                slots[index] = new Slot();
+            }
+            final long position = nextPosition;
+            nextPosition += blockSize;
+            queued++;
+            slots[index].start(position);
+            //The first block which is not full is the last, a file of exactly n blocks ends with an empty one.
+            if (position + blockSize > knownSize()) {
+                endQueued = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the file, or the largest long if it is unknown.
+     */
+    private long knownSize() {
+        try {
+            return channel.size();
+        } catch (IOException ex) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Waits for outstanding reads, returns the slots' buffers and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Slot slot : slots) {
+            if (slot == null) {
+                continue;
+            }
+            try {
+                slot.await();
+                buffers.release(slot.buffer);
+            } catch (IOException ex) {
+                //The buffer of a failed or interrupted read is simply left to the GC.
+            }
+        }
+        current = null;
+        queued = 0;
+        channel.close();
+    }
+}
@@ -0,0 +1,559 @@
+package tftp.udp.server;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import tftp.udp.server.PacketClasses.*;
+import tftp.udp.server.PacketClasses.ErrorPacket.ErrorCodes;
+import tftp.udp.shared.Log;
+import tftp.udp.shared.PacketCodec;
+
+/**
+ * Serves files missing locally by fetching them from an upstream TFTP server,
+ * making this server an edge cache. Concurrent requests for the same file
+ * share one upstream transfer, and every requester is fed blocks as they
+ * arrive. Finished files are kept in a bounded memory cache for a while.
+ * <p>
+ * Blocks of running fetches and of cached files share one memory budget.
+ * A fetch which would take the total over it moves its blocks to a
+ * temporary file and carries on there, so large boot images are relayed
+ * without holding them on the heap, and such files are not cached.
+ * <p>
+ * Names the upstream does not have, and fetches that failed, are remembered
+ * for a few seconds, so clients probing for names that exist nowhere do not
+ * each start an upstream transfer and wait for it to time out.
+ *
+ * @author 184514
+ */
+public class RelayProvider implements FileProvider {
+
+    //Constants, same timeouts as the request handlers.
+    private static final int PCKT_LEN = 516, DATA_LEN = 512, MAX_AMOUNT_TIMEOUTS = 15, TIMEOUT = 7000;
+    //An upstream which has not answered the request after these is taken to be down.
+    private static final int MAX_FIRST_TIMEOUTS = 3, FIRST_TIMEOUT = 1000;
+    //How long a missing name or failed fetch is answered without asking the upstream again.
+    private static final long MISS_TTL = 5000;
+    //Sent to anything but the upstream's transfer ID, encoded once with its standard message.
+    private static final byte[] UNKNOWN_TID = new ErrorPacket(ErrorCodes.UNKNOWN_TID, ErrorCodes.UNKNOWN_TID.getMessage()).getPacketBytes();
+
+    private final InetAddress upstreamAddress;
+    private final int upstreamPort;
+    private final ExecutorService fetchPool;
+    private final long budgetBytes, ttlMillis;
+    private final ConcurrentHashMap<String, Fetch> inFlight = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Fetch> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<String, Miss> misses = new ConcurrentHashMap<>();
+    //Bytes of blocks held in memory, by running fetches and cached files together.
+    private final AtomicLong heapBytes = new AtomicLong();
+
+    /**
+     * Error sent by the upstream, passed on to the local client with the same code.
+     */
+    static class UpstreamException extends IOException {
+
+        private final ErrorCodes code;
+
+        UpstreamException(ErrorCodes code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        /**
+         * @return the error code the upstream sent
+         */
+        ErrorCodes getCode() {
+            return code;
+        }
+    }
+
+    /**
+     * Failure of a recent fetch, given to requests for the same name until it expires.
+     */
+    private static class Miss {
+
+        final IOException failure;
+        final long expiresAt;
+
+        Miss(IOException failure, long expiresAt) {
+            this.failure = failure;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A single upstream transfer, shared by every local request for the file.
+     */
+    class Fetch implements Runnable {
+
+        final String filename;
+        //Blocks in memory, until the fetch spills them to a file.
+        private List<byte[]> blocks = new ArrayList<>();
+        private Path spillPath;
+        private FileChannel spill;
+        private int blockCount = 0, readers = 0;
+        private long size = 0, completedAt = 0;
+        private boolean done = false, released = false;
+        private IOException failure;
+
+        Fetch(String filename) {
+            this.filename = filename;
+        }
+
+        /**
+         * Registers a local transfer reading the fetch.
+         *
+         * @return false if the fetch's spill file is already deleted, and a new fetch is needed
+         */
+        synchronized boolean acquire() {
+            if (released) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        /**
+         * Ends a local transfer's use of the fetch.
+         */
+        void release() {
+            synchronized (this) {
+                readers--;
+            }
+            deleteSpillIfUnused();
+        }
+
+        /**
+         * Waits for a block to arrive from the upstream.
+         *
+         * @param index - Index of the block, 0 for block number 1.
+         * @return Payload length of the block.
+         * @throws IOException is thrown when the upstream transfer failed before the block arrived.
+         */
+        synchronized int awaitBlock(int index) throws IOException {
+            while (index >= blockCount && !done && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for upstream", ex);
+                }
+            }
+            if (index < blockCount) {
+                return (int) Math.min(DATA_LEN, size - (long) index * DATA_LEN);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            throw new IOException("Read past the end of " + filename);
+        }
+
+        /**
+         * Copies a block into a packet buffer, waiting for it to arrive.
+         *
+         * @param index - Index of the block, 0 for block number 1.
+         * @param dst - Buffer the payload is copied to.
+         * @param offset - Position of the payload in the buffer.
+         * @return Payload length of the block.
+         * @throws IOException is thrown when the upstream transfer failed or the spill file cannot be read.
+         */
+        int read(int index, byte[] dst, int offset) throws IOException {
+            int length = awaitBlock(index);
+            byte[] inMemory;
+            FileChannel file;
+            synchronized (this) {
+                inMemory = blocks != null ? blocks.get(index) : null;
+                file = spill;
+            }
+            if (inMemory != null) {
+                System.arraycopy(inMemory, 0, dst, offset, length);
+                return length;
+            }
+            //Blocks before blockCount are all written to the spill file, which no one changes again.
+            ByteBuffer target = ByteBuffer.wrap(dst, offset, length);
+            long position = (long) index * DATA_LEN;
+            while (target.hasRemaining()) {
+                if (file.read(target, position + target.position() - offset) < 0) {
+                    throw new EOFException("Spill file of " + filename + " is short");
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Adds the next block, from the fetch's thread only.
+         */
+        private void add(byte[] buffer, int offset, int length, boolean last) throws IOException {
+            byte[] payload = null;
+            if (spill == null && heapBytes.get() + length > budgetBytes) {
+                spillToDisk();
+            }
+            if (spill != null) {
+                ByteBuffer source = ByteBuffer.wrap(buffer, offset, length);
+                while (source.hasRemaining()) {
+                    spill.write(source, size + source.position() - offset);
+                }
+            } else {
+                payload = new byte[length];
+                System.arraycopy(buffer, offset, payload, 0, length);
+                heapBytes.addAndGet(length);
+            }
+            synchronized (this) {
+                if (payload != null) {
+                    blocks.add(payload);
+                }
+                blockCount++;
+                size += length;
+                if (last) {
+                    done = true;
+                    completedAt = System.currentTimeMillis();
+                }
+                notifyAll();
+            }
+        }
+
+        /**
+         * Writes the blocks so far to a temporary file, which the rest of the
+         * fetch goes to, and gives their memory back to the budget.
+         */
+        private void spillToDisk() throws IOException {
+            List<byte[]> held;
+            synchronized (this) {
+                held = new ArrayList<>(blocks);
+            }
+            spillPath = Files.createTempFile("tftp-relay", ".part");
+            FileChannel file = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+            long position = 0;
+            for (byte[] block : held) {
+                ByteBuffer source = ByteBuffer.wrap(block);
+                while (source.hasRemaining()) {
+                    position += file.write(source, position);
+                }
+            }
+            //Readers keep using the blocks in memory until the file has all of them.
+            synchronized (this) {
+                spill = file;
+                blocks = null;
+            }
+            heapBytes.addAndGet(-position);
+            Log.info("Relay of {} spilled to disk after {} bytes", filename, position);
+        }
+
+        synchronized void fail(IOException ex) {
+            failure = ex;
+            notifyAll();
+        }
+
+        synchronized boolean isDone() {
+            return done;
+        }
+
+        synchronized boolean isSpilled() {
+            return spill != null;
+        }
+
+        synchronized long getSize() {
+            return size;
+        }
+
+        /**
+         * Deletes the spill file once the fetch has ended and no local transfer reads it.
+         */
+        private void deleteSpillIfUnused() {
+            FileChannel file;
+            synchronized (this) {
+                if (spill == null || released || readers > 0 || (!done && failure == null)) {
+                    return;
+                }
+                released = true;
+                file = spill;
+            }
+            try {
+                //The file is deleted when its channel closes.
+                file.close();
+            } catch (IOException ex) {
+                Logger.getLogger(RelayProvider.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        /**
+         * Runs the upstream transfer, the same exchange the client performs in receiveFile.
+         */
+        @Override
+        public void run() {
+            try (DatagramSocket sckt = new DatagramSocket()) {
+                //Shorter until the upstream first answers, so a down upstream is found out quickly.
+                sckt.setSoTimeout(FIRST_TIMEOUT);
+                byte[] rcvBuffer = new byte[PCKT_LEN];
+                ByteBuffer rcvView = ByteBuffer.wrap(rcvBuffer);
+                DatagramPacket rcvDatagram = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+                PacketCodec codec = new PacketCodec();
+                byte[] request = new RRQPacket(filename).getPacketBytes();
+                DatagramPacket toSend = new DatagramPacket(request, request.length, upstreamAddress, upstreamPort);
+                byte[] ack = new byte[PacketCodec.HEADER_LEN];
+                ByteBuffer ackView = ByteBuffer.wrap(ack);
+                //The port the upstream first answers from is its transfer ID, -1 until it answers.
+                int tidPort = -1;
+                short expected = 1;
+                int timeouts = 0;
+                while (true) {
+                    sckt.send(toSend);
+                    if (!receiveFromUpstream(sckt, rcvDatagram, tidPort)) {
+                        //An upstream that never answered is reported to the client, so it does not retry on its own timeouts.
+                        if (tidPort == -1 && ++timeouts == MAX_FIRST_TIMEOUTS) {
+                            throw new UpstreamException(ErrorCodes.UNDEFINED, "Upstream not answering for " + filename);
+                        }
+                        if (tidPort != -1 && ++timeouts == MAX_AMOUNT_TIMEOUTS) {
+                            throw new IOException("Upstream timed out fetching " + filename);
+                        }
+                        continue;
+                    }
+                    if (tidPort == -1) {
+                        sckt.setSoTimeout(TIMEOUT);
+                        timeouts = 0;
+                    }
+                    tidPort = rcvDatagram.getPort();
+                    codec.wrap(rcvView, 0, rcvDatagram.getLength());
+                    PacketType type = PacketType.lookup(codec.opcode());
+                    if (type == PacketType.ERROR) {
+                        //A missing file is left to the request's FILE_NOT_FOUND, any other error is passed on as sent.
+                        ErrorCodes code = ErrorCodes.fromErrorCode(codec.errorCode());
+                        if (code == ErrorCodes.FILE_NOT_FOUND) {
+                            throw new FileNotFoundException("Upstream: " + codec.errorMessage());
+                        }
+                        throw new UpstreamException(code, codec.errorMessage());
+                    } else if (type == PacketType.DATA) {
+                        //Duplicates of the previous block are acknowledged again, anything else is ignored.
+                        if (codec.blockNumber() == expected) {
+                            timeouts = 0;
+                            int length = codec.payloadLength();
+                            add(rcvBuffer, codec.payloadOffset(), length, length < DATA_LEN);
+                            expected++;
+                        }
+                        PacketCodec.encodeAck(ackView, 0, (short) (expected - 1));
+                        toSend = new DatagramPacket(ack, ack.length, upstreamAddress, tidPort);
+                        if (isDone()) {
+                            sckt.send(toSend);
+                            store(this);
+                            return;
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                recordMiss(filename, ex);
+                fail(ex);
+            } catch (RuntimeException ex) {
+                IOException failure = new IOException(ex);
+                recordMiss(filename, failure);
+                fail(failure);
+                Logger.getLogger(RelayProvider.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                inFlight.remove(filename, this);
+                if (!isDone()) {
+                    giveBack(this);
+                }
+                deleteSpillIfUnused();
+            }
+        }
+    }
+
+    /**
+     * Receives the upstream's next packet. Packets from anywhere else, or
+     * from another port once the upstream has answered, are answered with
+     * UNKNOWN_TID and otherwise ignored.
+     *
+     * @param sckt - Socket of the fetch.
+     * @param datagram - Datagram the packet is received into.
+     * @param tidPort - Port the upstream answers from, or -1 before its first answer.
+     * @return false if nothing arrived from the upstream before the timeout
+     * @throws IOException is thrown when the socket fails.
+     */
+    private boolean receiveFromUpstream(DatagramSocket sckt, DatagramPacket datagram, int tidPort) throws IOException {
+        while (true) {
+            try {
+                datagram.setLength(PCKT_LEN);
+                sckt.receive(datagram);
+            } catch (SocketTimeoutException timeout) {
+                return false;
+            }
+            if (datagram.getAddress().equals(upstreamAddress) && (tidPort == -1 || datagram.getPort() == tidPort)
+                    && datagram.getLength() >= PacketCodec.HEADER_LEN) {
+                return true;
+            }
+            sckt.send(new DatagramPacket(UNKNOWN_TID, UNKNOWN_TID.length, datagram.getAddress(), datagram.getPort()));
+        }
+    }
+
+    /**
+     * Block source feeding a local client from a fetch, as blocks arrive.
+     */
+    private static class RelayBlockSource implements DataBlockSource {
+
+        private final Fetch fetch;
+        private final byte[] packetBuffer = new byte[DATA_LEN + 4];
+        private final ByteBuffer header = ByteBuffer.wrap(packetBuffer);
+        private int next = 0;
+        private boolean closed = false;
+
+        RelayBlockSource(Fetch fetch) {
+            this.fetch = fetch;
+        }
+
+        @Override
+        public int fill(short blockNo, DatagramPacket datagram) throws IOException {
+            int length = fetch.read(next++, packetBuffer, 4);
+            header.putShort(0, PacketType.DATA.getOpcode());
+            header.putShort(2, blockNo);
+            datagram.setData(packetBuffer, 0, length + 4);
+            return length;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                fetch.release();
+            }
+        }
+    }
+
+    /**
+     * Creates a relay to an upstream server.
+     *
+     * @param upstreamAddress - Address of the upstream server.
+     * @param upstreamPort - Port of the upstream server.
+     * @param fetchPool - Pool running the upstream transfers.
+     * @param budgetBytes - Most bytes of running fetches and finished files kept in memory.
+     * @param ttlMillis - How long a finished file is served before it is fetched again.
+     */
+    public RelayProvider(InetAddress upstreamAddress, int upstreamPort, ExecutorService fetchPool, long budgetBytes, long ttlMillis) {
+        this.upstreamAddress = upstreamAddress;
+        this.upstreamPort = upstreamPort;
+        this.fetchPool = fetchPool;
+        this.budgetBytes = budgetBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Serves a file from the cache, joins a fetch already running for it, or
+     * starts a new one. Waits for the first block so a file missing upstream
+     * is reported as missing here too. Names which recently failed are
+     * answered with the same failure straight away.
+     */
+    @Override
+    public ServedFile openRead(String filename, int blockSize) throws IOException {
+        if (blockSize != DATA_LEN) {
+            return null;
+        }
+        Miss miss = misses.get(filename);
+        if (miss != null) {
+            if (System.currentTimeMillis() < miss.expiresAt) {
+                if (miss.failure instanceof FileNotFoundException) {
+                    return null;
+                }
+                throw miss.failure;
+            }
+            misses.remove(filename, miss);
+        }
+        Fetch fetch;
+        //A fetch whose spill file was deleted just before it could be joined is replaced by a new one.
+        do {
+            synchronized (cache) {
+                fetch = cache.get(filename);
+                if (fetch != null && System.currentTimeMillis() - fetch.completedAt > ttlMillis) {
+                    cache.remove(filename);
+                    heapBytes.addAndGet(-fetch.getSize());
+                    fetch = null;
+                }
+            }
+            if (fetch == null) {
+                Fetch started = new Fetch(filename);
+                fetch = inFlight.putIfAbsent(filename, started);
+                if (fetch == null) {
+                    started.acquire();
+                    fetchPool.submit(started);
+                    fetch = started;
+                    break;
+                }
+            }
+        } while (!fetch.acquire());
+        try {
+            fetch.awaitBlock(0);
+        } catch (IOException ex) {
+            fetch.release();
+            if (ex instanceof FileNotFoundException) {
+                return null;
+            }
+            throw ex;
+        }
+        return new ServedFile(new RelayBlockSource(fetch), fetch.isDone() ? fetch.getSize() : -1);
+    }
+
+    /**
+     * Uploads are not relayed, they are stored locally by the providers before this one.
+     */
+    @Override
+    public UploadSink openWrite(String filename) {
+        return null;
+    }
+
+    /**
+     * Remembers a failed fetch for a short while, dropping any expired
+     * failures so names probed once are not kept forever.
+     */
+    private void recordMiss(String filename, IOException failure) {
+        long now = System.currentTimeMillis();
+        misses.values().removeIf(miss -> miss.expiresAt <= now);
+        misses.put(filename, new Miss(failure, now + MISS_TTL));
+    }
+
+    /**
+     * Gives the memory of a failed fetch's blocks back to the budget.
+     */
+    private void giveBack(Fetch fetch) {
+        if (!fetch.isSpilled()) {
+            heapBytes.addAndGet(-fetch.getSize());
+        }
+    }
+
+    /**
+     * Keeps a finished fetch, evicting the least recently used to stay in
+     * budget. Fetches which spilled to disk are not kept.
+     */
+    private void store(Fetch fetch) {
+        if (fetch.isSpilled()) {
+            return;
+        }
+        synchronized (cache) {
+            Fetch old = cache.put(fetch.filename, fetch);
+            if (old != null) {
+                heapBytes.addAndGet(-old.getSize());
+            }
+            Iterator<Fetch> it = cache.values().iterator();
+            while (heapBytes.get() > budgetBytes && it.hasNext()) {
+                Fetch f = it.next();
+                if (f != fetch) {
+                    heapBytes.addAndGet(-f.getSize());
+                    it.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,619 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import tftp.udp.shared.Log;
+
+/**
+ * Log-structured store for small uploads. Instead of one file per upload,
+ * payloads are appended to large segment files and an in-memory index maps
+ * each filename to the SHA-256 of its content and each content to where it
+ * lies. Identical uploads are stored once. Uploads which grow past the small
+ * upload limit are handed over to the fallback provider, normally the
+ * filesystem. Sealed segments which are mostly dead are compacted in the
+ * background.
+ *
+ * A new version of a file is only served once its record has been forced to
+ * disk as the durability policy asks, until then the previous version is.
+ *
+ * Every record is framed as [length][crc32][body], so a record torn by a
+ * crash is detected, and the segment cut back to it, when the store is
+ * reopened.
+ *
+ * @author 184514
+ */
+public class SegmentStore implements FileProvider {
+
+    //Record types: content, filename to content, and filename removed.
+    private static final byte DATA = 'D', PATH = 'P', DELETE = 'X';
+    private static final int HASH_LEN = 32, FRAME_LEN = 8;
+    //Size at which the active segment is sealed and a new one started.
+    private static final long SEGMENT_SIZE = 64L << 20;
+    //A sealed segment is compacted once less than this share of it is live.
+    private static final double COMPACT_LIVE_RATIO = 0.5;
+
+    private final Path directory;
+    private final int smallLimit;
+    private final FileProvider fallback;
+    private final Durability durability;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Map<String, Location> contents = new HashMap<>();
+    private final Map<String, PathEntry> paths = new HashMap<>();
+    private Segment active;
+    private long dedupedBytes = 0;
+
+    /**
+     * Segment file, written only at its end.
+     */
+    private static class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        long size;
+
+        Segment(int id, Path path, FileChannel channel, long size) {
+            this.id = id;
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Where a content lies: its segment and the offset and length of its bytes.
+     */
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Content a filename points at, and the segment holding that record.
+     */
+    private static class PathEntry {
+        final String hash;
+        final int segment;
+        //Whether the record is on disk, only then is this version served.
+        boolean durable;
+        //Version served until this one is on disk, null if none.
+        PathEntry previous;
+
+        PathEntry(String hash, int segment, boolean durable) {
+            this.hash = hash;
+            this.segment = segment;
+            this.durable = durable;
+        }
+
+        /**
+         * Returns the version of the file which may be served.
+         */
+        PathEntry served() {
+            return durable ? this : previous;
+        }
+    }
+
+    /**
+     * Receives each intact record of a segment.
+     */
+    private interface RecordVisitor {
+
+        void visit(long offset, ByteBuffer body) throws IOException;
+    }
+
+    /**
+     * Opens the store, replaying every segment in the directory to rebuild the index.
+     *
+     * @param directory - Directory holding the segment files.
+     * @param smallLimit - Largest upload kept in the store, larger ones go to the fallback.
+     * @param fallback - Provider given uploads which are too large for the store.
+     * @param durability - Policy forcing appended records to disk before the final ACK.
+     * @throws IOException is thrown when the segments cannot be read.
+     */
+    public SegmentStore(Path directory, int smallLimit, FileProvider fallback, Durability durability) throws IOException {
+        this.directory = directory;
+        this.smallLimit = smallLimit;
+        this.fallback = fallback;
+        this.durability = durability;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "segment-*.log")) {
+            for (Path file : files) {
+                int id = segmentId(file.getFileName().toString());
+                if (id < 0) {
+                    Log.warn("Skipping {}, not a segment file", file);
+                    continue;
+                }
+                FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                segments.put(id, new Segment(id, file, channel, channel.size()));
+            }
+        }
+        for (Segment segment : segments.values()) {
+            replay(segment);
+        }
+        active = segments.isEmpty() ? createSegment(0) : segments.lastEntry().getValue();
+    }
+
+    /**
+     * Returns the id in a segment file's name.
+     *
+     * @param name - Name of the file, segment-id.log.
+     * @return the id, or -1 if the name holds none
+     */
+    private static int segmentId(String name) {
+        try {
+            return Integer.parseInt(name.substring(8, name.length() - 4));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Compacts sealed segments every interval on a daemon thread.
+     *
+     * @param intervalMillis - Time between compaction passes.
+     */
+    public void startCompaction(long intervalMillis) {
+        ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "tftp-segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException ex) {
+                Logger.getLogger(SegmentStore.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Serves a file held in the segments. Its bytes are copied out under the
+     * lock, so compaction can move and delete segments behind any transfer.
+     */
+    @Override
+    public synchronized ServedFile openRead(String filename, int blockSize) throws IOException {
+        PathEntry entry = paths.get(filename);
+        if (entry != null) {
+            entry = entry.served();
+        }
+        if (entry == null) {
+            return null;
+        }
+        Location location = contents.get(entry.hash);
+        ByteBuffer content = ByteBuffer.allocate(location.length);
+        readFully(segments.get(location.segment).channel, content, location.offset);
+        content.flip();
+        //Contents are keyed by their SHA-256, so the digest is always known.
+        return new ServedFile(new ByteBufferBlockSource(content, blockSize), location.length, entry.hash);
+    }
+
+    /**
+     * Accepts every upload. It is buffered in memory and appended to the
+     * store on commit, unless it grows past the small upload limit.
+     */
+    @Override
+    public UploadSink openWrite(String filename) throws IOException {
+        return new SegmentSink(filename);
+    }
+
+    /**
+     * Returns a summary of the store.
+     *
+     * @return number of files, distinct contents, segments and bytes saved by dedupe
+     */
+    public synchronized String getReport() {
+        return paths.size() + " files, " + contents.size() + " distinct contents in "
+                + segments.size() + " segments, " + dedupedBytes + " bytes deduplicated";
+    }
+
+    /**
+     * Upload sink buffering a small upload in memory.
+     */
+    private class SegmentSink implements UploadSink {
+
+        private final String filename;
+        private byte[] buffer = new byte[4096];
+        private int count = 0;
+        //SHA-256 computed as the upload arrived, so the store need not hash it again.
+        private String digest;
+        //Sink of the fallback provider once the upload outgrows the store.
+        private UploadSink spill;
+
+        SegmentSink(String filename) {
+            this.filename = filename;
+        }
+
+        @Override
+        public void reserve(long size) throws IOException {
+            if (spill == null && size > smallLimit) {
+                spill();
+            }
+            if (spill != null) {
+                spill.reserve(size);
+            }
+        }
+
+        @Override
+        public void setDigest(String digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(long position, byte[] data, int offset, int length) throws IOException {
+            if (spill == null && position + length > smallLimit) {
+                spill();
+            }
+            if (spill != null) {
+                spill.write(position, data, offset, length);
+                return;
+            }
+            int end = (int) position + length;
+            if (end > buffer.length) {
+                byte[] grown = new byte[Math.min(smallLimit, Math.max(buffer.length * 2, end))];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+            }
+            System.arraycopy(data, offset, buffer, (int) position, length);
+            count = Math.max(count, end);
+        }
+
+        /**
+         * Hands the upload to the fallback provider, with what was buffered so far.
+         */
+        private void spill() throws IOException {
+            spill = fallback.openWrite(filename);
+            if (spill == null) {
+                throw new IOException("No provider accepts " + filename);
+            }
+            spill.write(0, buffer, 0, count);
+            buffer = null;
+        }
+
+        @Override
+        public void commit() throws IOException {
+            if (spill != null) {
+                if (digest != null) {
+                    spill.setDigest(digest);
+                }
+                spill.commit();
+                //The new version lives with the fallback, so stop serving the old one.
+                remove(filename);
+            } else {
+                put(filename, buffer, count, digest);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    /**
+     * Stores a file, appending its content only if the store does not already
+     * hold it. The new version is served once its records are on disk.
+     */
+    private void put(String filename, byte[] data, int length, String digest) throws IOException {
+        String hash = digest != null ? digest : sha256(data, length);
+        PathEntry entry;
+        Segment written;
+        synchronized (this) {
+            if (contents.containsKey(hash)) {
+                dedupedBytes += length;
+            } else {
+                appendData(hash, ByteBuffer.wrap(data, 0, length));
+            }
+            entry = appendPath(filename, hash, false);
+            written = active;
+        }
+        sync(written);
+        synchronized (this) {
+            entry.durable = true;
+            entry.previous = null;
+        }
+    }
+
+    /**
+     * Drops a file from the store, if it holds it. The file is no longer
+     * served straight away, as its new version is already with the fallback.
+     */
+    private void remove(String filename) throws IOException {
+        Segment written;
+        synchronized (this) {
+            if (paths.remove(filename) == null) {
+                return;
+            }
+            appendDelete(filename);
+            written = active;
+        }
+        sync(written);
+    }
+
+    /**
+     * Forces a segment to disk as the durability policy asks. A segment
+     * closed by compaction in the meantime was already forced when sealed.
+     */
+    private void sync(Segment segment) throws IOException {
+        try {
+            durability.syncFile(segment.channel);
+        } catch (ClosedChannelException ex) {
+            //Sealed and compacted, already on disk.
+        }
+    }
+
+    /**
+     * Appends a content record and indexes where its bytes lie.
+     */
+    private void appendData(String hash, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        ByteBuffer body = ByteBuffer.allocate(1 + HASH_LEN + 4 + length);
+        body.put(DATA).put(fromHex(hash)).putInt(length).put(data).flip();
+        long offset = append(body);
+        contents.put(hash, new Location(active.id, offset + FRAME_LEN + 1 + HASH_LEN + 4, length));
+    }
+
+    /**
+     * Appends a filename record pointing at a content, and indexes it. A
+     * record not yet on disk keeps the version served before it.
+     *
+     * @return the index entry
+     */
+    private PathEntry appendPath(String filename, String hash, boolean durable) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(3 + name.length + HASH_LEN);
+        body.put(PATH).putShort((short) name.length).put(name).put(fromHex(hash)).flip();
+        append(body);
+        PathEntry entry = new PathEntry(hash, active.id, durable);
+        if (!durable) {
+            PathEntry current = paths.get(filename);
+            entry.previous = current != null ? current.served() : null;
+        }
+        paths.put(filename, entry);
+        return entry;
+    }
+
+    /**
+     * Appends a record removing a filename.
+     */
+    private void appendDelete(String filename) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(3 + name.length);
+        body.put(DELETE).putShort((short) name.length).put(name).flip();
+        append(body);
+    }
+
+    /**
+     * Frames a record and appends it to the active segment, sealing the
+     * segment first if the record would take it past the segment size.
+     *
+     * @return offset of the record in the active segment
+     */
+    private long append(ByteBuffer body) throws IOException {
+        int length = body.remaining();
+        if (active.size > 0 && active.size + FRAME_LEN + length > SEGMENT_SIZE) {
+            durability.syncFile(active.channel);
+            active = createSegment(active.id + 1);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body.array(), body.arrayOffset() + body.position(), length);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_LEN);
+        frame.putInt(length).putInt((int) crc.getValue()).flip();
+        long offset = active.size;
+        long position = offset;
+        while (frame.hasRemaining()) {
+            position += active.channel.write(frame, position);
+        }
+        while (body.hasRemaining()) {
+            position += active.channel.write(body, position);
+        }
+        active.size = position;
+        return offset;
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Path file = directory.resolve("segment-" + id + ".log");
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(id, file, channel, 0);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    /**
+     * Rebuilds the index from a segment's records. A torn or corrupt record
+     * ends the segment, which is cut back to the last good record.
+     */
+    private void replay(Segment segment) throws IOException {
+        long offset = readRecords(segment, (recordOffset, body) -> {
+            byte type = body.get();
+            if (type == DATA) {
+                String hash = readHash(body);
+                contents.put(hash, new Location(segment.id, recordOffset + FRAME_LEN + 1 + HASH_LEN + 4, body.getInt()));
+            } else if (type == PATH) {
+                String filename = readName(body);
+                paths.put(filename, new PathEntry(readHash(body), segment.id, true));
+            } else if (type == DELETE) {
+                paths.remove(readName(body));
+            }
+        });
+        if (offset < segment.size) {
+            Log.warn("Segment {} cut back from {} to {} bytes", segment.path, segment.size, offset);
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    /**
+     * Reads a segment's records in order, stopping at the first torn or corrupt one.
+     *
+     * @return offset just past the last intact record
+     */
+    private static long readRecords(Segment segment, RecordVisitor visitor) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_LEN);
+        long offset = 0;
+        while (offset + FRAME_LEN <= segment.size) {
+            frame.clear();
+            readFully(segment.channel, frame, offset);
+            int length = frame.getInt(0);
+            if (length <= 0 || offset + FRAME_LEN + length > segment.size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(segment.channel, body, offset + FRAME_LEN);
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != frame.getInt(4)) {
+                break;
+            }
+            body.flip();
+            visitor.visit(offset, body);
+            offset += FRAME_LEN + length;
+        }
+        return offset;
+    }
+
+    /**
+     * Compacts every sealed segment which is mostly dead.
+     */
+    synchronized void compact() throws IOException {
+        //Contents still referenced, by the served version of a file or one on its way to disk.
+        Set<String> referenced = new HashSet<>();
+        for (PathEntry entry : paths.values()) {
+            referenced.add(entry.hash);
+            if (entry.previous != null) {
+                referenced.add(entry.previous.hash);
+            }
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment != active) {
+                compact(segment, referenced);
+            }
+        }
+    }
+
+    /**
+     * Compacts a sealed segment if most of it is dead: its live contents and
+     * filename records are appended to the active segment and the segment
+     * deleted. Its remove records are carried over too while an older
+     * segment, which may still name the removed file, is kept.
+     */
+    private void compact(Segment segment, Set<String> referenced) throws IOException {
+        List<String> movedPaths = new ArrayList<>();
+        for (Map.Entry<String, PathEntry> path : paths.entrySet()) {
+            if (path.getValue().segment == segment.id) {
+                movedPaths.add(path.getKey());
+            }
+        }
+        List<String> movedContents = new ArrayList<>();
+        long live = 0;
+        for (Map.Entry<String, Location> content : contents.entrySet()) {
+            if (content.getValue().segment != segment.id) {
+                continue;
+            }
+            if (referenced.contains(content.getKey())) {
+                movedContents.add(content.getKey());
+                live += content.getValue().length;
+            }
+        }
+        if (live >= segment.size * COMPACT_LIVE_RATIO) {
+            return;
+        }
+        for (String hash : movedContents) {
+            Location location = contents.get(hash);
+            ByteBuffer data = ByteBuffer.allocate(location.length);
+            readFully(segment.channel, data, location.offset);
+            data.flip();
+            appendData(hash, data);
+        }
+        for (String filename : movedPaths) {
+            //Forced below before anyone can read it, so the moved record is served at once.
+            appendPath(filename, paths.get(filename).hash, true);
+        }
+        if (segments.firstKey() != segment.id) {
+            List<String> removed = new ArrayList<>();
+            readRecords(segment, (offset, body) -> {
+                if (body.get() == DELETE) {
+                    String filename = readName(body);
+                    if (!paths.containsKey(filename)) {
+                        removed.add(filename);
+                    }
+                }
+            });
+            for (String filename : removed) {
+                appendDelete(filename);
+            }
+        }
+        //Unreferenced contents in the segment are gone with it.
+        contents.values().removeIf(location -> location.segment == segment.id);
+        durability.syncFile(active.channel);
+        segments.remove(segment.id);
+        segment.channel.close();
+        Files.delete(segment.path);
+        Log.info("Compacted {}: moved {} live bytes of {}", segment.path.getFileName(), live, segment.size);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Segment ends early");
+            }
+            position += n;
+        }
+    }
+
+    private static String readName(ByteBuffer body) {
+        byte[] name = new byte[body.getShort() & 0xffff];
+        body.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static String readHash(ByteBuffer body) {
+        byte[] hash = new byte[HASH_LEN];
+        body.get(hash);
+        return DigestSidecar.toHex(hash);
+    }
+
+    private static String sha256(byte[] data, int length) {
+        MessageDigest digest = DigestSidecar.newDigest();
+        digest.update(data, 0, length);
+        return DigestSidecar.toHex(digest.digest());
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
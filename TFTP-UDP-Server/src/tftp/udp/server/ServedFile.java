@@ -0,0 +1,73 @@
+package tftp.udp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * @author 184514
+ */
+public class ServedFile implements Closeable {
+
+    private final DataBlockSource source;
+    private final long size;
+    private final String digest;
+
+    /**
+     * Creates a file opened for sending.
+     *
+     * @param source - Source of the file's DATA packets.
+     * @param size - Size of the file in bytes, or -1 if it is not known.
+     */
+    public ServedFile(DataBlockSource source, long size) {
+        this(source, size, null);
+    }
+
+    /**
+     * Creates a file opened for sending whose digest is already known.
+     *
+     * @param source - Source of the file's DATA packets.
+     * @param size - Size of the file in bytes, or -1 if it is not known.
+     * @param digest - SHA-256 of the file in hex, or null if it is not known.
+     */
+    public ServedFile(DataBlockSource source, long size, String digest) {
+        this.source = source;
+        this.size = size;
+        this.digest = digest;
+    }
+
+    /**
+     * Returns the source of the file's DATA packets.
+     *
+     * @return the block source
+     */
+    public DataBlockSource getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the size of the file.
+     *
+     * @return size in bytes, or -1 if it is not known
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns the SHA-256 of the file. Providers which look it up only when
+     * asked override this.
+     *
+     * @return digest in hex, or null if it is not known
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Closes the block source.
+     */
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+}
@@ -0,0 +1,365 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory index of the served directory tree, kept current by a
+ * WatchService. Lookups of indexed files are answered from memory. A name the
+ * index does not hold is checked on the filesystem once, as the watcher may
+ * not have seen a file created a moment ago, and misses are then kept in a
+ * small negative cache, so repeated requests for missing files do not reach
+ * the filesystem. Names the index cannot answer for (outside the tree, or
+ * while the index is rebuilding) go to the filesystem as well.
+ * <p>
+ * The tree is scanned on the index's own thread, which is also the only one
+ * to rescan it, so startup does not wait for the scan and rescans never
+ * overlap. A tree too large to index, or one which uses up the system's
+ * watches, is served from the filesystem instead.
+ *
+ * @author 184514
+ */
+public class ServedTreeIndex implements Runnable {
+
+    //Sentinel returned for names known not to exist.
+    public static final FileInfo MISSING = new FileInfo(-1, 0, null);
+    //Entries and lifetime of the negative cache.
+    private static final int NEGATIVE_ENTRIES = 4096;
+    private static final long NEGATIVE_TTL_MS = 5000;
+    //Most directories watched and files indexed, beyond which the index gives up.
+    private static final int MAX_DIRS = 8192, MAX_FILES = 1 << 20;
+    //How often the index thread checks for a rescan asked for by another thread.
+    private static final long RESCAN_CHECK_MS = 1000;
+
+    private final Path root;
+    private final WatchService watcher;
+    private final Map<String, FileInfo> files = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, Long> negative = new LinkedHashMap<String, Long>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > NEGATIVE_ENTRIES;
+        }
+    };
+    //Only true once the tree has been scanned and no events have been lost since.
+    private volatile boolean complete = false;
+    //Set to have the index thread rescan the tree, the first scan included.
+    private volatile boolean rescanRequested = true;
+
+    /**
+     * Thrown when the tree is larger than the index will hold or watch.
+     */
+    private static class TooLargeException extends IOException {
+
+        TooLargeException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Size, modified time and file key of an indexed file.
+     */
+    public static class FileInfo {
+
+        public final long size, lastModified;
+        public final Object fileKey;
+
+        FileInfo(long size, long lastModified, Object fileKey) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+        }
+    }
+
+    /**
+     * Creates an index of the tree below root. Call start() to scan and watch it.
+     *
+     * @param root - Directory requests are resolved against.
+     * @throws IOException is thrown when no WatchService is available.
+     */
+    public ServedTreeIndex(Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.watcher = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Starts the index thread, which scans the tree and then keeps it current.
+     * Until the scan is done every lookup goes to the filesystem.
+     */
+    public void start() {
+        Thread t = new Thread(this, "tftp-tree-index");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Stops watching the tree and ends the index thread. Lookups go to the filesystem from then on.
+     *
+     * @throws IOException is thrown when the watch service cannot be closed.
+     */
+    public void close() throws IOException {
+        complete = false;
+        watcher.close();
+    }
+
+    /**
+     * Looks up a requested filename.
+     *
+     * @param filename - Filename as sent by the client.
+     * @return FileInfo of the file, MISSING if it is known not to exist, or null if the filesystem must be asked.
+     */
+    public FileInfo lookup(String filename) {
+        String key = toKey(filename);
+        if (key != null && complete) {
+            FileInfo info = files.get(key);
+            if (info != null) {
+                return info;
+            }
+        }
+        synchronized (negative) {
+            Long missedAt = negative.get(key != null ? key : filename);
+            if (missedAt != null && System.currentTimeMillis() - missedAt < NEGATIVE_TTL_MS) {
+                return MISSING;
+            }
+        }
+        return key != null && complete ? stat(key) : null;
+    }
+
+    /**
+     * Asks the filesystem about a file inside the tree which is not indexed,
+     * recording a miss if it does not exist.
+     */
+    private FileInfo stat(String key) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(root.resolve(key), BasicFileAttributes.class);
+            if (attrs.isRegularFile()) {
+                return new FileInfo(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey());
+            }
+        } catch (IOException ex) {
+            //Missing or unreadable, either way it cannot be served.
+        }
+        recordMiss(key);
+        return MISSING;
+    }
+
+    /**
+     * Records that a filename the index could not answer for does not exist.
+     *
+     * @param filename - Filename as sent by the client.
+     */
+    public void recordMiss(String filename) {
+        String key = toKey(filename);
+        synchronized (negative) {
+            negative.put(key != null ? key : filename, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Refreshes a single file straight away, without waiting for the watcher.
+     * Used after an upload so the new file can be served at once.
+     *
+     * @param filename - Filename as sent by the client.
+     */
+    public void refresh(String filename) {
+        String key = toKey(filename);
+        try {
+            if (key != null) {
+                update(root.resolve(key));
+            } else {
+                synchronized (negative) {
+                    negative.remove(filename);
+                }
+            }
+        } catch (IOException ex) {
+            requestRescan();
+        }
+    }
+
+    /**
+     * Has the index thread rebuild the index. Until it has, lookups go to the filesystem.
+     */
+    private void requestRescan() {
+        complete = false;
+        rescanRequested = true;
+    }
+
+    /**
+     * Turns a requested filename into an index key, or null if it is outside the tree.
+     */
+    private String toKey(String filename) {
+        try {
+            Path requested = Paths.get(filename);
+            if (requested.isAbsolute()) {
+                return null;
+            }
+            Path resolved = root.resolve(requested).normalize();
+            if (!resolved.startsWith(root)) {
+                return null;
+            }
+            return root.relativize(resolved).toString();
+        } catch (InvalidPathException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Rebuilds the whole index, registering every directory with the watcher.
+     * Only run on the index thread. If the tree is too large the watcher is
+     * closed, which ends the thread, and the index stays incomplete.
+     */
+    private void rescan() {
+        complete = false;
+        files.clear();
+        try {
+            addTree(root);
+            complete = true;
+        } catch (TooLargeException ex) {
+            Logger.getLogger(ServedTreeIndex.class.getName()).log(Level.WARNING, "Served tree too large to index, serving from the filesystem", ex);
+            files.clear();
+            watchedDirs.clear();
+            try {
+                watcher.close();
+            } catch (IOException closeFailed) {
+                Logger.getLogger(ServedTreeIndex.class.getName()).log(Level.SEVERE, null, closeFailed);
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(ServedTreeIndex.class.getName()).log(Level.WARNING, "Served tree could not be indexed", ex);
+        }
+        synchronized (negative) {
+            negative.clear();
+        }
+    }
+
+    /**
+     * Adds a directory and everything below it to the index.
+     */
+    private void addTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                if (watchedDirs.size() >= MAX_DIRS) {
+                    throw new TooLargeException("More than " + MAX_DIRS + " directories", null);
+                }
+                WatchKey key;
+                try {
+                    key = d.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                } catch (NoSuchFileException ex) {
+                    //Deleted while being scanned, the watcher reports it.
+                    return FileVisitResult.SKIP_SUBTREE;
+                } catch (IOException ex) {
+                    //Any other failure to watch is the system running out of watches.
+                    throw new TooLargeException("Unable to watch " + d, ex);
+                }
+                watchedDirs.put(key, d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (files.size() >= MAX_FILES) {
+                    throw new TooLargeException("More than " + MAX_FILES + " files", null);
+                }
+                if (attrs.isRegularFile() && !VersionedFileSink.isVersion(file.getFileName().toString())) {
+                    files.put(root.relativize(file).toString(), new FileInfo(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey()));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                //Unreadable entries are left out, requests for them go to the filesystem's answer.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Applies a single change reported by the watcher. Uploads still being
+     * written are left out, they are indexed once renamed into place.
+     */
+    private void update(Path changed) throws IOException {
+        if (VersionedFileSink.isVersion(changed.getFileName().toString())) {
+            return;
+        }
+        String key = root.relativize(changed).toString();
+        synchronized (negative) {
+            negative.remove(key);
+        }
+        if (Files.isDirectory(changed, LinkOption.NOFOLLOW_LINKS)) {
+            addTree(changed);
+        } else if (Files.exists(changed, LinkOption.NOFOLLOW_LINKS)) {
+            BasicFileAttributes attrs = Files.readAttributes(changed, BasicFileAttributes.class);
+            files.put(key, new FileInfo(attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey()));
+        } else {
+            //Deleted, which may have been a whole directory.
+            files.remove(key);
+            String prefix = key + changed.getFileSystem().getSeparator();
+            files.keySet().removeIf(k -> k.startsWith(prefix));
+        }
+    }
+
+    /**
+     * Index loop, scans the tree whenever a rescan is asked for and applies
+     * events in between, until the watch service is closed.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            if (rescanRequested) {
+                rescanRequested = false;
+                try {
+                    rescan();
+                } catch (ClosedWatchServiceException ex) {
+                    //Closed during the scan.
+                    return;
+                }
+            }
+            WatchKey key;
+            try {
+                key = watcher.poll(RESCAN_CHECK_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            if (key == null) {
+                continue;
+            }
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                try {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                        //Events were lost, so the index can no longer say a file is missing.
+                        requestRescan();
+                    } else {
+                        update(dir.resolve((Path) event.context()));
+                    }
+                } catch (IOException ex) {
+                    requestRescan();
+                }
+            }
+            if (!key.reset()) {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package tftp.udp.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import tftp.udp.shared.Log;
+
+/**
+ * Shared state handed to every request handler created by the server.
+ *
+ * @author 184514
+ */
+public class ServerContext {
+
+    //Files are cached after 3 requests, up to 64MB each and 256MB in total.
+    private final DataPacketCache packetCache = new DataPacketCache(3, 64L << 20, 256L << 20);
+    //Disk reads for every transfer run on a small pool of daemon threads. The
+    //queue is an array so queueing a read allocates nothing, and once it is
+    //full a read is refused and the sender makes it itself.
+    private final ExecutorService readAheadPool = new ThreadPoolExecutor(4, 4, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(4096), r -> {
+        Thread t = new Thread(r, "tftp-read-ahead");
+        t.setDaemon(true);
+        return t;
+    });
+    //Upload writers, one per upload while it is running.
+    private final ExecutorService writerPool = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "tftp-write-behind");
+        t.setDaemon(true);
+        return t;
+    });
+    //Packet buffers, one DATA header plus 512 bytes of payload each.
+    private final BufferPool dataBuffers = new BufferPool(516, 1024);
+    private final ServedTreeIndex treeIndex;
+    //Request counts kept across restarts, used to warm the cache at startup.
+    private final AccessLog accessLog = new AccessLog(Paths.get(".tftp-access"));
+    //Generated files are kept for a minute, up to 10000 of them.
+    private final GeneratedFileProvider generated = new GeneratedFileProvider(10000, 60000);
+    private final FileSystemProvider fileSystem;
+    //Providers asked in order, mounted archives first and the filesystem always last.
+    private final List<FileProvider> providers = new CopyOnWriteArrayList<>();
+
+    private final Durability durability;
+    //Per client request and bandwidth limits, null until enabled.
+    private volatile ClientLimiter limiter;
+    //Server-wide egress cap, uncapped until set, released every millisecond.
+    private final EgressPacer egress = new EgressPacer(0, 1000);
+    private final Metrics metrics = new Metrics();
+    //Transfers in progress, for the admin console.
+    private final SessionRegistry sessions = new SessionRegistry();
+    //Records every datagram received, null unless capturing.
+    private volatile TrafficCapture capture;
+
+    /**
+     * Creates the shared state and indexes the served tree, which is the
+     * working directory of the server.
+     *
+     * @param durability - Policy forcing uploads to disk before their final ACK.
+     */
+    public ServerContext(Durability durability) {
+        this.durability = durability;
+        ServedTreeIndex index = null;
+        try {
+            index = new ServedTreeIndex(Paths.get(""));
+            index.start();
+        } catch (IOException ex) {
+            Logger.getLogger(ServerContext.class.getName()).log(Level.WARNING, "Serving without a tree index", ex);
+        }
+        this.treeIndex = index;
+        this.fileSystem = new FileSystemProvider(index, packetCache, readAheadPool, dataBuffers, writerPool, durability);
+        //The access log lies in the served tree, but is not for clients.
+        for (Path file : accessLog.getFiles()) {
+            fileSystem.hide(file);
+        }
+        providers.add(generated);
+        providers.add(fileSystem);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(egress, new ObjectName("tftp.udp.server:type=EgressPacer"));
+        } catch (JMException ex) {
+            Logger.getLogger(ServerContext.class.getName()).log(Level.WARNING, "Egress cap cannot be changed at runtime", ex);
+        }
+    }
+
+    /**
+     * Returns the cache of pre-encoded DATA packets.
+     *
+     * @return the packet cache
+     */
+    public DataPacketCache getPacketCache() {
+        return packetCache;
+    }
+
+    /**
+     * Returns the durability policy for uploads.
+     *
+     * @return the durability policy
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Returns the per-file access log.
+     *
+     * @return the access log
+     */
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * Returns the pool which runs read-ahead disk reads.
+     *
+     * @return the read-ahead executor
+     */
+    public ExecutorService getReadAheadPool() {
+        return readAheadPool;
+    }
+
+    /**
+     * Returns the shared pool of DATA packet buffers.
+     *
+     * @return the data buffer pool
+     */
+    public BufferPool getDataBuffers() {
+        return dataBuffers;
+    }
+
+    /**
+     * Sets the upload size after which uploads bypass the page cache, so
+     * huge uploads do not evict the files being served.
+     *
+     * @param directThreshold - Size in bytes, or -1 to never use direct I/O.
+     */
+    public void setDirectThreshold(long directThreshold) {
+        fileSystem.setDirectThreshold(directThreshold);
+    }
+
+    /**
+     * Returns the index of the served tree.
+     *
+     * @return the tree index, or null if the platform has no WatchService
+     */
+    public ServedTreeIndex getTreeIndex() {
+        return treeIndex;
+    }
+
+    /**
+     * Mounts a zip or jar archive as a read-only namespace, ahead of every
+     * provider added so far apart from other archives.
+     *
+     * @param archive - Path of the archive.
+     * @throws IOException is thrown when the archive cannot be read.
+     */
+    public void mountArchive(Path archive) throws IOException {
+        ArchiveStore store = new ArchiveStore(archive);
+        int at = 0;
+        while (providers.get(at) instanceof ArchiveStore) {
+            at++;
+        }
+        providers.add(at, store);
+        Log.info("Mounted {} with {} files", archive, store.size());
+    }
+
+    /**
+     * Relays files missing locally from an upstream TFTP server. The relay is
+     * asked after every other provider.
+     *
+     * @param address - Address of the upstream server.
+     * @param port - Port of the upstream server.
+     */
+    public void enableRelay(InetAddress address, int port) {
+        ExecutorService fetchPool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tftp-relay-fetch");
+            t.setDaemon(true);
+            return t;
+        });
+        //Fetched files are kept for five minutes, up to 256MB of them.
+        providers.add(new RelayProvider(address, port, fetchPool, 256L << 20, 5 * 60 * 1000));
+        Log.info("Relaying missing files from {} : {}", address, port);
+    }
+
+    /**
+     * Keeps small uploads in a log-structured segment store, with identical
+     * contents stored once, instead of one file each. Uploads larger than
+     * the store's limit still go to the filesystem.
+     *
+     * @param directory - Directory holding the segment files.
+     * @throws IOException is thrown when the existing segments cannot be read.
+     */
+    public void enableSegments(Path directory) throws IOException {
+        //Uploads up to 256KB are kept in the store, old segments are checked for compaction every minute.
+        SegmentStore store = new SegmentStore(directory, 256 * 1024, fileSystem, durability);
+        //The segments may lie in the served tree, a client must not read or replace them.
+        fileSystem.hide(directory);
+        store.startCompaction(60000);
+        providers.add(providers.indexOf(fileSystem), store);
+        Log.info("Storing small uploads in {}: {}", directory, store.getReport());
+    }
+
+    /**
+     * Limits each source address's request rate and bandwidth.
+     *
+     * @param requestsPerSecond - Requests allowed per second per address, 0 for no limit.
+     * @param bytesPerSecond - Bytes per second per address, 0 for no limit.
+     */
+    public void enableRateLimits(double requestsPerSecond, double bytesPerSecond) {
+        //Up to 262144 addresses are tracked on their own, each forgotten after five idle minutes.
+        limiter = new ClientLimiter(requestsPerSecond, bytesPerSecond, 1 << 18, 5 * 60 * 1000);
+        Log.info("Limiting each client to {} requests and {} bytes per second (0 is unlimited)", requestsPerSecond, bytesPerSecond);
+    }
+
+    /**
+     * Caps the bytes sent by all transfers together. Both values can also be
+     * changed at runtime through the EgressPacer MBean.
+     *
+     * @param bytesPerSecond - Cap in bytes per second, 0 for no cap.
+     * @param intervalMicros - Time between credit releases in microseconds.
+     */
+    public void setEgressCap(long bytesPerSecond, long intervalMicros) {
+        egress.setIntervalMicros(intervalMicros);
+        egress.setCapBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Adds a class of read transfers which shares the egress cap by its weight.
+     *
+     * @param transferClass - Class to add, matched after those already added.
+     */
+    public void addTransferClass(TransferClass transferClass) {
+        egress.addClass(transferClass);
+        Log.info("Transfer class {} added with weight {}", transferClass.getName(), transferClass.getWeight());
+    }
+
+    /**
+     * Returns the counters and histograms every handler records into.
+     *
+     * @return the metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Publishes the metrics in the Prometheus text format at
+     * http://127.0.0.1:port/metrics.
+     *
+     * @param port - Local port to listen on.
+     * @throws IOException is thrown when the port cannot be bound.
+     */
+    public void enableMetricsEndpoint(int port) throws IOException {
+        MetricsServer server = new MetricsServer(metrics, port);
+        Log.info("Metrics published at http://127.0.0.1:{}/metrics", server.getPort());
+    }
+
+    /**
+     * Records every datagram the server receives from now on, for replaying
+     * with CaptureReplay.
+     *
+     * @param file - Capture file, replaced if it exists.
+     * @param listenPort - Port the server listens for requests on.
+     * @throws IOException is thrown when the file cannot be created.
+     */
+    public void enableCapture(Path file, int listenPort) throws IOException {
+        capture = new TrafficCapture(file, listenPort);
+        Log.info("Capturing received datagrams to {}", file);
+    }
+
+    /**
+     * Returns the traffic capture.
+     *
+     * @return the capture, or null if the server is not capturing
+     */
+    public TrafficCapture getCapture() {
+        return capture;
+    }
+
+    /**
+     * Returns the transfers in progress.
+     *
+     * @return the session registry
+     */
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Returns the server-wide egress pacer.
+     *
+     * @return the pacer, which lets every packet through while uncapped
+     */
+    public EgressPacer getEgressPacer() {
+        return egress;
+    }
+
+    /**
+     * Returns the per client limits.
+     *
+     * @return the limiter, or null if clients are not limited
+     */
+    public ClientLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Returns the provider of generated files, to which rules can be added.
+     *
+     * @return the generated file provider
+     */
+    public GeneratedFileProvider getGeneratedFiles() {
+        return generated;
+    }
+
+    /**
+     * Opens a file for reading from the first provider which serves the name.
+     * Names the filesystem hides are refused by every provider.
+     *
+     * @param filename - Filename as sent by the client.
+     * @param blockSize - Number of payload bytes per DATA packet.
+     * @return The opened file.
+     * @throws FileNotFoundException is thrown when no provider has the file.
+     * @throws IOException is thrown when the file cannot be read.
+     */
+    public ServedFile openRead(String filename, int blockSize) throws IOException {
+        if (fileSystem.isHidden(filename)) {
+            throw new FileNotFoundException(filename);
+        }
+        for (FileProvider provider : providers) {
+            ServedFile file = provider.openRead(filename, blockSize);
+            if (file != null) {
+                return file;
+            }
+        }
+        throw new FileNotFoundException(filename);
+    }
+
+    /**
+     * Opens a file for writing with the first provider which accepts the name.
+     * Names the filesystem hides are refused by every provider.
+     *
+     * @param filename - Filename as sent by the client.
+     * @return Sink the upload is written to.
+     * @throws FileNotFoundException is thrown when no provider accepts the file.
+     * @throws IOException is thrown when the file cannot be written.
+     */
+    public UploadSink openWrite(String filename) throws IOException {
+        if (fileSystem.isHidden(filename)) {
+            throw new FileNotFoundException(filename);
+        }
+        for (FileProvider provider : providers) {
+            UploadSink out = provider.openWrite(filename);
+            if (out != null) {
+                return out;
+            }
+        }
+        throw new FileNotFoundException(filename);
+    }
+}
@@ -0,0 +1,154 @@
+package tftp.udp.server;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * Live state of one transfer, shown by the admin console. Only the
+ * handler's thread writes the progress fields, so they are plain volatile
+ * fields updated without locks or atomic instructions, and the console
+ * reads them at any time without slowing the transfer.
+ *
+ * @author 184514
+ */
+public class Session {
+
+    //Data bytes in each block, for the total blocks of a file of known size.
+    private static final int DATA_LEN = 512;
+
+    private final long id;
+    private final PacketType direction;
+    private final InetAddress address;
+    private final int port;
+    private final String filename;
+    private final long startedNanos = System.nanoTime();
+    //Written only by the handler's thread.
+    private volatile long totalBlocks = -1, blocksDone, bytesDone, rttNanos;
+    private volatile int retransmits;
+    //Socket the transfer runs on, closed to cancel it.
+    private volatile DatagramSocket socket;
+    private volatile boolean cancelled;
+
+    /**
+     * @param id - Number the session is listed and cancelled by.
+     * @param direction - READ or WRITE.
+     * @param address - Client's address.
+     * @param port - Client's port.
+     * @param filename - Name of the file transferred.
+     */
+    Session(long id, PacketType direction, InetAddress address, int port, String filename) {
+        this.id = id;
+        this.direction = direction;
+        this.address = address;
+        this.port = port;
+        this.filename = filename;
+    }
+
+    /**
+     * @return the number the session is listed and cancelled by
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Gives the session the socket the transfer runs on. A session cancelled
+     * before it has one closes it straight away.
+     *
+     * @param socket - Connection socket.
+     */
+    public void attach(DatagramSocket socket) {
+        this.socket = socket;
+        if (cancelled) {
+            socket.close();
+        }
+    }
+
+    /**
+     * @param bytes - Size of the file, or -1 if unknown.
+     */
+    public void setTotalBytes(long bytes) {
+        totalBlocks = bytes < 0 ? -1 : bytes / DATA_LEN + 1;
+    }
+
+    /**
+     * Counts a block acknowledged by the client, or written to the upload.
+     *
+     * @param bytes - Data bytes in the block.
+     */
+    public void blockDone(int bytes) {
+        blocksDone = blocksDone + 1;
+        bytesDone = bytesDone + bytes;
+    }
+
+    /**
+     * Counts a packet sent again after a timeout.
+     */
+    public void retransmit() {
+        retransmits = retransmits + 1;
+    }
+
+    /**
+     * Folds a round trip into the smoothed RTT, weighting it an eighth as TCP does.
+     *
+     * @param nanos - Time from sending a packet to its answer.
+     */
+    public void rtt(long nanos) {
+        long smoothed = rttNanos;
+        rttNanos = smoothed == 0 ? nanos : smoothed + (nanos - smoothed) / 8;
+    }
+
+    /**
+     * Stops the transfer by closing its socket. The handler's next send or
+     * receive fails, and it releases the file or discards the upload as it
+     * does for any failed transfer.
+     */
+    public void cancel() {
+        cancelled = true;
+        DatagramSocket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * @return true if the session was cancelled from the console
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Copies the session's state at this moment.
+     *
+     * @return a snapshot of the session
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * State of a session at one moment, as listed by the console.
+     */
+    public static final class Snapshot {
+
+        final long id, totalBlocks, blocksDone, bytesDone, rttNanos, ageNanos;
+        final int retransmits;
+        final PacketType direction;
+        final String client, filename;
+
+        private Snapshot(Session session) {
+            this.id = session.id;
+            this.direction = session.direction;
+            this.client = session.address.getHostAddress() + ":" + session.port;
+            this.filename = session.filename;
+            this.totalBlocks = session.totalBlocks;
+            this.blocksDone = session.blocksDone;
+            this.bytesDone = session.bytesDone;
+            this.rttNanos = session.rttNanos;
+            this.retransmits = session.retransmits;
+            this.ageNanos = System.nanoTime() - session.startedNanos;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package tftp.udp.server;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * Transfers in progress, by session number. Handlers add themselves when
+ * they start and remove themselves when they end, and the map is read
+ * without locking, so listing sessions never holds up a transfer.
+ *
+ * @author 184514
+ */
+public class SessionRegistry {
+
+    private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+
+    /**
+     * Adds a transfer which is starting.
+     *
+     * @param direction - READ or WRITE.
+     * @param address - Client's address.
+     * @param port - Client's port.
+     * @param filename - Name of the file transferred.
+     * @return the new session
+     */
+    public Session register(PacketType direction, InetAddress address, int port, String filename) {
+        Session session = new Session(nextId.getAndIncrement(), direction, address, port, filename);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    /**
+     * Removes a transfer which has ended.
+     *
+     * @param session - Session returned when it was registered.
+     */
+    public void remove(Session session) {
+        sessions.remove(session.getId());
+    }
+
+    /**
+     * Copies the state of every session in progress.
+     *
+     * @return one snapshot per session, in no particular order
+     */
+    public List<Session.Snapshot> snapshot() {
+        List<Session.Snapshot> snapshots = new ArrayList<>(sessions.size());
+        for (Session session : sessions.values()) {
+            snapshots.add(session.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Cancels a session.
+     *
+     * @param id - Session number.
+     * @return true if the session was in progress
+     */
+    public boolean cancel(long id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return false;
+        }
+        session.cancel();
+        return true;
+    }
+}
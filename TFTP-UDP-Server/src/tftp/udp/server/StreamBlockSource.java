@@ -0,0 +1,60 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import tftp.udp.server.PacketClasses.PacketType;
+
+/**
+ * @author 184514
+ */
+public class StreamBlockSource implements DataBlockSource {
+
+    private final InputStream in;
+    private final int blockSize;
+    //Single reusable packet buffer, header followed by the payload.
+    private final byte[] packetBuffer;
+    private final ByteBuffer header;
+
+    /**
+     * Creates a block source which reads each block straight from a stream.
+     *
+     * @param in - Stream to read the file from.
+     * @param blockSize - Number of payload bytes per DATA packet.
+     */
+    public StreamBlockSource(InputStream in, int blockSize) {
+        this.in = in;
+        this.blockSize = blockSize;
+        this.packetBuffer = new byte[blockSize + 4];
+        this.header = ByteBuffer.wrap(packetBuffer);
+    }
+
+    /**
+     * Reads the next block into the reusable packet buffer, behind the header.
+     */
+    @Override
+    public int fill(short blockNo, DatagramPacket datagram) throws IOException {
+        int bytesRead = 0;
+        //Keeps reading until the block is full or the end of the stream is reached.
+        while (bytesRead < blockSize) {
+            int n = in.read(packetBuffer, 4 + bytesRead, blockSize - bytesRead);
+            if (n == -1) {
+                break;
+            }
+            bytesRead += n;
+        }
+        header.putShort(0, PacketType.DATA.getOpcode());
+        header.putShort(2, blockNo);
+        datagram.setData(packetBuffer, 0, bytesRead + 4);
+        return bytesRead;
+    }
+
+    /**
+     * Closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -3,12 +3,22 @@ package tftp.udp.server;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.SocketException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import tftp.udp.server.PacketClasses.*;
+import tftp.udp.shared.Log;
 
 /**
  * @author 184514
@@ -18,15 +28,28 @@ public class TFTPUDPServer extends Thread {
 
     private final int port;
     private final ExecutorService executor;
+    private final ServerContext context;
+    //Listening socket, closed to stop the server.
+    private volatile DatagramSocket listener;
     private final int PCKT_LEN = 516;
+    //Most files, and bytes, loaded when warming up.
+    private final int WARM_FILES = 1000;
+    private final long WARM_BUDGET = 128L << 20;
 
     /**
      * Constructor initialises a  new TFTP UDP Server.
      * @param port - port given by user, which is used to connect to.
+     * @param durability - policy forcing uploads to disk before their final ACK.
      */
-    public TFTPUDPServer(int p){
+    public TFTPUDPServer(int p, Durability durability){
         this.port = p;
-        this.executor = Executors.newCachedThreadPool();
+        //Handlers run on daemon threads, so a server embedded in another program does not keep it running.
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "tftp-handler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.context = new ServerContext(durability);
     }
 
     
@@ -36,49 +59,96 @@ public class TFTPUDPServer extends Thread {
      */
     @Override
     public void run() {
+        //The most requested files of the last run are loaded before any request is accepted.
+        context.getAccessLog().warm(context.getPacketCache(), PCKT_LEN - 4, WARM_FILES, WARM_BUDGET);
+        context.getAccessLog().start();
         try {
             //Socket created using port supplied.
             DatagramSocket sckt = new DatagramSocket(port);
-            System.out.println("******************************************\n*********** TFTP UDP Server **************\n******************************************");    
-            System.out.println("Socket, Buffer & Packet created with port: " + port);
+            listener = sckt;
+            Log.info("******************************************\n*********** TFTP UDP Server **************\n******************************************");
+            Log.info("Socket, Buffer & Packet created with port: {}", port);
             byte[] buffer = new byte[PCKT_LEN];
             //packet created using buffer and its length.
             DatagramPacket rcvdPacket = new DatagramPacket(buffer, buffer.length);
             while(true){
                 try{
+                   //The length shrinks to each packet received, so it is reset before the next one.
+                   rcvdPacket.setLength(buffer.length);
                    sckt.receive(rcvdPacket); 
-                   System.out.println("Packet has been received!");
+                   //Requests are captured before the limits, so a replay offers the server everything clients sent.
+                   TrafficCapture capture = context.getCapture();
+                   if (capture != null) {
+                       capture.record(port, rcvdPacket);
+                   }
+                   Log.tracePacket("Packet has been received from {} : {}, {} bytes", rcvdPacket.getAddress(), rcvdPacket.getPort(), rcvdPacket.getLength());
                 }
                 catch (IOException e){
+                    //The socket is closed when the server is shut down.
+                    if (sckt.isClosed()) {
+                        break;
+                    }
                     //If packet isnt received / error occurs.
-                    System.out.println("Error occurred with receiving the packet!!");
+                    Log.warn("Error occurred with receiving the packet: {}", e.getMessage());
+                    continue;
+                }
+                //Requests over the sender's rate are dropped before a packet or handler is created.
+                ClientLimiter limiter = context.getLimiter();
+                if (limiter != null && !limiter.allowRequest(rcvdPacket.getAddress())) {
+                    context.getMetrics().requestDropped();
                     continue;
                 }
-                //Creates a TFTP Packet using Datagram Packet.
-                TFTPPacket pckt = fromDatagramPacket(rcvdPacket);
+                //Creates a TFTP Packet using Datagram Packet. A datagram which is not one is dropped on its own.
+                TFTPPacket pckt;
+                try {
+                    pckt = fromDatagramPacket(rcvdPacket);
+                } catch (TFTPException | RuntimeException ex) {
+                    context.getMetrics().requestMalformed();
+                    Log.debug("Ignoring a malformed packet from {} : {}: {}", rcvdPacket.getAddress(), rcvdPacket.getPort(), ex.toString());
+                    continue;
+                }
+                context.getMetrics().requestReceived(pckt.getPacketType());
                 //Depending on the type of packet received.
                 switch(pckt.getPacketType()){
                     case READ:
-                        System.out.println("Calling Read Request Handler (RRQ) & Read request response has been created.");
-                        executor.submit(new RRQHandler(rcvdPacket.getPort(), rcvdPacket.getAddress(), (RRQPacket) pckt));
+                        Log.debug("Calling Read Request Handler (RRQ) & Read request response has been created.");
+                        executor.submit(new RRQHandler(rcvdPacket.getPort(), rcvdPacket.getAddress(), (RRQPacket) pckt, context));
                         break;
                     case WRITE:
-                        System.out.println("Calling Write Request Handler (WRQ) & Write Request response has been created.");
-                        executor.submit(new WRQHandler(rcvdPacket.getPort(), rcvdPacket.getAddress(), (WRQPacket) pckt));
+                        Log.debug("Calling Write Request Handler (WRQ) & Write Request response has been created.");
+                        executor.submit(new WRQHandler(rcvdPacket.getPort(), rcvdPacket.getAddress(), (WRQPacket) pckt, context));
                         break;
                     default:
                         //If type is neither a read or write request, will be ignored.
-                        System.out.println("Ignoring the packet: " + pckt + " As not of type Read or Write.");
+                        Log.debug("Ignoring the packet: {} As not of type Read or Write.", pckt);
                         break;
                 }
             }
         } catch (SocketException ex) {
-            System.out.println("Socket Error has occured.");
-        } catch (TFTPException ex) {
-            Logger.getLogger(TFTPUDPServer.class.getName()).log(Level.SEVERE, null, ex);
+            Log.error("Socket Error has occured: {}", ex.getMessage());
         }
     }
     
+    /**
+     * Stops accepting requests and stops the transfers in progress.
+     */
+    public void shutdown() {
+        DatagramSocket sckt = listener;
+        if (sckt != null) {
+            sckt.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the state shared by this server's request handlers.
+     *
+     * @return the server context
+     */
+    public ServerContext getContext() {
+        return context;
+    }
+
     /**
      * Converts A Datagram packet to TFTP packet.
      * 
@@ -99,13 +169,153 @@ public class TFTPUDPServer extends Thread {
         //Port was a random number greater than 1024.
         int defaultPort = 8451;
         int port = defaultPort;
+        List<String> archives = new ArrayList<>();
+        List<String[]> templates = new ArrayList<>();
+        List<String> transferClasses = new ArrayList<>();
+        String upstream = null;
+        Durability.Mode durabilityMode = Durability.Mode.NONE;
+        Long directThreshold = null;
+        String segments = null;
+        double requestRate = 0, byteRate = 0;
+        long egressCap = 0, egressInterval = 1000;
+        int metricsPort = -1;
+        String capture = null;
+        //The admin console reads standard input, which stops a server started in the background, so it is only started when asked for.
+        boolean console = Arrays.asList(args).contains("-console");
         for (int i = 0; i < args.length - 1;i++){
+            //Least severe messages logged, error, warn, info, debug or trace, optionally followed by the per packet sampling rate.
+            if(args[i].equals("-log")){
+                try {
+                    Log.setLevel(Log.Level.valueOf(args[i+1].toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException ex) {
+                    Log.warn("Unknown log level: {} Should be error, warn, info, debug or trace", args[i+1]);
+                }
+                if (i + 2 < args.length && !args[i+2].startsWith("-")) {
+                    Log.setSampling(Integer.parseInt(args[i+2]));
+                }
+            }
             if(args[i].equals("-port")){
                 port = Integer.parseInt(args[i+1]);
             }
+            if(args[i].equals("-archive")){
+                archives.add(args[i+1]);
+            }
+            //How uploads are forced to disk: none, fsync or group.
+            if(args[i].equals("-durability")){
+                try {
+                    durabilityMode = Durability.Mode.valueOf(args[i+1].toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException ex) {
+                    Log.warn("Unknown durability mode: {} Should be none, fsync or group", args[i+1]);
+                }
+            }
+            //Upload size in bytes after which uploads bypass the page cache, -1 for never.
+            if(args[i].equals("-direct")){
+                directThreshold = Long.parseLong(args[i+1]);
+            }
+            //Requests per second and bytes per second allowed for each client address.
+            if(args[i].equals("-rate") && i + 2 < args.length){
+                requestRate = Double.parseDouble(args[i+1]);
+                byteRate = Double.parseDouble(args[i+2]);
+            }
+            //Bytes per second sent by all transfers together, optionally followed by the pacing interval in microseconds.
+            if(args[i].equals("-egress")){
+                egressCap = Long.parseLong(args[i+1]);
+                if (i + 2 < args.length && !args[i+2].startsWith("-")) {
+                    egressInterval = Long.parseLong(args[i+2]);
+                }
+            }
+            //Class of transfers sharing the egress cap by weight, as name,weight=n followed by file=, minsize=, maxsize= or net= rules.
+            if(args[i].equals("-class")){
+                transferClasses.add(args[i+1]);
+            }
+            //Every datagram received is recorded to this file, for replaying with CaptureReplay.
+            if(args[i].equals("-capture")){
+                capture = args[i+1];
+            }
+            //Local port of the Prometheus metrics endpoint.
+            if(args[i].equals("-metrics")){
+                metricsPort = Integer.parseInt(args[i+1]);
+            }
+            //Small uploads are appended to segment files in this directory.
+            if(args[i].equals("-segments")){
+                segments = args[i+1];
+            }
+            //Files missing locally are fetched from the upstream server, given as host:port.
+            if(args[i].equals("-upstream")){
+                upstream = args[i+1];
+            }
+            //Files whose name matches the pattern are generated from the template file.
+            if(args[i].equals("-generate") && i + 2 < args.length){
+                templates.add(new String[]{args[i+1], args[i+2]});
+            }
+        }
+        //Group commit forces whatever uploads finished while the last batch was forced, without waiting for more.
+        TFTPUDPServer host = new TFTPUDPServer(port, new Durability(durabilityMode, 0));
+        if (directThreshold != null) {
+            host.getContext().setDirectThreshold(directThreshold);
+        }
+        if (requestRate > 0 || byteRate > 0) {
+            host.getContext().enableRateLimits(requestRate, byteRate);
+        }
+        if (metricsPort >= 0) {
+            try {
+                host.getContext().enableMetricsEndpoint(metricsPort);
+            } catch (IOException ex) {
+                Log.warn("Unable to publish metrics on port {}: {}", metricsPort, ex.getMessage());
+            }
+        }
+        if (capture != null) {
+            try {
+                host.getContext().enableCapture(Paths.get(capture), port);
+            } catch (IOException ex) {
+                Log.warn("Unable to capture traffic to {}: {}", capture, ex.getMessage());
+            }
+        }
+        for (String transferClass : transferClasses) {
+            try {
+                host.getContext().addTransferClass(TransferClass.parse(transferClass));
+            } catch (IllegalArgumentException ex) {
+                Log.warn("Unable to add transfer class {}: {}", transferClass, ex.getMessage());
+            }
+        }
+        if (egressCap > 0) {
+            host.getContext().setEgressCap(egressCap, egressInterval);
+        }
+        if (segments != null) {
+            try {
+                host.getContext().enableSegments(Paths.get(segments));
+            } catch (IOException ex) {
+                Log.warn("Unable to open segment store {}: {}", segments, ex.getMessage());
+            }
+        }
+        for (String archive : archives) {
+            try {
+                host.getContext().mountArchive(Paths.get(archive));
+            } catch (IOException ex) {
+                Log.warn("Unable to mount archive {}: {}", archive, ex.getMessage());
+            }
+        }
+        if (upstream != null) {
+            String[] hostPort = upstream.split(":");
+            try {
+                host.getContext().enableRelay(InetAddress.getByName(hostPort[0]), hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : defaultPort);
+            } catch (UnknownHostException | NumberFormatException ex) {
+                Log.warn("Invalid upstream {}: {}", upstream, ex.getMessage());
+            }
+        }
+        for (String[] template : templates) {
+            try {
+                String text = new String(Files.readAllBytes(Paths.get(template[1])), StandardCharsets.US_ASCII);
+                host.getContext().getGeneratedFiles().addRule(Pattern.compile(template[0]), GeneratedFileProvider.template(text));
+            } catch (IOException | PatternSyntaxException ex) {
+                Log.warn("Unable to add generated files {}: {}", template[0], ex.getMessage());
+            }
         }
-        TFTPUDPServer host = new TFTPUDPServer(port);
         host.start();
+        //Commands typed on standard input list and cancel the sessions in progress.
+        if (console) {
+            new AdminConsole(host.getContext().getSessions()).start();
+        }
     }
     
 }
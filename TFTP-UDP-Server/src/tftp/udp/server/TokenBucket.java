@@ -0,0 +1,69 @@
+package tftp.udp.server;
+
+/**
+ * Token bucket holding up to a burst of tokens, refilled at a steady rate.
+ * Tokens are refilled lazily from the time elapsed when they are taken, so
+ * an idle bucket costs nothing.
+ *
+ * @author 184514
+ */
+public class TokenBucket {
+
+    private final double ratePerNano, capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param ratePerSecond - Tokens added per second.
+     * @param capacity - Most tokens the bucket holds, the largest burst allowed.
+     */
+    public TokenBucket(double ratePerSecond, double capacity) {
+        this.ratePerNano = ratePerSecond / 1e9;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes tokens if the bucket has them.
+     *
+     * @param n - Tokens wanted.
+     * @return true if they were taken, false if the bucket is short and nothing was taken
+     */
+    public synchronized boolean tryAcquire(double n) {
+        refill();
+        if (tokens < n) {
+            return false;
+        }
+        tokens -= n;
+        return true;
+    }
+
+    /**
+     * Takes tokens, waiting until the bucket has refilled enough. The tokens
+     * are reserved before waiting, so threads sharing a bucket are served in
+     * the order they asked.
+     *
+     * @param n - Tokens wanted.
+     * @throws InterruptedException is thrown when the thread is interrupted while waiting.
+     */
+    public void acquire(double n) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= n;
+            waitNanos = tokens < 0 ? (long) (-tokens / ratePerNano) : 0;
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,158 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import tftp.udp.shared.Log;
+
+/**
+ * Records every datagram the server receives, on the listening port and on
+ * each transfer's socket, to a binary file which CaptureReplay plays back.
+ * Receiving threads append records to a buffer under a short lock, and a
+ * writer thread swaps in an empty buffer and writes the full one to disk,
+ * so capturing never waits on the disk. If the writer falls a whole buffer
+ * behind, records are dropped and counted rather than holding up a transfer.
+ * <p>
+ * The file starts with MAGIC, the capture's start time in epoch
+ * milliseconds and the listening port. Each record is the microseconds
+ * since the start, the sender's address length and address, the sender's
+ * port, the port it was received on, the datagram's length and its bytes,
+ * all big-endian.
+ *
+ * @author 184514
+ */
+public class TrafficCapture {
+
+    //First bytes of a capture, the last one is the format version.
+    static final byte[] MAGIC = {'T', 'F', 'T', 'P', 'C', 'A', 'P', 1};
+    //Size of each of the two buffers, and the longest the writer waits before writing a partly full one.
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long WRITE_MS = 100;
+
+    private final FileChannel channel;
+    private final long startNanos = System.nanoTime();
+    private ByteBuffer filling = ByteBuffer.allocate(BUFFER_SIZE), writing = ByteBuffer.allocate(BUFFER_SIZE);
+    private final AtomicLong records = new AtomicLong(), dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Creates the capture file, replacing any old one, and starts the writer.
+     *
+     * @param file - File the datagrams are recorded to.
+     * @param listenPort - Port the server listens for requests on.
+     * @throws IOException is thrown when the file cannot be created.
+     */
+    public TrafficCapture(Path file, int listenPort) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 10);
+        header.put(MAGIC).putLong(System.currentTimeMillis()).putShort((short) listenPort).flip();
+        channel.write(header);
+        Thread writer = new Thread(this::writeLoop, "tftp-capture");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "tftp-capture-close"));
+    }
+
+    /**
+     * Records a datagram just received.
+     *
+     * @param localPort - Port of the socket which received it.
+     * @param packet - Datagram received.
+     */
+    public void record(int localPort, DatagramPacket packet) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+        byte[] address = packet.getAddress().getAddress();
+        int length = packet.getLength();
+        synchronized (this) {
+            if (filling.remaining() < 15 + address.length + length) {
+                dropped.incrementAndGet();
+                return;
+            }
+            filling.putLong(micros).put((byte) address.length).put(address)
+                    .putShort((short) packet.getPort()).putShort((short) localPort)
+                    .putShort((short) length).put(packet.getData(), packet.getOffset(), length);
+            //The writer is woken early once the buffer is half full.
+            if (filling.position() > BUFFER_SIZE / 2) {
+                notify();
+            }
+        }
+        records.incrementAndGet();
+    }
+
+    /**
+     * Writer thread: swaps the buffers every WRITE_MS, or sooner once one is
+     * half full, and writes the full one outside the lock.
+     */
+    private void writeLoop() {
+        while (!closed) {
+            synchronized (this) {
+                if (filling.position() <= BUFFER_SIZE / 2) {
+                    try {
+                        wait(WRITE_MS);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+            writeBuffered();
+        }
+    }
+
+    /**
+     * Exchanges the buffer being filled for the empty one.
+     */
+    private synchronized void swap() {
+        ByteBuffer full = filling;
+        filling = writing;
+        writing = full;
+    }
+
+    /**
+     * Writes whatever has been recorded so far.
+     */
+    private void writeBuffered() {
+        //Only one thread writes at a time, the writer or the thread closing the capture.
+        synchronized (channel) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            swap();
+            writing.flip();
+            try {
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(TrafficCapture.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            writing.clear();
+        }
+    }
+
+    /**
+     * Writes the records still buffered and closes the file.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        synchronized (channel) {
+            writeBuffered();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(TrafficCapture.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        Log.info("Captured {} datagrams, {} dropped", records.get(), dropped.get());
+        Log.flush();
+    }
+}
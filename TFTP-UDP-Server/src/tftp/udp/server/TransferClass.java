@@ -0,0 +1,185 @@
+package tftp.udp.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Priority class of read transfers. A transfer belongs to the first class
+ * whose rules all match its filename, size and client address, and classes
+ * share the egress cap in proportion to their weights. Each class keeps its
+ * own throughput and completion times.
+ *
+ * @author 184514
+ */
+public class TransferClass {
+
+    private final String name;
+    private final int weight;
+    //Rules, each left out when null or -1.
+    private final Pattern file;
+    private final long minSize, maxSize;
+    private final byte[] network;
+    private final int prefixBits;
+
+    private final LongAdder bytesSent = new LongAdder();
+    private final LatencyHistogram completionTimes = new LatencyHistogram();
+    private final long created = System.nanoTime();
+
+    //Scheduling state, guarded by the pacer.
+    final ArrayDeque<EgressPacer.Waiter> waiting = new ArrayDeque<>();
+    long virtualTime;
+
+    /**
+     * Creates a class.
+     *
+     * @param name - Name shown in reports.
+     * @param weight - Share of the egress cap relative to the other classes.
+     * @param file - Pattern the whole filename must match, or null for any file.
+     * @param minSize - Smallest file size in bytes, or -1 for no minimum.
+     * @param maxSize - Largest file size in bytes, or -1 for no maximum.
+     * @param network - Client network in CIDR form such as 10.1.0.0/16, or null for any client.
+     * @throws IllegalArgumentException is thrown when the weight or the network is invalid.
+     */
+    public TransferClass(String name, int weight, Pattern file, long minSize, long maxSize, String network) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight of class " + name + " must be at least 1");
+        }
+        this.name = name;
+        this.weight = weight;
+        this.file = file;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        if (network != null) {
+            String[] parts = network.split("/");
+            try {
+                this.network = InetAddress.getByName(parts[0]).getAddress();
+            } catch (UnknownHostException ex) {
+                throw new IllegalArgumentException("Invalid network of class " + name + ": " + network, ex);
+            }
+            this.prefixBits = parts.length > 1 ? Integer.parseInt(parts[1]) : this.network.length * 8;
+        } else {
+            this.network = null;
+            this.prefixBits = 0;
+        }
+    }
+
+    /**
+     * Parses a class from the command line, given as its name followed by
+     * comma separated rules, for example config,weight=8,file=.*\.cfg,maxsize=65536
+     * or lab,weight=2,net=10.1.0.0/16.
+     *
+     * @param spec - Class description.
+     * @return the class
+     * @throws IllegalArgumentException is thrown when a rule is not understood.
+     */
+    public static TransferClass parse(String spec) {
+        String[] parts = spec.split(",");
+        int weight = 1;
+        Pattern file = null;
+        long minSize = -1, maxSize = -1;
+        String network = null;
+        for (int i = 1; i < parts.length; i++) {
+            int eq = parts[i].indexOf('=');
+            String key = eq < 0 ? parts[i] : parts[i].substring(0, eq), value = eq < 0 ? "" : parts[i].substring(eq + 1);
+            switch (key) {
+                case "weight":
+                    weight = Integer.parseInt(value);
+                    break;
+                case "file":
+                    file = Pattern.compile(value);
+                    break;
+                case "minsize":
+                    minSize = Long.parseLong(value);
+                    break;
+                case "maxsize":
+                    maxSize = Long.parseLong(value);
+                    break;
+                case "net":
+                    network = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown class rule: " + parts[i]);
+            }
+        }
+        return new TransferClass(parts[0], weight, file, minSize, maxSize, network);
+    }
+
+    /**
+     * Checks a transfer against the class's rules. Size rules never match a
+     * file whose size is unknown.
+     *
+     * @param filename - Name of the file requested.
+     * @param size - Size of the file, or -1 if unknown.
+     * @param client - Client's address.
+     * @return true if every rule matches
+     */
+    public boolean matches(String filename, long size, InetAddress client) {
+        if (file != null && !file.matcher(filename).matches()) {
+            return false;
+        }
+        if ((minSize >= 0 || maxSize >= 0) && size < 0) {
+            return false;
+        }
+        if ((minSize >= 0 && size < minSize) || (maxSize >= 0 && size > maxSize)) {
+            return false;
+        }
+        return network == null || inNetwork(client.getAddress());
+    }
+
+    private boolean inNetwork(byte[] address) {
+        if (address.length != network.length) {
+            return false;
+        }
+        int bits = prefixBits;
+        for (int i = 0; i < address.length && bits > 0; i++, bits -= 8) {
+            int mask = bits >= 8 ? 0xff : (0xff << (8 - bits)) & 0xff;
+            if ((address[i] & mask) != (network[i] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Counts bytes sent by a transfer of this class.
+     *
+     * @param bytes - Bytes sent.
+     */
+    public void recordSent(int bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Records a finished transfer of this class.
+     *
+     * @param nanos - Time from the request to the final ACK.
+     */
+    public void recordCompletion(long nanos) {
+        completionTimes.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Summarises the class: average throughput since it was created and the
+     * completion time percentiles of its transfers.
+     *
+     * @return one line report
+     */
+    public String getReport() {
+        double seconds = Math.max(1e-3, (System.nanoTime() - created) / 1e9);
+        return String.format("%s (weight %d): %d bytes sent, %.0f bytes/s, %d transfers, completion p50 %.1fms p90 %.1fms p99 %.1fms",
+                name, weight, bytesSent.sum(), bytesSent.sum() / seconds, completionTimes.count(),
+                completionTimes.percentile(50) / 1000.0, completionTimes.percentile(90) / 1000.0, completionTimes.percentile(99) / 1000.0);
+    }
+}
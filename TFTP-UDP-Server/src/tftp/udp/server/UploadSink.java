@@ -0,0 +1,52 @@
+package tftp.udp.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Destination of an upload. Each block is written at its own position in
+ * the file, and nothing is visible to readers until the upload is committed. Closing a sink which has
+ * not been committed throws the upload away.
+ *
+ * @author 184514
+ */
+public interface UploadSink extends Closeable {
+
+    /**
+     * Announces the final size of the upload before any data arrives, so the
+     * sink can reserve space for it. Does nothing unless a sink overrides it.
+     *
+     * @param size - Size the client announced with the tsize option.
+     * @throws IOException is thrown when there is not enough space for the upload.
+     */
+    default void reserve(long size) throws IOException {
+    }
+
+    /**
+     * Writes the payload of a block at its place in the file.
+     *
+     * @param position - Offset of the block in the file, (block - 1) * block size.
+     * @param data - Array holding the payload.
+     * @param offset - Position of the payload in the array.
+     * @param length - Number of payload bytes.
+     * @throws IOException is thrown when the data cannot be written.
+     */
+    void write(long position, byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * Hands over the SHA-256 of the upload, computed as its blocks arrived,
+     * so the sink can keep it with the file. Called before commit. Does
+     * nothing unless a sink overrides it.
+     *
+     * @param digest - SHA-256 of the whole upload, in hex.
+     */
+    default void setDigest(String digest) {
+    }
+
+    /**
+     * Publishes the upload once the final block has been written.
+     *
+     * @throws IOException is thrown when the upload cannot be published.
+     */
+    void commit() throws IOException;
+}
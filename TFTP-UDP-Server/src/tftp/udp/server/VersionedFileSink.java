@@ -0,0 +1,224 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Upload sink which writes a new version of a file beside the live one and
+ * swaps it in with an atomic rename on commit. Readers which already have
+ * the old version open keep streaming it, new readers open the new version,
+ * and the filesystem reclaims the old version when its last reader closes.
+ * Once an upload passes the direct I/O threshold the rest of it is written
+ * around the page cache, so huge uploads do not evict the files being served.
+ *
+ * @author 184514
+ */
+public class VersionedFileSink implements UploadSink {
+
+    private final Path target, version;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Runnable onPublish;
+    private final Durability durability;
+    private boolean committed = false;
+    private String digest;
+    //End of the data written through the page cache, where direct writes carry on from.
+    private long position = 0;
+    //End of the furthest block written, the length the file is cut to.
+    private long end = 0;
+    //Wrapper of the last array written through the page cache.
+    private ByteBuffer wrapped;
+    //Size after which writes go direct (-1 for never), and the direct channel and its aligned buffer once they do.
+    private long directThreshold;
+    private FileChannel direct;
+    private ByteBuffer aligned;
+    private int alignment;
+    //Bytes gathered before each direct write.
+    private static final int DIRECT_BUFFER = 1 << 20;
+    //Suffix of a new version, which is named .name.nanos.part until it is published.
+    private static final String PART_SUFFIX = ".part";
+
+    /**
+     * Creates a new version of a file, next to it so the rename stays on one filesystem.
+     *
+     * @param target - Path of the live file.
+     * @param onPublish - Called after the new version has replaced the live file.
+     * @param durability - Policy forcing the new version to disk before it is published.
+     * @param directThreshold - Upload size after which writes bypass the page cache, or -1 for never.
+     * @throws IOException is thrown when the new version cannot be created.
+     */
+    public VersionedFileSink(Path target, Runnable onPublish, Durability durability, long directThreshold) throws IOException {
+        this.target = target;
+        this.version = target.resolveSibling("." + target.getFileName() + "." + System.nanoTime() + PART_SUFFIX);
+        this.file = new RandomAccessFile(version.toFile(), "rw");
+        this.channel = file.getChannel();
+        this.onPublish = onPublish;
+        this.durability = durability;
+        this.directThreshold = DirectIO.isAvailable() ? directThreshold : -1;
+    }
+
+    /**
+     * Returns whether a filename is that of a new version still being written.
+     *
+     * @param name - Filename, without its directory.
+     * @return true if the name is of the form .name.nanos.part
+     */
+    public static boolean isVersion(String name) {
+        return name.startsWith(".") && name.endsWith(PART_SUFFIX);
+    }
+
+    /**
+     * Checks there is space for the whole upload and sizes the new version to
+     * it up front, so the file is not grown one block at a time.
+     */
+    @Override
+    public void reserve(long size) throws IOException {
+        long usable = Files.getFileStore(version).getUsableSpace();
+        if (size > usable) {
+            throw new IOException("Upload of " + size + " bytes does not fit in " + usable + " bytes free");
+        }
+        file.setLength(size);
+    }
+
+    @Override
+    public void write(long at, byte[] data, int offset, int length) throws IOException {
+        end = Math.max(end, at + length);
+        if (direct == null && directThreshold >= 0 && at == position && position >= directThreshold) {
+            startDirect();
+        }
+        //Direct writes gather blocks in order, a block out of order goes through the page cache at its own position.
+        if (direct != null && at == position + aligned.position()) {
+            writeDirect(data, offset, length);
+            return;
+        }
+        //The write-behind writer passes the same staging array every time, so its wrapper is kept.
+        if (wrapped == null || wrapped.array() != data) {
+            wrapped = ByteBuffer.wrap(data);
+        }
+        ByteBuffer buffer = wrapped;
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        while (buffer.hasRemaining()) {
+            at += channel.write(buffer, at);
+        }
+        if (direct == null) {
+            position = Math.max(position, at);
+        }
+    }
+
+    /**
+     * Switches to direct writes, once the position is aligned. If the
+     * filesystem refuses direct I/O the upload carries on through the page cache.
+     */
+    private void startDirect() {
+        if (alignment == 0) {
+            alignment = DirectIO.alignment(version);
+        }
+        if (position % alignment != 0) {
+            return;
+        }
+        try {
+            aligned = DirectIO.allocateAligned(DIRECT_BUFFER - DIRECT_BUFFER % alignment, alignment);
+            direct = DirectIO.openForWrite(version);
+        } catch (IOException ex) {
+            //Filesystem refused, stay with the page cache for the rest of the upload.
+            aligned = null;
+            directThreshold = -1;
+        }
+    }
+
+    /**
+     * Gathers data in the aligned buffer and writes it out whenever the buffer fills.
+     */
+    private void writeDirect(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, aligned.remaining());
+            aligned.put(data, offset, n);
+            offset += n;
+            length -= n;
+            if (!aligned.hasRemaining()) {
+                flushDirect();
+            }
+        }
+    }
+
+    /**
+     * Writes the aligned part of the buffer with the direct channel, and
+     * anything after it, the tail of the file, with a normal write.
+     */
+    private void flushDirect() throws IOException {
+        aligned.flip();
+        int whole = aligned.limit() - aligned.limit() % alignment, tail = aligned.limit() - whole;
+        aligned.limit(whole);
+        while (aligned.hasRemaining()) {
+            position += direct.write(aligned, position);
+        }
+        aligned.limit(whole + tail);
+        while (aligned.hasRemaining()) {
+            position += channel.write(aligned, position);
+        }
+        aligned.clear();
+    }
+
+    @Override
+    public void setDigest(String digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * Cuts the new version to the length actually received, forces it to
+     * disk as the durability policy asks, and renames it over the live file.
+     * The digest sidecar is written once the new version is live, and forced
+     * before the directory holding both.
+     */
+    @Override
+    public void commit() throws IOException {
+        if (direct != null) {
+            flushDirect();
+            direct.close();
+        }
+        channel.truncate(end);
+        durability.syncFile(channel);
+        file.close();
+        try {
+            Files.move(version, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(version, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+        if (digest != null) {
+            try {
+                DigestSidecar.write(target, digest, durability);
+            } catch (IOException ex) {
+                Logger.getLogger(VersionedFileSink.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        Path dir = target.toAbsolutePath().getParent();
+        if (dir != null) {
+            durability.syncDirectory(dir);
+        }
+        onPublish.run();
+    }
+
+    /**
+     * Deletes the new version if the upload was never committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!committed) {
+            if (direct != null) {
+                direct.close();
+            }
+            file.close();
+            Files.deleteIfExists(version);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package tftp.udp.server;
 
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.net.SocketException;
@@ -11,6 +14,9 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import tftp.udp.server.PacketClasses.*;
+import tftp.udp.shared.FlightEvents;
+import tftp.udp.shared.Log;
+import tftp.udp.shared.PacketCodec;
 
 /**
  * @author 184514
@@ -21,6 +27,16 @@ public class WRQHandler implements Runnable{
     private final int portClient;
     private final InetAddress addressClient;
     WRQPacket wrqPKT;
+    private final ServerContext context;
+    //Paces this client's transfers, null if bandwidth is not limited.
+    private final TokenBucket bandwidth;
+    private final Metrics metrics;
+    //Records the datagrams received, null unless the server is capturing.
+    private final TrafficCapture capture;
+    //State shown by the admin console, registered when the transfer starts.
+    private Session live;
+    //When the request was taken up, for the transfer's duration, and the bytes written so far.
+    private long started, bytesDone;
     //Constants, Timeout value random number in ms.
     private final int PCKT_LEN = 516, DATA_LEN = 512, MAX_AMOUNT_TIMEOUTS = 15, TIMEOUT = 7000;
 
@@ -30,11 +46,16 @@ public class WRQHandler implements Runnable{
      * @param portClient - Port used in order to connect to client.
      * @param adressClient - Client's Address
      * @param wrqpckt - Packet to be sent from the client.
+     * @param context - Shared server state.
      */
-    public WRQHandler(int portClient, InetAddress adressClient, WRQPacket wrqpckt) {
+    public WRQHandler(int portClient, InetAddress adressClient, WRQPacket wrqpckt, ServerContext context) {
         this.addressClient = adressClient;
         this.portClient = portClient;
         this.wrqPKT = wrqpckt;
+        this.context = context;
+        this.bandwidth = context.getLimiter() != null ? context.getLimiter().bandwidthFor(adressClient) : null;
+        this.metrics = context.getMetrics();
+        this.capture = context.getCapture();
     }
     
     /**
@@ -42,38 +63,82 @@ public class WRQHandler implements Runnable{
      */
     @Override
     public void run() {
-        System.out.println("A Write Request (WRQ) has been received: " + wrqPKT + "from the address: " + addressClient + " with the port: " + portClient);
+        started = System.nanoTime();
+        metrics.sessionStarted(PacketType.WRITE);
+        live = context.getSessions().register(PacketType.WRITE, addressClient, portClient, wrqPKT.getFilename());
+        Object session = FlightEvents.begin(FlightEvents.SESSION);
+        try {
+            serve();
+        } finally {
+            context.getSessions().remove(live);
+            metrics.sessionEnded(PacketType.WRITE);
+            if (session != null) {
+                FlightEvents.commit(session, "write", wrqPKT.getFilename(), addressClient + ":" + portClient, bytesDone);
+            }
+        }
+    }
+
+    /**
+     * Answers the request, from checking its mode to the final ACK.
+     */
+    private void serve() {
+        Log.info("A Write Request (WRQ) has been received for {} from the address: {} with the port: {}", wrqPKT.getFilename(), addressClient, portClient);
         try {
             DatagramSocket socket = new DatagramSocket();
-            System.out.println("Datagram Socket has been created with a timeout of: " + TIMEOUT + "ms");
+            Log.debug("Datagram Socket has been created with a timeout of: {}ms", TIMEOUT);
             socket.setSoTimeout(TIMEOUT);
+            live.attach(socket);
             //If mode of the Write Request Packet is not octet (only mode supported).
             if(!"octet".equals(wrqPKT.getMode())){
                 //Create an error packet
                 ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.UNDEFINED, "Only Octet is supported! Invalid Mode: " + wrqPKT.getMode());
                 //Socket sent with error packet to client.
                 socket.send(toDatagramPacket(errorPacket, addressClient, portClient));
-                System.out.println("Error Packet Sent! Invalid Mode used: " + wrqPKT.getMode());   
+                metrics.errorSent(ErrorPacket.ErrorCodes.UNDEFINED);
+                Log.warn("Error Packet Sent! Invalid Mode used: {}", wrqPKT.getMode());
             }
-            try (FileOutputStream fileOS = new FileOutputStream(wrqPKT.getFilename())){
-                //File output stream is created and recieve file has been called.
-                System.out.println("File output stream created & receive file method is called!");
-                fileReceiver(socket, new AckPacket(0), addressClient, portClient, fileOS);       
+            try (UploadSink sink = context.openWrite(wrqPKT.getFilename())){
+                //Upload sink is created and recieve file has been called. Closing it without a commit discards the upload.
+                Log.debug("Upload sink created & receive file method is called!");
+                TFTPPacket firstPacket = new AckPacket(0);
+                //An announced size is reserved before any data is sent, and acknowledged with an OACK instead of ACK 0.
+                long tsize = parseSize(wrqPKT.getOptions().get("tsize"));
+                if (tsize >= 0) {
+                    live.setTotalBytes(tsize);
+                    try {
+                        sink.reserve(tsize);
+                    } catch (IOException ex) {
+                        ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.DISK_FULL, ex.getMessage());
+                        socket.send(toDatagramPacket(errorPacket, addressClient, portClient));
+                        metrics.errorSent(ErrorPacket.ErrorCodes.DISK_FULL);
+                        return;
+                    }
+                    Map<String, String> accepted = new LinkedHashMap<>();
+                    accepted.put("tsize", Long.toString(tsize));
+                    firstPacket = new OACKPacket(accepted);
+                }
+                fileReceiver(socket, firstPacket, addressClient, portClient, sink);
             }
             catch (FileNotFoundException fnfe){
                 //If the file is not found, Error packet created and socket sent using send method.
                 ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.FILE_NOT_FOUND, "Unable to write to file: " + wrqPKT.getFilename());
                 socket.send(toDatagramPacket(errorPacket, addressClient, portClient));
+                metrics.errorSent(ErrorPacket.ErrorCodes.FILE_NOT_FOUND);
             } catch (IOException ex) {
                 //Further catches any IO exceptions along with TFTP exceptions.
                 Logger.getLogger(WRQHandler.class.getName()).log(Level.SEVERE, null, ex);
             } catch (TFTPException ex) {
-                Logger.getLogger(WRQHandler.class.getName()).log(Level.SEVERE, null, ex);
+                //Cancelling a session closes its socket, which is not an error.
+                if (live.isCancelled()) {
+                    Log.info("Write of {} by {} cancelled, upload discarded", wrqPKT.getFilename(), addressClient);
+                } else {
+                    Logger.getLogger(WRQHandler.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
             return;
         } catch (SocketException ex) {
             //If a socket exception has occured, let user know.
-            System.out.println("Receive has failed: " + ex.getMessage());
+            Log.error("Receive has failed: {}", ex.getMessage());
         } catch (IOException ex) {
             Logger.getLogger(WRQHandler.class.getName()).log(Level.SEVERE, null, ex);
         }    
@@ -86,79 +151,134 @@ public class WRQHandler implements Runnable{
      * @param initialPckt - First packet to send to the server.
      * @param serverAddress - Server's address
      * @param port - Port of destination.
-     * @param fileOS - File output-stream used to write to the server/destination.
+     * @param sink - Upload sink the blocks are written to, committed when the final block arrives.
      * @throws TFTPException is thrown when the timeout limit (15) is reached.
      */
-    public void fileReceiver(DatagramSocket sckt, TFTPPacket initialPckt, InetAddress serverAddress, int port, FileOutputStream fileOS) throws TFTPException {
+    public void fileReceiver(DatagramSocket sckt, TFTPPacket initialPckt, InetAddress serverAddress, int port, UploadSink sink) throws TFTPException {
         //Creates the received buffer (byte array) and creates the Datagram Packet using the buffer.
         byte[] rcvBuffer = new byte[PCKT_LEN];
         DatagramPacket rcvDataPckt = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        //The ACK and its datagram are created once and rewritten for every block, so receiving a block allocates nothing.
+        byte[] ackBuffer = new byte[PacketCodec.HEADER_LEN];
+        ByteBuffer rcvView = ByteBuffer.wrap(rcvBuffer), ackView = ByteBuffer.wrap(ackBuffer);
+        PacketCodec codec = new PacketCodec();
+        DatagramPacket ackDatagram = new DatagramPacket(ackBuffer, ackBuffer.length, serverAddress, port);
+        DatagramPacket initialDatagram = toDatagramPacket(initialPckt, serverAddress, port);
         //Creates boolean to check if packet is the inital Packet
         boolean checkFirstPckt = true;
-        //Creates the packet to send of type TFTP.
-        TFTPPacket packetToSend;
         //Sets the number of noOfTimeouts to 0 and the number of acknowledgements to 0.
         short ackNo = 0, noOfTimeouts = 0;
+        //Blocks received so far. Unlike the block number it does not wrap, so it places each block in the file.
+        long blocksDone = 0;
+        //SHA-256 of the upload, updated as each block is written so the file never has to be read back.
+        MessageDigest digest = DigestSidecar.newDigest();
+        //When the last ACK was sent, and whether it had to be sent again, for the block's round trip.
+        long sentAt = 0;
+        boolean timedOut = false;
         //While timeout limit (15) is not reached.
         while (true) {
-            //If packet is the initial/first packet.
-            if (checkFirstPckt) {
-                //Packet to send set to the initial packet.
-                packetToSend = initialPckt;
-            } else {
-                //Otherwise sets the packet to send as a new ACK packet.
-                packetToSend = new AckPacket(ackNo);
-            }
+            //The initial packet is sent first, after that the ACK of the last block received.
+            DatagramPacket datagramToSend = checkFirstPckt ? initialDatagram : ackDatagram;
+            PacketCodec.encodeAck(ackView, 0, ackNo);
             //While timeout limit (15) is not reached.
             while (noOfTimeouts < MAX_AMOUNT_TIMEOUTS) {
                 try {
                     //datagram Packet is sent by the socket.
-                    sckt.send(toDatagramPacket(packetToSend, serverAddress, port));
-                    System.out.println("Datagram Packet sent by the socket! (Send method invoked).");
+                    sckt.send(datagramToSend);
+                    sentAt = System.nanoTime();
+                    Log.tracePacket("ACK sent to {} block {}, {} bytes", addressClient, ackNo & 0xffff, datagramToSend.getLength());
+                    if (timedOut) {
+                        metrics.retransmit();
+                        live.retransmit();
+                        if (FlightEvents.isRecording()) {
+                            FlightEvents.emit(FlightEvents.RETRANSMIT, wrqPKT.getFilename(), ackNo & 0xffff, (int) noOfTimeouts, (long) TIMEOUT);
+                        }
+                    }
+                    Object stall = FlightEvents.begin(FlightEvents.STALL);
                     try {
                         //Waits to receive a response.
+                        rcvDataPckt.setLength(rcvBuffer.length);
                         sckt.receive(rcvDataPckt);
-                        System.out.println("Socket has responded! Datagram Packet received.");
+                        if (capture != null) {
+                            capture.record(sckt.getLocalPort(), rcvDataPckt);
+                        }
                     } catch (SocketTimeoutException timeout) {
                         //If a timeout occurs increment number of current of timeouts. Let user know.
                         ++noOfTimeouts;
-                        System.out.println("Oh oh! A timeout has occured!, Resending packet now!\n");
+                        timedOut = true;
+                        metrics.timeout();
+                        if (FlightEvents.isRecording()) {
+                            FlightEvents.emit(FlightEvents.TIMEOUT, wrqPKT.getFilename(), (ackNo + 1) & 0xffff, (int) noOfTimeouts, (long) TIMEOUT);
+                        }
+                        Log.debug("Oh oh! A timeout has occured after block {} of {}, Resending packet now!", ackNo & 0xffff, wrqPKT.getFilename());
                         continue;
                     }
-                    //No timeout has occured. If ackNo is still 0, get the port of the received data packet.
-                    if (ackNo == 0) {
+                    if (stall != null) {
+                        FlightEvents.commit(stall, wrqPKT.getFilename(), (ackNo + 1) & 0xffff);
+                    }
+                    //No timeout has occured. Until the first block arrives, take the client's port from what it sends.
+                    if (checkFirstPckt) {
                         port = rcvDataPckt.getPort();
-                        System.out.println("Port got: " + port);
+                        ackDatagram.setPort(port);
+                        Log.debug("Port got: {}", port);
                     }
-                    //Creates a new TFTP packet. Creates it from Received datagram packet.
-                    TFTPPacket tftpPckt;
-                    tftpPckt = fromDatagramPacket(rcvDataPckt);
-                    //If packet is of type ERROR.
-                    if (tftpPckt instanceof ErrorPacket) {
-                        //Print the error & its error message to the user.
-                        System.out.println(((ErrorPacket) tftpPckt).getErrorMessage());
+                    //The packet is decoded in place where it was received.
+                    PacketType type = PacketType.lookup(codec.wrap(rcvView, 0, rcvDataPckt.getLength()).opcode());
+                    if (type == PacketType.ERROR) {
+                        //Log the error message sent by the client.
+                        Log.warn("Client sent an error: {}", codec.errorMessage());
                         return;
-                    } else if (tftpPckt instanceof DataPacket) {
-                        //Otherwise if its of type Data.
-                        System.out.println("Packet received & is a Data Packet!");
-                        //Create a data packet by converting tftp pckt.
-                        DataPacket dataPckt = (DataPacket) tftpPckt;
-                        //Prints the length and block number & ack number of the data packet.
-                        System.out.println("Data Packet of length: " + dataPckt.getPacketLength());
-                        System.out.println("Block number of Data packet: " + dataPckt.getBlockNumber() + " with ACK number of: " + ackNo);
-                        //If the block number of the data packet is equal to one more than the acknowledgment number.
-                        if (dataPckt.getBlockNumber() == (ackNo + 1)) {
-                            //Writes to the data packet using file output stream, and increases ack number.
-                            fileOS.write(dataPckt.getPacketBytes(), DataPacket.DATA_OFFSET, dataPckt.getPacketLength());
+                    } else if (type == PacketType.DATA) {
+                        int dataLen = codec.payloadLength();
+                        Log.tracePacket("DATA received from {} block {}, {} bytes", addressClient, codec.blockNumber() & 0xffff, rcvDataPckt.getLength());
+                        //If the block number of the data packet is one more than the acknowledgment number, which wraps after 65535.
+                        if (codec.blockNumber() == (short) (ackNo + 1)) {
+                            if (!timedOut) {
+                                long rtt = System.nanoTime() - sentAt;
+                                metrics.blockRtt(rtt);
+                                live.rtt(rtt);
+                            }
+                            timedOut = false;
+                            metrics.dataReceived(rcvDataPckt.getLength());
+                            //Writes the data packet to the upload sink, and increases ack number. A sink which is behind holds this ACK back.
+                            try {
+                                Object write = FlightEvents.begin(FlightEvents.DISK_WRITE);
+                                sink.write(blocksDone * DATA_LEN, rcvBuffer, DataPacket.DATA_OFFSET, dataLen);
+                                if (write != null) {
+                                    FlightEvents.commit(write, wrqPKT.getFilename(), (ackNo + 1) & 0xffff, dataLen);
+                                }
+                                digest.update(rcvBuffer, DataPacket.DATA_OFFSET, dataLen);
+                            } catch (IOException ex) {
+                                ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.DISK_FULL, "Unable to write file: " + ex.getMessage());
+                                sckt.send(toDatagramPacket(errorPacket, serverAddress, port));
+                                metrics.errorSent(ErrorPacket.ErrorCodes.DISK_FULL);
+                                return;
+                            }
                             ackNo++;
+                            blocksDone++;
+                            bytesDone += dataLen;
+                            live.blockDone(dataLen);
+                            //Holding the ACK back paces the client to its bandwidth.
+                            pace(rcvDataPckt.getLength());
                             //Can no longer be first packet.
                             checkFirstPckt = false;
                             //If data packet is the final packet.
-                            if (dataPckt.isFinalPacket()) {
-                                System.out.println("Data Packet is the final packet! New Ack packed creatred to send!");
-                                packetToSend = new AckPacket(ackNo);
-                                sckt.send(toDatagramPacket(packetToSend, serverAddress, port));
-                                System.out.println("AckPacket has been sent!\n");
+                            if (dataLen < DATA_LEN) {
+                                Log.debug("Data Packet is the final packet! New Ack packed creatred to send!");
+                                //The upload is published before the final ACK, so the client only sees success once readers can see the file.
+                                try {
+                                    sink.setDigest(DigestSidecar.toHex(digest.digest()));
+                                    sink.commit();
+                                } catch (IOException ex) {
+                                    ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.UNDEFINED, "Unable to store file: " + ex.getMessage());
+                                    sckt.send(toDatagramPacket(errorPacket, serverAddress, port));
+                                    metrics.errorSent(ErrorPacket.ErrorCodes.UNDEFINED);
+                                    return;
+                                }
+                                PacketCodec.encodeAck(ackView, 0, ackNo);
+                                sckt.send(ackDatagram);
+                                metrics.transferDone(PacketType.WRITE, System.nanoTime() - started);
+                                Log.debug("AckPacket has been sent!");
                                 return;
                             }
                             break;
@@ -166,8 +286,12 @@ public class WRQHandler implements Runnable{
                     }
                 //If IO Exception occurs, Error packet creatred and prints Error message.
                 } catch (IOException e) {
+                    //A closed socket fails every send, the session was cancelled.
+                    if (sckt.isClosed()) {
+                        throw new TFTPException("Socket closed: " + e.getMessage());
+                    }
                     ErrorPacket errorPacket = new ErrorPacket(ErrorPacket.ErrorCodes.UNDEFINED, "Packet Invalid.");
-                    System.out.println(errorPacket.getErrorMessage());
+                    Log.warn("{} {}", errorPacket.getErrorMessage(), e.getMessage());
                 }
             }
             //If timeout limnit reached, let user know and throw exception.
@@ -177,6 +301,41 @@ public class WRQHandler implements Runnable{
         }
     }
     
+    /**
+     * Waits until the client's bandwidth allows another packet to be sent.
+     *
+     * @param bytes - Size of the packet.
+     * @throws TFTPException is thrown when the handler is interrupted while waiting.
+     */
+    private void pace(int bytes) throws TFTPException {
+        if (bandwidth == null) {
+            return;
+        }
+        try {
+            bandwidth.acquire(bytes);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new TFTPException("Interrupted while pacing the transfer");
+        }
+    }
+
+    /**
+     * Reads the value of a size option.
+     *
+     * @param value - Option value, or null if the option was not sent.
+     * @return Size in bytes, or -1 if it was not sent or is not a valid size.
+     */
+    private long parseSize(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Math.max(-1, Long.parseLong(value));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
     /**
      * Converts A Datagram packet to A TFTPPacket.
      * 
@@ -0,0 +1,186 @@
+package tftp.udp.server;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Upload sink which takes disk writes off the network thread. Block payloads
+ * are copied into a bounded ring of pooled buffers and the network thread
+ * carries on straight away. A writer task drains the ring, merging blocks
+ * which follow each other in the file into large writes on the underlying sink. When the ring
+ * is full the network thread waits, which holds back its ACK, so a slow disk
+ * slows the client down instead of filling memory. Both sides wait on the
+ * sink's own monitor, which unlike a Condition allocates nothing per wait.
+ *
+ * @author 184514
+ */
+public class WriteBehindSink implements UploadSink {
+
+    private final UploadSink delegate;
+    private final BufferPool buffers;
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final long[] positions;
+    private final byte[] staging;
+    private int head = 0, tail = 0, count = 0;
+    private boolean finished = false, committed = false;
+    private IOException failure;
+    private final Future<?> writer;
+
+    /**
+     * Creates a write-behind sink and starts its writer.
+     *
+     * @param delegate - Sink the merged writes go to.
+     * @param writerPool - Pool running the writer task.
+     * @param buffers - Pool the ring's buffers are taken from.
+     * @param ringBlocks - Number of blocks the ring holds.
+     * @param stagingBytes - Largest single write made to the delegate.
+     */
+    public WriteBehindSink(UploadSink delegate, ExecutorService writerPool, BufferPool buffers, int ringBlocks, int stagingBytes) {
+        this.delegate = delegate;
+        this.buffers = buffers;
+        this.slots = new byte[ringBlocks][];
+        for (int i = 0; i < ringBlocks; i++) {
+            slots[i] = buffers.acquire();
+        }
+        this.lengths = new int[ringBlocks];
+        this.positions = new long[ringBlocks];
+        this.staging = new byte[Math.max(stagingBytes, buffers.getBufferSize())];
+        this.writer = writerPool.submit(this::drain);
+    }
+
+    /**
+     * Passes the announced size straight to the delegate, before any block is queued.
+     */
+    @Override
+    public void reserve(long size) throws IOException {
+        delegate.reserve(size);
+    }
+
+    @Override
+    public void setDigest(String digest) {
+        delegate.setDigest(digest);
+    }
+
+    /**
+     * Copies a block into the ring, waiting while the ring is full.
+     */
+    @Override
+    public synchronized void write(long position, byte[] data, int offset, int length) throws IOException {
+        boolean interrupted = false;
+        while (count == slots.length && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        System.arraycopy(data, offset, slots[tail], 0, length);
+        lengths[tail] = length;
+        positions[tail] = position;
+        tail = (tail + 1) % slots.length;
+        count++;
+        notifyAll();
+    }
+
+    /**
+     * Waits for every block to be written, then commits the delegate.
+     */
+    @Override
+    public void commit() throws IOException {
+        finish();
+        delegate.commit();
+        committed = true;
+    }
+
+    /**
+     * Stops the writer, returns the ring's buffers and closes the delegate.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!committed) {
+                try {
+                    finish();
+                } catch (IOException ex) {
+                    //The upload is being thrown away, so a failed write no longer matters.
+                }
+            }
+        } finally {
+            for (byte[] slot : slots) {
+                buffers.release(slot);
+            }
+            delegate.close();
+        }
+    }
+
+    /**
+     * Tells the writer no more blocks are coming and waits for it to finish.
+     */
+    private void finish() throws IOException {
+        synchronized (this) {
+            finished = true;
+            notifyAll();
+        }
+        try {
+            writer.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for writes", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Writer failed", ex.getCause());
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Writer loop. Takes as many queued blocks as fit in the staging buffer,
+     * as long as each follows the one before it in the file, and writes them
+     * to the delegate in one go.
+     */
+    private void drain() {
+        while (true) {
+            int staged = 0;
+            long start;
+            synchronized (this) {
+                while (count == 0 && !finished) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        //The writer only stops once told no more blocks are coming.
+                    }
+                }
+                if (count == 0) {
+                    return;
+                }
+                start = positions[head];
+                while (count > 0 && staged + lengths[head] <= staging.length && positions[head] == start + staged) {
+                    System.arraycopy(slots[head], 0, staging, staged, lengths[head]);
+                    staged += lengths[head];
+                    head = (head + 1) % slots.length;
+                    count--;
+                }
+                notifyAll();
+            }
+            try {
+                delegate.write(start, staging, 0, staged);
+            } catch (IOException ex) {
+                synchronized (this) {
+                    failure = ex;
+                    notifyAll();
+                }
+                return;
+            }
+        }
+    }
+}
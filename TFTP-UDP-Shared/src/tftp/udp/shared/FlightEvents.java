@@ -0,0 +1,246 @@
+package tftp.udp.shared;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom Java Flight Recorder events for transfers, retransmissions,
+ * timeouts, receive stalls and slow disk I/O, so recordings show TFTP
+ * activity next to GC and I/O. The classes are compiled for Java 8, which
+ * has no jdk.jfr API to build against, so the event types are defined at
+ * runtime through jdk.jfr.EventFactory when the JVM has it and are simply
+ * absent when it does not. A listener tracks whether any recording is
+ * running, and until one is, beginning an event returns null after a single
+ * volatile read, so emit sites cost nothing while recording is off. The
+ * server and the client share the event types, an event's thread tells
+ * which of them emitted it.
+ *
+ * @author 184514
+ */
+public final class FlightEvents {
+
+    private static final String PREFIX = "tftp.";
+    private static volatile boolean recording = false;
+    //Handles on jdk.jfr.EventFactory and jdk.jfr.Event, null when the JVM has no JFR.
+    private static MethodHandle newEvent, begin, set, commit;
+
+    /**
+     * A transfer, from its request to its end: direction, file, peer address and bytes.
+     */
+    public static final Type SESSION = define("Session", "TFTP Transfer", null,
+            String.class, "direction", String.class, "file", String.class, "peer", long.class, "bytes");
+    /**
+     * A packet sent again after a timeout: file, block, attempt and retransmission timeout.
+     */
+    public static final Type RETRANSMIT = define("Retransmit", "TFTP Retransmission", null,
+            String.class, "file", int.class, "block", int.class, "attempt", long.class, "rtoMillis");
+    /**
+     * A receive which timed out: file, block, attempt and the time waited.
+     */
+    public static final Type TIMEOUT = define("Timeout", "TFTP Timeout", null,
+            String.class, "file", int.class, "block", int.class, "attempt", long.class, "waitedMillis");
+    /**
+     * A receive which took longer than the threshold but did not time out: file and block.
+     */
+    public static final Type STALL = define("ReceiveStall", "TFTP Receive Stall", "100 ms",
+            String.class, "file", int.class, "block");
+    /**
+     * A block read slower than the threshold: file, block and bytes.
+     */
+    public static final Type DISK_READ = define("DiskRead", "TFTP Slow Disk Read", "10 ms",
+            String.class, "file", int.class, "block", int.class, "bytes");
+    /**
+     * A block write slower than the threshold: file, block and bytes.
+     */
+    public static final Type DISK_WRITE = define("DiskWrite", "TFTP Slow Disk Write", "10 ms",
+            String.class, "file", int.class, "block", int.class, "bytes");
+
+    static {
+        listenForRecordings();
+    }
+
+    /**
+     * Type of event, holding its event factory, or nothing when the JVM has no JFR.
+     */
+    public static final class Type {
+
+        private final Object factory;
+
+        private Type(Object factory) {
+            this.factory = factory;
+        }
+    }
+
+    private FlightEvents() {
+    }
+
+    /**
+     * Returns whether a recording is running, for emit sites which would
+     * otherwise box their values for nothing.
+     *
+     * @return true while any recording is running
+     */
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Starts timing an event.
+     *
+     * @param type - Type of event.
+     * @return the event, or null when nothing is recording
+     */
+    public static Object begin(Type type) {
+        Object event = create(type);
+        if (event != null) {
+            try {
+                begin.invoke(event);
+            } catch (Throwable ex) {
+                return null;
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Sets an event's fields, in the order of its type, and writes it to the
+     * recording. A type with a threshold is only written if the event lasted
+     * longer than it.
+     *
+     * @param event - Event returned by begin, not null.
+     * @param values - Field values.
+     */
+    public static void commit(Object event, Object... values) {
+        try {
+            for (int i = 0; i < values.length; i++) {
+                set.invoke(event, i, values[i]);
+            }
+            commit.invoke(event);
+        } catch (Throwable ex) {
+            //A failed event is dropped, it never fails the transfer.
+        }
+    }
+
+    /**
+     * Writes an instant event.
+     *
+     * @param type - Type of event.
+     * @param values - Field values.
+     */
+    public static void emit(Type type, Object... values) {
+        Object event = create(type);
+        if (event != null) {
+            commit(event, values);
+        }
+    }
+
+    /**
+     * Creates an event without timing it, or returns null when nothing is recording.
+     */
+    private static Object create(Type type) {
+        if (!recording || type.factory == null) {
+            return null;
+        }
+        try {
+            return newEvent.invoke(type.factory);
+        } catch (Throwable ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Defines an event type, with a label, an optional duration threshold and
+     * its fields as pairs of class and name.
+     */
+    private static Type define(String name, String label, String threshold, Object... fields) {
+        try {
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), PREFIX + name));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{"TFTP"}));
+            annotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), false));
+            if (threshold != null) {
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Threshold"), threshold));
+            }
+            List<Object> descriptors = new ArrayList<>();
+            for (int i = 0; i < fields.length; i += 2) {
+                descriptors.add(valueDescriptor.getConstructor(Class.class, String.class).newInstance(fields[i], fields[i + 1]));
+            }
+            Object factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, descriptors);
+            if (newEvent == null) {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                newEvent = lookup.findVirtual(factoryClass, "newEvent", MethodType.methodType(eventClass));
+                begin = lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class));
+                set = lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class));
+                commit = lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class));
+            }
+            return new Type(factory);
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            //No JFR in this JVM, events of this type are never emitted.
+            return new Type(null);
+        }
+    }
+
+    /**
+     * Registers a listener with Flight Recorder which refreshes the recording
+     * flag whenever a recording starts or stops. Adding it does not start
+     * Flight Recorder.
+     */
+    private static void listenForRecordings() {
+        if (newEvent == null) {
+            return;
+        }
+        try {
+            Class<?> recorder = Class.forName("jdk.jfr.FlightRecorder");
+            Class<?> listenerType = Class.forName("jdk.jfr.FlightRecorderListener");
+            Method isInitialized = recorder.getMethod("isInitialized");
+            Method getRecorder = recorder.getMethod("getFlightRecorder");
+            Method getRecordings = recorder.getMethod("getRecordings");
+            Method getState = Class.forName("jdk.jfr.Recording").getMethod("getState");
+            Runnable refresh = () -> {
+                try {
+                    boolean running = false;
+                    if ((Boolean) isInitialized.invoke(null)) {
+                        for (Object r : (List<?>) getRecordings.invoke(getRecorder.invoke(null))) {
+                            running |= "RUNNING".equals(String.valueOf(getState.invoke(r)));
+                        }
+                    }
+                    recording = running;
+                } catch (ReflectiveOperationException ex) {
+                    recording = false;
+                }
+            };
+            Object listener = Proxy.newProxyInstance(FlightEvents.class.getClassLoader(), new Class<?>[]{listenerType}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "recordingStateChanged":
+                    case "recorderInitialized":
+                        refresh.run();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "TFTP flight events";
+                    default:
+                        return null;
+                }
+            });
+            recorder.getMethod("addListener", listenerType).invoke(null, listener);
+            refresh.run();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+            recording = false;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package tftp.udp.shared;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled, asynchronous logger. A message is a template with {} for each
+ * argument, and logging one only stores the template and its arguments in
+ * a preallocated ring, after a level check. Formatting and writing to
+ * standard output happen on a background writer, so transfer threads never
+ * wait on the stdout lock or the terminal. If the writer falls a whole ring
+ * behind, new messages are dropped and counted rather than blocking. Per
+ * packet messages are logged at TRACE through tracePacket, which keeps one
+ * in every sampleEvery of them.
+ * <p>
+ * The level and sampling come from the tftp.log.level and tftp.log.sample
+ * system properties, INFO and 100 by default. The server and the client
+ * both build it from the shared source root.
+ *
+ * @author 184514
+ */
+public final class Log {
+
+    /**
+     * Levels, from the most to the least severe.
+     */
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    //Entries in the ring, a power of two.
+    private static final int CAPACITY = 1 << 13, MASK = CAPACITY - 1;
+    private static final Entry[] RING = new Entry[CAPACITY];
+    //Next sequence to be claimed by a logging thread, and the next to be written.
+    private static final AtomicLong CLAIMED = new AtomicLong();
+    private static volatile long written = 0;
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final PrintStream OUT = System.out;
+
+    private static volatile Level level = Level.INFO;
+    private static volatile int sampleEvery = 100;
+    private static final Thread WRITER;
+    private static volatile boolean writerParked = false;
+
+    /**
+     * Message waiting to be written. The sequence is set last, which
+     * publishes the entry to the writer.
+     */
+    private static final class Entry {
+        volatile long sequence = -1;
+        Level level;
+        long time;
+        String thread, template;
+        Object a, b, c;
+    }
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            RING[i] = new Entry();
+        }
+        try {
+            level = Level.valueOf(System.getProperty("tftp.log.level", "INFO").toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            level = Level.INFO;
+        }
+        try {
+            sampleEvery = Math.max(1, Integer.parseInt(System.getProperty("tftp.log.sample", "100")));
+        } catch (NumberFormatException ex) {
+            sampleEvery = 100;
+        }
+        WRITER = new Thread(Log::writeLoop, "tftp-log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        //Messages still in the ring are written before the JVM exits.
+        try {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "tftp-log-flush"));
+        } catch (IllegalStateException ex) {
+            //First used from another shutdown hook, which has to flush for itself.
+        }
+    }
+
+    private Log() {
+    }
+
+    /**
+     * @param newLevel - Least severe level which is logged from now on.
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * @param every - Per packet messages logged, one in this many.
+     */
+    public static void setSampling(int every) {
+        sampleEvery = Math.max(1, every);
+    }
+
+    /**
+     * @param messageLevel - Level of a message.
+     * @return true if messages of that level are logged
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.ordinal() <= level.ordinal();
+    }
+
+    public static void error(String template) {
+        log(Level.ERROR, template, null, null, null);
+    }
+
+    public static void error(String template, Object a) {
+        log(Level.ERROR, template, a, null, null);
+    }
+
+    public static void error(String template, Object a, Object b) {
+        log(Level.ERROR, template, a, b, null);
+    }
+
+    public static void error(String template, Object a, Object b, Object c) {
+        log(Level.ERROR, template, a, b, c);
+    }
+
+    public static void warn(String template) {
+        log(Level.WARN, template, null, null, null);
+    }
+
+    public static void warn(String template, Object a) {
+        log(Level.WARN, template, a, null, null);
+    }
+
+    public static void warn(String template, Object a, Object b) {
+        log(Level.WARN, template, a, b, null);
+    }
+
+    public static void warn(String template, Object a, Object b, Object c) {
+        log(Level.WARN, template, a, b, c);
+    }
+
+    public static void info(String template) {
+        log(Level.INFO, template, null, null, null);
+    }
+
+    public static void info(String template, Object a) {
+        log(Level.INFO, template, a, null, null);
+    }
+
+    public static void info(String template, Object a, Object b) {
+        log(Level.INFO, template, a, b, null);
+    }
+
+    public static void info(String template, Object a, Object b, Object c) {
+        log(Level.INFO, template, a, b, c);
+    }
+
+    public static void debug(String template) {
+        log(Level.DEBUG, template, null, null, null);
+    }
+
+    public static void debug(String template, Object a) {
+        log(Level.DEBUG, template, a, null, null);
+    }
+
+    public static void debug(String template, Object a, Object b) {
+        log(Level.DEBUG, template, a, b, null);
+    }
+
+    public static void debug(String template, Object a, Object b, Object c) {
+        log(Level.DEBUG, template, a, b, c);
+    }
+
+    /**
+     * Logs a per packet message at TRACE, sampled. The numbers are only
+     * boxed when the message is kept.
+     *
+     * @param template - Message with a {} for each of the three values.
+     * @param peer - Address or name the packet went to or came from.
+     * @param block - Block number.
+     * @param length - Packet length.
+     */
+    public static void tracePacket(String template, Object peer, int block, int length) {
+        if (level != Level.TRACE || ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return;
+        }
+        log(Level.TRACE, template, peer, block, length);
+    }
+
+    /**
+     * Stores a message in the ring if its level is enabled and the ring has room.
+     */
+    private static void log(Level messageLevel, String template, Object a, Object b, Object c) {
+        if (messageLevel.ordinal() > level.ordinal()) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = CLAIMED.get();
+            if (sequence - written >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+        } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+        Entry entry = RING[(int) sequence & MASK];
+        entry.level = messageLevel;
+        entry.time = System.currentTimeMillis();
+        entry.thread = Thread.currentThread().getName();
+        entry.template = template;
+        entry.a = a;
+        entry.b = b;
+        entry.c = c;
+        entry.sequence = sequence;
+        if (writerParked) {
+            writerParked = false;
+            LockSupport.unpark(WRITER);
+        }
+    }
+
+    /**
+     * Waits until every message logged before the call has been written,
+     * for output which has to appear after them, such as a prompt.
+     */
+    public static void flush() {
+        flush(1000);
+    }
+
+    private static void flush(long timeoutMillis) {
+        long target = CLAIMED.get(), deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(WRITER);
+            LockSupport.parkNanos(100000);
+        }
+    }
+
+    /**
+     * Writer thread: formats and prints entries in order, flushing the
+     * output whenever it catches up, and parks while the ring is empty.
+     */
+    private static void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Date date = new Date();
+        long reportedDrops = 0;
+        while (true) {
+            long next = written;
+            Entry entry = RING[(int) next & MASK];
+            if (entry.sequence != next) {
+                long drops = DROPPED.get();
+                if (drops != reportedDrops) {
+                    OUT.println("Logging fell behind, " + (drops - reportedDrops) + " messages dropped");
+                    reportedDrops = drops;
+                }
+                OUT.flush();
+                writerParked = true;
+                //Checked again after parking is announced, so a message published in between is not missed.
+                if (RING[(int) next & MASK].sequence != next) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                writerParked = false;
+                continue;
+            }
+            date.setTime(entry.time);
+            line.setLength(0);
+            line.append(timeFormat.format(date)).append(' ').append(entry.level);
+            for (int pad = entry.level.name().length(); pad < 5; pad++) {
+                line.append(' ');
+            }
+            line.append(" [").append(entry.thread).append("] ");
+            format(line, entry.template, entry.a, entry.b, entry.c);
+            //References are cleared so the ring does not keep arguments alive.
+            entry.a = entry.b = entry.c = null;
+            OUT.println(line);
+            //A line only counts as written once it is out, so it is flushed first when nothing follows it.
+            if (RING[(int) (next + 1) & MASK].sequence != next + 1) {
+                OUT.flush();
+            }
+            written = next + 1;
+        }
+    }
+
+    /**
+     * Replaces each {} in the template with the next argument.
+     */
+    private static void format(StringBuilder line, String template, Object a, Object b, Object c) {
+        int argument = 0, from = 0, at;
+        while ((at = template.indexOf("{}", from)) >= 0) {
+            line.append(template, from, at);
+            line.append(argument == 0 ? a : argument == 1 ? b : c);
+            argument++;
+            from = at + 2;
+        }
+        line.append(template, from, template.length());
+    }
+}
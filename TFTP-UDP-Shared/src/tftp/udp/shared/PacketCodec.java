@@ -0,0 +1,195 @@
+package tftp.udp.shared;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Flyweight view of a TFTP packet held in a ByteBuffer, which may be direct.
+ * Unlike the packet classes it copies nothing: fields are read and written in
+ * place, strings are only decoded when asked for, and one codec is rewrapped
+ * around each packet a transfer receives. The server and the client both
+ * build it from the shared source root, so it deals in raw opcodes and error
+ * codes, which each side looks up in its own packet classes.
+ *
+ * @author 184514
+ */
+public final class PacketCodec {
+
+    //Opcode and block number, or opcode and error code.
+    public static final int HEADER_LEN = 4;
+    //Opcodes of the packets whose fields the codec reads and writes.
+    public static final short DATA = 3, ACK = 4, ERROR = 5;
+
+    private ByteBuffer buffer;
+    private int start, length;
+    //Strings decoded so far from the wrapped packet.
+    private String filename, mode, errorMessage;
+
+    /**
+     * Points the codec at a packet.
+     *
+     * @param buffer - Buffer holding the packet.
+     * @param start - Position of the opcode.
+     * @param length - Length of the packet.
+     * @return this codec
+     */
+    public PacketCodec wrap(ByteBuffer buffer, int start, int length) {
+        this.buffer = buffer;
+        this.start = start;
+        this.length = length;
+        this.filename = null;
+        this.mode = null;
+        this.errorMessage = null;
+        return this;
+    }
+
+    /**
+     * Returns the length of the wrapped packet.
+     *
+     * @return length in bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Returns the raw opcode of the wrapped packet. A DATA, ACK or ERROR
+     * packet too short to hold its block number or error code is invalid.
+     *
+     * @return opcode, 0 if the packet is too short for its type
+     */
+    public short opcode() {
+        if (length < 2) {
+            return 0;
+        }
+        short opcode = buffer.getShort(start);
+        if ((opcode == DATA || opcode == ACK || opcode == ERROR) && length < HEADER_LEN) {
+            return 0;
+        }
+        return opcode;
+    }
+
+    /**
+     * Returns the block number of a DATA or ACK packet.
+     *
+     * @return block number, 0 if the packet is too short to have one
+     */
+    public short blockNumber() {
+        return length >= HEADER_LEN ? buffer.getShort(start + 2) : 0;
+    }
+
+    /**
+     * Returns the position of a DATA packet's payload in the buffer.
+     *
+     * @return position of the first payload byte
+     */
+    public int payloadOffset() {
+        return start + HEADER_LEN;
+    }
+
+    /**
+     * Returns the length of a DATA packet's payload.
+     *
+     * @return payload length in bytes, 0 if the packet is too short to have one
+     */
+    public int payloadLength() {
+        return Math.max(0, length - HEADER_LEN);
+    }
+
+    /**
+     * Returns the raw error code of an ERROR packet.
+     *
+     * @return error code, 0 if the packet is too short to have one
+     */
+    public short errorCode() {
+        return length >= HEADER_LEN ? buffer.getShort(start + 2) : 0;
+    }
+
+    /**
+     * Returns the error message of an ERROR packet, decoded on first use.
+     *
+     * @return error message
+     */
+    public String errorMessage() {
+        if (errorMessage == null) {
+            errorMessage = readString(start + HEADER_LEN);
+        }
+        return errorMessage;
+    }
+
+    /**
+     * Returns the filename of an RRQ or WRQ packet, decoded on first use.
+     *
+     * @return filename
+     */
+    public String filename() {
+        if (filename == null) {
+            filename = readString(start + 2);
+        }
+        return filename;
+    }
+
+    /**
+     * Returns the mode of an RRQ or WRQ packet, decoded on first use.
+     *
+     * @return mode
+     */
+    public String mode() {
+        if (mode == null) {
+            mode = readString(endOf(start + 2) + 1);
+        }
+        return mode;
+    }
+
+    /**
+     * Writes an ACK in place.
+     *
+     * @param out - Buffer the packet is written to.
+     * @param at - Position of the opcode.
+     * @param blockNo - Block number being acknowledged.
+     * @return length of the packet
+     */
+    public static int encodeAck(ByteBuffer out, int at, short blockNo) {
+        out.putShort(at, ACK);
+        out.putShort(at + 2, blockNo);
+        return HEADER_LEN;
+    }
+
+    /**
+     * Writes the header of a DATA packet in place, in front of a payload
+     * already in the buffer.
+     *
+     * @param out - Buffer the header is written to.
+     * @param at - Position of the opcode, the payload starts HEADER_LEN after it.
+     * @param blockNo - Block number of the packet.
+     * @return length of the header
+     */
+    public static int encodeDataHeader(ByteBuffer out, int at, short blockNo) {
+        out.putShort(at, DATA);
+        out.putShort(at + 2, blockNo);
+        return HEADER_LEN;
+    }
+
+    /**
+     * Finds the null which ends a string, or the end of the packet.
+     */
+    private int endOf(int from) {
+        int end = from;
+        while (end < start + length && buffer.get(end) != 0) {
+            end++;
+        }
+        return end;
+    }
+
+    private String readString(int from) {
+        int end = endOf(from);
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, end - from, StandardCharsets.US_ASCII);
+        }
+        byte[] bytes = new byte[Math.max(0, end - from)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}